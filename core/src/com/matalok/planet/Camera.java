@@ -88,6 +88,24 @@ public abstract class Camera
         return (norm.dot(Camera.tmp_v3) >= threshold);
     }
 
+    // -------------------------------------------------------------------------
+    @Override public boolean TestFrustumCulling(Vector3 center, float radius) {
+        return m_gdx_camera.frustum.sphereInFrustum(center, radius);
+    }
+
+    // -------------------------------------------------------------------------
+    // Normal cone test for group of triangles. All triangles face away from 
+    // camera if camera is inside cone that starts at apex, goes against axis
+    // and which is narrower than triangle normals are spread.
+    @Override public boolean TestConeCulling(Vector3 apex, Vector3 axis, float cutoff) {
+        // Get camera-to-apex vector
+        Camera.tmp_v3.set(apex).sub(m_gdx_camera.position);
+        float dst = Camera.tmp_v3.len();
+
+        // Test fails if camera is inside of backfacing cone
+        return (dst == 0.0f || axis.dot(Camera.tmp_v3) < cutoff * dst);
+    }
+
     // *************************************************************************
     // CommonObject
     // *************************************************************************
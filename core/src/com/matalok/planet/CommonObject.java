@@ -20,8 +20,14 @@
 package com.matalok.planet;
 
 // -----------------------------------------------------------------------------
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.RecursiveAction;
+
+import com.badlogic.gdx.utils.reflect.ClassReflection;
+import com.badlogic.gdx.utils.reflect.ReflectionException;
 import com.matalok.planet.Interfaces.ICommonObject;
 
 // -----------------------------------------------------------------------------
@@ -36,6 +42,10 @@ public class CommonObject implements Interfaces.ICommonObject {
     // STATIC
     // *************************************************************************
     private static int id = 0;
+    private static volatile int tree_version = 0;   // Changes when children are added or removed
+    private static Dispatch async_dispatch;         // Prepare dispatch with pending async objects
+    private static HashMap<Class<?>, Integer> override_masks = 
+        new HashMap<Class<?>, Integer>();
 
     // -------------------------------------------------------------------------
     public static final int STAGE_PRE         = 0;
@@ -61,6 +71,462 @@ public class CommonObject implements Interfaces.ICommonObject {
         "create", "reset", "resize", "prepare", "render", "shape", 
         "pause", "resume", "dispose"
     };
+    public static final String[] MTH_FUNCS    = new String[] {
+        "OnCreate", "OnReset", "OnResize", "OnPrepare", "OnRender", "OnShape", 
+        "OnPause", "OnResume", "OnDispose"
+    };
+
+    // *************************************************************************
+    // Dispatch
+    // *************************************************************************
+    // Frame method compiled to flat list of tree objects in walk order. Objects
+    // that inherit default method are left out, pre stage keeps index of entry 
+    // that follows its subtree.
+    private static class Dispatch {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final int ARRAY_SIZE = 64;
+        private static final int TASK_SIZE  = 8;    // Max objects prepared without split
+
+        // *********************************************************************
+        // Dispatch
+        // *********************************************************************
+        public int method_id, version, num;
+        public boolean forward;
+        public Interfaces.ICommonObject[] objects;
+        public int[] stages, ends;
+        public boolean[] calls;             // Post stage of render deletes expired children
+
+        // ---------------------------------------------------------------------
+        // Entries of object that is tracked while compiling
+        private Interfaces.ICommonObject m_track;
+        private int m_track_pre, m_track_end;
+
+        // ---------------------------------------------------------------------
+        // Async prepare of current run. Consecutive async siblings that can 
+        // share task are collected to batch, batch is submitted before next 
+        // entry. Tasks and member list are reused between runs.
+        private PrepareTask[] m_tasks;
+        private CommonObject[] m_members;
+        private int[] m_member_entries;
+        private int m_task_num, m_member_num, m_batch_from;
+
+        // ---------------------------------------------------------------------
+        // Async objects that read object which is prepared later in this run 
+        // are deferred until dispatch passes entries of that object
+        private CommonObject[] m_defers;
+        private int[] m_defer_entries, m_defer_readies;
+        private int m_defer_num;
+
+        // ---------------------------------------------------------------------
+        // Tasks walk compiled entries, tree changes that come while async 
+        // objects are pending are applied when all tasks are over. Null child 
+        // stands for deletion of expired children.
+        private CommonObject[] m_change_parents, m_change_children;
+        private int m_change_num;
+
+        // ---------------------------------------------------------------------
+        public Dispatch(int method_id, boolean forward) {
+            this.method_id = method_id;
+            this.forward = forward;
+            objects = new Interfaces.ICommonObject[Dispatch.ARRAY_SIZE];
+            stages = new int[Dispatch.ARRAY_SIZE];
+            ends = new int[Dispatch.ARRAY_SIZE];
+            calls = new boolean[Dispatch.ARRAY_SIZE];
+        }
+
+        // ---------------------------------------------------------------------
+        public void Compile(Interfaces.ICommonObject root, Interfaces.ICommonObject track) {
+            for(int i = 0; i < num; i++) {
+                if(method_id == CommonObject.MTH_PREPARE && 
+                   objects[i] instanceof CommonObject) {
+                    ((CommonObject)objects[i]).m_prepare_end = -1;
+                }
+                objects[i] = null;
+            }
+            num = 0;
+            m_track = track;
+            m_track_pre = m_track_end = -1;
+            Add(root);
+            m_track = null;
+            version = CommonObject.tree_version;
+        }
+
+        // ---------------------------------------------------------------------
+        private void Add(Interfaces.ICommonObject obj) {
+            boolean is_override = CommonObject.IsOverride(obj, method_id);
+            int pre = (is_override) ? Add(obj, CommonObject.STAGE_PRE, true) : -1;
+
+            // Children
+            ListIterator<Interfaces.ICommonObject> it = obj.GetChildrenIt(forward);
+            while((forward) ? it.hasNext() : it.hasPrevious()) {
+                Add((forward) ? it.next() : it.previous());
+            }
+
+            // Post stage
+            if(is_override || 
+              (method_id == CommonObject.MTH_RENDER && obj.GetChildNum() > 0)) {
+                Add(obj, CommonObject.STAGE_POST, is_override);
+            }
+            if(pre != -1) {
+                ends[pre] = num;
+                if(method_id == CommonObject.MTH_PREPARE && 
+                   obj instanceof CommonObject) {
+                    ((CommonObject)obj).m_prepare_end = num;
+                }
+            }
+            if(obj == m_track) {
+                m_track_pre = pre;
+                m_track_end = num;
+            }
+        }
+
+        // ---------------------------------------------------------------------
+        private int Add(Interfaces.ICommonObject obj, int stage, boolean call) {
+            if(num == objects.length) {
+                int size = num * 2;
+                objects = Arrays.copyOf(objects, size);
+                stages = Arrays.copyOf(stages, size);
+                ends = Arrays.copyOf(ends, size);
+                calls = Arrays.copyOf(calls, size);
+            }
+            objects[num] = obj;
+            stages[num] = stage;
+            ends[num] = num + 1;
+            calls[num] = call;
+            return num++;
+        }
+
+        // ---------------------------------------------------------------------
+        public void Run(Interfaces.ICommonObject root, Object[] args, boolean parallel) {
+            if(version != CommonObject.tree_version) {
+                Compile(root, null);
+            }
+
+            for(int i = 0; i < num; ) {
+                if(m_defer_num > 0) {
+                    Release(i, args);
+                }
+
+                Interfaces.ICommonObject obj = objects[i];
+                int stage = stages[i];
+                if(parallel) {
+                    // Async object takes its subtree to worker thread
+                    if(calls[i] && stage == CommonObject.STAGE_PRE && 
+                       CommonObject.IsPrepareAsync(obj)) {
+                        CommonObject obj_co = (CommonObject)obj;
+                        int ready = Dispatch.GetReadyEntry(obj_co, i);
+                        if(ready > i) {
+                            Defer(obj_co, i, ready);
+                        } else {
+                            AddAsync(obj_co, i, args);
+                        }
+                        i = ends[i];
+                        continue;
+                    }
+                    Submit(args);
+                    Wait(obj, stage);
+                }
+
+                boolean rc = !calls[i] || 
+                    CommonObject.RunMethod(obj, method_id, stage, args);
+                if(method_id == CommonObject.MTH_RENDER && 
+                   stage == CommonObject.STAGE_POST) {
+                    CommonObject.DeleteExpired((CommonObject)obj);
+                }
+
+                // Children were added or removed, dispatch continues from 
+                // same place of new list
+                if(version == CommonObject.tree_version) {
+                    i = (rc) ? i + 1 : ends[i];
+                } else {
+                    Compile(root, obj);
+                    Utils.Assert(m_track_end != -1, 
+                        "Failed to continue dispatch, object left tree :: obj=%s", 
+                        obj.GetNameId());
+                    i = (rc && stage == CommonObject.STAGE_PRE) ? 
+                        m_track_pre + 1 : m_track_end;
+                }
+            }
+
+            // All tasks are over before dispatch returns
+            Release(num, args);
+            Submit(args);
+            for(int i = 0; i < m_task_num; i++) {
+                m_tasks[i].join();
+                m_tasks[i].Clear();
+            }
+            for(int i = 0; i < m_member_num; i++) {
+                m_members[i].m_prepare_task = -1;
+                m_members[i] = null;
+            }
+            m_task_num = m_member_num = m_batch_from = 0;
+
+            // Tree changes that waited for tasks
+            if(CommonObject.async_dispatch == this) {
+                CommonObject.async_dispatch = null;
+            }
+            for(int i = 0; i < m_change_num; i++) {
+                CommonObject parent = m_change_parents[i], 
+                    child = m_change_children[i];
+                if(child != null) {
+                    parent.AddChild(child);
+                } else {
+                    CommonObject.DeleteExpired(parent);
+                }
+                m_change_parents[i] = m_change_children[i] = null;
+            }
+            m_change_num = 0;
+        }
+
+        // ---------------------------------------------------------------------
+        public void AddChange(CommonObject parent, CommonObject child) {
+            if(m_change_parents == null || m_change_num == m_change_parents.length) {
+                int size = (m_change_parents == null) ? 
+                    Dispatch.TASK_SIZE : m_change_num * 2;
+                m_change_parents = (m_change_parents == null) ? 
+                    new CommonObject[size] : Arrays.copyOf(m_change_parents, size);
+                m_change_children = (m_change_children == null) ? 
+                    new CommonObject[size] : Arrays.copyOf(m_change_children, size);
+            }
+            m_change_parents[m_change_num] = parent;
+            m_change_children[m_change_num++] = child;
+        }
+
+        // ---------------------------------------------------------------------
+        // Prepare of object and its subtree from compiled entries, list is not 
+        // compiled again while async objects are pending
+        private void RunEntries(int entry, Object[] args) {
+            for(int i = entry, end = ends[entry]; i < end; ) {
+                boolean rc = !calls[i] || 
+                    CommonObject.RunMethod(objects[i], method_id, stages[i], args);
+                i = (rc) ? i + 1 : ends[i];
+            }
+        }
+
+        // ---------------------------------------------------------------------
+        // Entry that follows prepare of all objects that async object reads. 
+        // Ancestors are in the middle of their prepare and descendants are 
+        // prepared by object itself, they are not waited for.
+        private static int GetReadyEntry(CommonObject obj, int entry) {
+            int ready = entry;
+            for(Interfaces.ICommonObject o : obj.m_prepare_reads) {
+                if(!(o instanceof CommonObject) || o == obj) {
+                    continue;
+                }
+                CommonObject o_co = (CommonObject)o;
+                if(!obj.IsDescendant(o_co) && !o_co.IsDescendant(obj) && 
+                   o_co.m_prepare_end > ready) {
+                    ready = o_co.m_prepare_end;
+                }
+            }
+            return ready;
+        }
+
+        // ---------------------------------------------------------------------
+        private void Defer(CommonObject obj, int entry, int ready) {
+            CommonObject.async_dispatch = this;
+            if(m_defers == null || m_defer_num == m_defers.length) {
+                int size = (m_defers == null) ? Dispatch.TASK_SIZE : m_defer_num * 2;
+                m_defers = (m_defers == null) ? 
+                    new CommonObject[size] : Arrays.copyOf(m_defers, size);
+                m_defer_entries = (m_defer_entries == null) ? 
+                    new int[size] : Arrays.copyOf(m_defer_entries, size);
+                m_defer_readies = (m_defer_readies == null) ? 
+                    new int[size] : Arrays.copyOf(m_defer_readies, size);
+            }
+            m_defers[m_defer_num] = obj;
+            m_defer_entries[m_defer_num] = entry;
+            m_defer_readies[m_defer_num++] = ready;
+        }
+
+        // ---------------------------------------------------------------------
+        // Deferred objects join batch in tree order once dispatch reaches 
+        // their ready entry
+        private void Release(int entry, Object[] args) {
+            int left = 0;
+            for(int i = 0; i < m_defer_num; i++) {
+                CommonObject obj = m_defers[i];
+                if(m_defer_readies[i] <= entry) {
+                    AddAsync(obj, m_defer_entries[i], args);
+                } else {
+                    m_defers[left] = obj;
+                    m_defer_entries[left] = m_defer_entries[i];
+                    m_defer_readies[left++] = m_defer_readies[i];
+                }
+            }
+            for(int i = left; i < m_defer_num; i++) {
+                m_defers[i] = null;
+            }
+            m_defer_num = left;
+        }
+
+        // ---------------------------------------------------------------------
+        // Object joins pending batch if it can share task with each member
+        private void AddAsync(CommonObject obj, int entry, Object[] args) {
+            CommonObject.async_dispatch = this;
+            for(int i = m_batch_from; i < m_member_num; i++) {
+                if(!CommonObject.IsPrepareBatch(m_members[i], obj)) {
+                    Submit(args);
+                    break;
+                }
+            }
+
+            if(m_members == null || m_member_num == m_members.length) {
+                int size = (m_members == null) ? 
+                    Dispatch.ARRAY_SIZE : m_member_num * 2;
+                m_members = (m_members == null) ? 
+                    new CommonObject[size] : Arrays.copyOf(m_members, size);
+                m_member_entries = (m_member_entries == null) ? 
+                    new int[size] : Arrays.copyOf(m_member_entries, size);
+            }
+            m_members[m_member_num] = obj;
+            m_member_entries[m_member_num++] = entry;
+        }
+
+        // ---------------------------------------------------------------------
+        // Pending batch is submitted, earlier tasks that conflict with it are 
+        // joined by worker
+        private void Submit(Object[] args) {
+            if(m_batch_from == m_member_num) {
+                return;
+            }
+
+            // Members are marked with their task
+            int idx = m_task_num;
+            for(int i = m_batch_from; i < m_member_num; i++) {
+                m_members[i].m_prepare_task = idx;
+            }
+
+            if(m_tasks == null || m_task_num == m_tasks.length) {
+                m_tasks = (m_tasks == null) ? 
+                    new PrepareTask[Dispatch.ARRAY_SIZE] : 
+                    Arrays.copyOf(m_tasks, m_task_num * 2);
+            }
+            PrepareTask task = m_tasks[idx];
+            if(task == null) {
+                task = m_tasks[idx] = new PrepareTask();
+            }
+            task.Set(this, m_members, m_member_entries, m_batch_from, m_member_num, args);
+
+            CommonObject first = m_members[m_batch_from];
+            for(int i = 0; i < idx; i++) {
+                if(!m_tasks[i].isDone() && 
+                   CommonObject.IsPrepareConflict(m_tasks[i].GetFirst(), first)) {
+                    task.AddDep(m_tasks[i]);
+                }
+            }
+
+            SphereUtils.GetPool().execute(task);
+            m_task_num++;
+            m_batch_from = m_member_num;
+        }
+
+        // ---------------------------------------------------------------------
+        // Entry runs after conflicting tasks, post stage runs after tasks of 
+        // its children
+        private void Wait(Interfaces.ICommonObject obj, int stage) {
+            for(int i = 0; i < m_task_num; i++) {
+                PrepareTask task = m_tasks[i];
+                if(task.isDone()) {
+                    continue;
+                }
+                if(CommonObject.IsPrepareConflict(task.GetFirst(), obj) ||
+                  (stage == CommonObject.STAGE_POST && 
+                   task.GetFirst().IsDescendant(obj))) {
+                    task.join();
+                }
+            }
+        }
+    }
+
+    // *************************************************************************
+    // PrepareTask
+    // *************************************************************************
+    // Runs async prepare of range of siblings with their subtrees, range is 
+    // split until it's small enough. Subtrees are walked from compiled entries 
+    // of dispatch, not from children lists. Root task of range waits for its 
+    // dependencies first.
+    private static class PrepareTask 
+      extends RecursiveAction {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final long serialVersionUID = 42424206L;
+
+        // *********************************************************************
+        // PrepareTask
+        // *********************************************************************
+        private Dispatch m_dispatch;
+        private CommonObject[] m_objects;
+        private int[] m_entries;
+        private int m_from, m_to, m_dep_num;
+        private Object[] m_args;
+        private PrepareTask[] m_deps;
+
+        // ---------------------------------------------------------------------
+        // Root tasks are reused between runs
+        public void Set(Dispatch dispatch, CommonObject[] objects, int[] entries, 
+          int from, int to, Object[] args) {
+            reinitialize();
+            m_dispatch = dispatch;
+            m_objects = objects;
+            m_entries = entries;
+            m_from = from;
+            m_to = to;
+            m_args = args;
+            m_dep_num = 0;
+        }
+
+        // ---------------------------------------------------------------------
+        public void Clear() {
+            for(int i = 0; i < m_dep_num; i++) {
+                m_deps[i] = null;
+            }
+            m_dispatch = null;
+            m_objects = null;
+            m_entries = null;
+            m_args = null;
+            m_dep_num = 0;
+        }
+
+        // ---------------------------------------------------------------------
+        public void AddDep(PrepareTask task) {
+            if(m_deps == null || m_dep_num == m_deps.length) {
+                m_deps = (m_deps == null) ? 
+                    new PrepareTask[Dispatch.TASK_SIZE] : 
+                    Arrays.copyOf(m_deps, m_dep_num * 2);
+            }
+            m_deps[m_dep_num++] = task;
+        }
+
+        // ---------------------------------------------------------------------
+        public CommonObject GetFirst() {
+            return m_objects[m_from];
+        }
+
+        // *********************************************************************
+        // RecursiveAction
+        // *********************************************************************
+        @Override protected void compute() {
+            for(int i = 0; i < m_dep_num; i++) {
+                m_deps[i].join();
+            }
+
+            if(m_to - m_from > Dispatch.TASK_SIZE) {
+                int middle = (m_from + m_to) >>> 1;
+                PrepareTask l = new PrepareTask(), r = new PrepareTask();
+                l.Set(m_dispatch, m_objects, m_entries, m_from, middle, m_args);
+                r.Set(m_dispatch, m_objects, m_entries, middle, m_to, m_args);
+                RecursiveAction.invokeAll(l, r);
+                return;
+            }
+            for(int i = m_from; i < m_to; i++) {
+                m_dispatch.RunEntries(m_entries[i], m_args);
+            }
+        }
+    }
 
     // *************************************************************************
     // FUNCTION
@@ -94,8 +560,116 @@ public class CommonObject implements Interfaces.ICommonObject {
         return rc;
     }
 
+    // -------------------------------------------------------------------------
+    // Methods that are inherited from CommonObject are not run by dispatch
+    private static boolean IsOverride(Interfaces.ICommonObject obj, int method_id) {
+        Class<?> cls = obj.getClass();
+        Integer mask = CommonObject.override_masks.get(cls);
+        if(mask == null) {
+            int m = 0;
+            for(int i = 0; i < CommonObject.MTH_NUM; i++) {
+                try {
+                    if(ClassReflection.getMethod(cls, CommonObject.MTH_FUNCS[i], 
+                      int.class, Object[].class).getDeclaringClass() != CommonObject.class) {
+                        m |= 1 << i;
+                    }
+                } catch(ReflectionException ex) {
+                    m |= 1 << i;
+                }
+            }
+            mask = m;
+            CommonObject.override_masks.put(cls, mask);
+        }
+        return (mask & (1 << method_id)) != 0;
+    }
+
+    // -------------------------------------------------------------------------
+    private static boolean IsPrepareAsync(Interfaces.ICommonObject obj) {
+        return (obj instanceof CommonObject) && ((CommonObject)obj).m_prepare_async;
+    }
+
+    // -------------------------------------------------------------------------
+    // Prepare of 'r' has to wait for prepare task of 'l' if one of them writes 
+    // object that other one reads or writes. Task writes all its members, 'r'
+    // is either member of later task or object that is prepared in place.
+    private static boolean IsPrepareConflict(CommonObject l, Interfaces.ICommonObject r) {
+        if(!(r instanceof CommonObject)) {
+            return true;
+        }
+        CommonObject r_co = (CommonObject)r;
+        if(l.m_prepare_reads == null || r_co.m_prepare_reads == null) {
+            return true;
+        }
+
+        if(r_co.IsPrepareTaskAccess(l.m_prepare_task)) {
+            return true;
+        }
+        if((r_co.m_prepare_task == -1) ? 
+           l.IsPrepareAccess(r_co) : l.IsPrepareTaskAccess(r_co.m_prepare_task)) {
+            return true;
+        }
+        for(Interfaces.ICommonObject w : l.m_prepare_writes) {
+            if(r_co.IsPrepareAccess(w)) {
+                return true;
+            }
+        }
+        for(Interfaces.ICommonObject w : r_co.m_prepare_writes) {
+            if(l.IsPrepareAccess(w)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // Async siblings with same reads and no writes do not conflict with each 
+    // other and can share prepare task
+    private static boolean IsPrepareBatch(CommonObject l, CommonObject r) {
+        return l.m_parent == r.m_parent &&
+            l.m_prepare_writes.length == 0 && r.m_prepare_writes.length == 0 &&
+            Arrays.equals(l.m_prepare_reads, r.m_prepare_reads) &&
+            !CommonObject.Contains(l.m_prepare_reads, l) &&
+            !CommonObject.Contains(l.m_prepare_reads, r);
+    }
+
+    // -------------------------------------------------------------------------
+    private static boolean Contains(Interfaces.ICommonObject[] objects, 
+      Interfaces.ICommonObject obj) {
+        for(Interfaces.ICommonObject o : objects) {
+            if(o == obj) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    private static boolean IsFrameMethod(int method_id) {
+        return method_id == CommonObject.MTH_PREPARE || 
+               method_id == CommonObject.MTH_RENDER ||
+               method_id == CommonObject.MTH_SHAPE;
+    }
+
     // -------------------------------------------------------------------------
     public static void Walk(Interfaces.ICommonObject root, boolean forward, 
+      int method_id, Object[] args) {
+        // Frame methods run from flat list which is compiled when tree changes
+        if(CommonObject.IsFrameMethod(method_id) && root instanceof CommonObject && 
+           Main.p != null && Main.p.cfg.object_flat_dispatch) {
+            CommonObject root_co = (CommonObject)root;
+            Dispatch d = root_co.m_dispatch[method_id];
+            if(d == null || d.forward != forward) {
+                d = root_co.m_dispatch[method_id] = new Dispatch(method_id, forward);
+            }
+            d.Run(root, args, method_id == CommonObject.MTH_PREPARE && 
+                Main.p.cfg.object_parallel_prepare);
+            return;
+        }
+        CommonObject.WalkTree(root, forward, method_id, args);
+    }
+
+    // -------------------------------------------------------------------------
+    private static void WalkTree(Interfaces.ICommonObject root, boolean forward, 
       int method_id, Object[] args) {
         // Run own method before children
         if(!CommonObject.RunMethod(root, method_id, CommonObject.STAGE_PRE, args)) {
@@ -117,34 +691,46 @@ public class CommonObject implements Interfaces.ICommonObject {
             if(obj == null) break;
 
             // Walk children hierarchy
-            CommonObject.Walk(obj, forward, method_id, args);
+            CommonObject.WalkTree(obj, forward, method_id, args);
         }
 
         // Run own method after children
         CommonObject.RunMethod(root, method_id, CommonObject.STAGE_POST, args);
 
         // Delete expired children when render is over
-        CommonObject root_co = (CommonObject)root;
-        if(method_id == CommonObject.MTH_RENDER && root_co.m_expire_num > 0) {
-            Log.Debug("Deleting expired children :: name=%s expire_num=%d", 
-                root.GetNameId(), root_co.m_expire_num);
-
-            it = root.GetChildrenIt(true);
-            while(it.hasNext()) {
-                Interfaces.ICommonObject obj = it.next();
-                if(!obj.IsExpired()) {
-                    continue;
-                }
+        if(method_id == CommonObject.MTH_RENDER) {
+            CommonObject.DeleteExpired((CommonObject)root);
+        }
+    }
 
-                CommonObject.Walk(obj, true, CommonObject.MTH_DISPOSE, null);
-                it.remove();
-                root_co.m_expire_num--;
-                Log.Debug("Deleting expired child :: name=%s", obj.GetNameId());
+    // -------------------------------------------------------------------------
+    private static void DeleteExpired(CommonObject root) {
+        if(root.m_expire_num == 0) {
+            return;
+        }
+        if(CommonObject.async_dispatch != null) {
+            CommonObject.async_dispatch.AddChange(root, null);
+            return;
+        }
+        Log.Debug("Deleting expired children :: name=%s expire_num=%d", 
+            root.GetNameId(), root.m_expire_num);
+
+        ListIterator<Interfaces.ICommonObject> it = root.GetChildrenIt(true);
+        while(it.hasNext()) {
+            Interfaces.ICommonObject obj = it.next();
+            if(!obj.IsExpired()) {
+                continue;
             }
-            Utils.Assert(root_co.m_expire_num == 0, 
-                "Failed to deleted all expired children :: name=%s expired=%d", 
-                root.GetNameId(), root_co.m_expire_num);
+
+            CommonObject.Walk(obj, true, CommonObject.MTH_DISPOSE, null);
+            it.remove();
+            root.m_expire_num--;
+            CommonObject.tree_version++;
+            Log.Debug("Deleting expired child :: name=%s", obj.GetNameId());
         }
+        Utils.Assert(root.m_expire_num == 0, 
+            "Failed to deleted all expired children :: name=%s expired=%d", 
+            root.GetNameId(), root.m_expire_num);
     }
 
     // *************************************************************************
@@ -155,6 +741,11 @@ public class CommonObject implements Interfaces.ICommonObject {
     private String m_name, m_name_id;
     private LinkedList<Interfaces.ICommonObject> m_children;
     private CommonObject m_parent;
+    private Dispatch[] m_dispatch;
+    private boolean m_prepare_async;
+    private Interfaces.ICommonObject[] m_prepare_reads, m_prepare_writes;
+    private int m_prepare_task = -1;            // Async task of current dispatch
+    private int m_prepare_end = -1;             // Entry after prepare in compiled dispatch
 
     // -------------------------------------------------------------------------
     public CommonObject(String name) {
@@ -170,6 +761,7 @@ public class CommonObject implements Interfaces.ICommonObject {
 
         // List of children
         m_children = new LinkedList<Interfaces.ICommonObject>();
+        m_dispatch = new Dispatch[CommonObject.MTH_NUM];
     }
 
     // -------------------------------------------------------------------------
@@ -184,11 +776,19 @@ public class CommonObject implements Interfaces.ICommonObject {
 
     // -------------------------------------------------------------------------
     public CommonObject AddChild(CommonObject obj) {
+        // Added when async prepare is over
+        if(CommonObject.async_dispatch != null) {
+            CommonObject.async_dispatch.AddChange(this, obj);
+            return obj;
+        }
+
         Utils.Assert(!HasChild(obj), 
             "Failed to add child, child already present :: l=%s r=%s",
             GetNameId(), obj.GetNameId());
+        obj.m_parent = this;
 
         int priority = obj.GetPriority();
+        CommonObject.tree_version++;
 
         // Append to the end
         if(priority >= CommonObject.PRIO_LAST || 
@@ -209,11 +809,60 @@ public class CommonObject implements Interfaces.ICommonObject {
             }
             Utils.Assert(false, "Failed to add child :: l=%s", obj.GetNameId());
         }
-
-        obj.m_parent = this;
         return obj;
     }
 
+    // -------------------------------------------------------------------------
+    // Declares objects that prepare method reads and writes, object always 
+    // writes itself. Prepare of undeclared object waits for all objects before 
+    // it. Async object that reads object which is prepared later in tree waits 
+    // for its prepare to finish. Async prepare of object and its children runs 
+    // on worker thread, it must not touch GL, gui or children lists.
+    public void SetPrepareAccess(boolean is_async, Interfaces.ICommonObject[] reads, 
+      Interfaces.ICommonObject[] writes) {
+        m_prepare_async = is_async;
+        m_prepare_reads = (reads != null) ? reads : new Interfaces.ICommonObject[0];
+        m_prepare_writes = (writes != null) ? writes : new Interfaces.ICommonObject[0];
+    }
+
+    // -------------------------------------------------------------------------
+    private boolean IsPrepareAccess(Interfaces.ICommonObject obj) {
+        return obj == this || 
+            CommonObject.Contains(m_prepare_reads, obj) || 
+            CommonObject.Contains(m_prepare_writes, obj);
+    }
+
+    // -------------------------------------------------------------------------
+    // Prepare reads or writes member of given async task
+    private boolean IsPrepareTaskAccess(int task) {
+        for(Interfaces.ICommonObject o : m_prepare_reads) {
+            if(CommonObject.GetPrepareTask(o) == task) {
+                return true;
+            }
+        }
+        for(Interfaces.ICommonObject o : m_prepare_writes) {
+            if(CommonObject.GetPrepareTask(o) == task) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    private static int GetPrepareTask(Interfaces.ICommonObject obj) {
+        return (obj instanceof CommonObject) ? ((CommonObject)obj).m_prepare_task : -1;
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean IsDescendant(Interfaces.ICommonObject obj) {
+        for(CommonObject p = m_parent; p != null; p = p.m_parent) {
+            if(p == obj) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // *************************************************************************
     // Interfaces.ICommonObject
     // *************************************************************************
@@ -273,7 +922,10 @@ public class CommonObject implements Interfaces.ICommonObject {
     @Override public void Expire() {
         m_flags_co = UtilsFlags.SetFlag(m_flags_co, CommonObject.F_EXPIRED);
         if(m_parent != null) {
-            m_parent.m_expire_num++;
+            // Siblings might expire from async prepare
+            synchronized(m_parent) {
+                m_parent.m_expire_num++;
+            }
         }
         Log.Debug("Expiring object :: name=%s", GetNameId());
     }
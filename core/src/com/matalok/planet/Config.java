@@ -93,15 +93,51 @@ public class Config {
     public float bullet_altitude_limit_high = 2.0f;
     public float bullet_distance_limit      = 3.0f;
 
+    // *************************************************************************
+    // ENGINE
+    // *************************************************************************
+    public boolean engine_load_async       = true; // Level is built on worker thread
+    public boolean object_flat_dispatch    = true; // Frame methods run from flat list of overriding objects
+    public boolean object_parallel_prepare = true; // Async objects prepare on worker pool, needs flat dispatch
+
     // *************************************************************************
     // SPHERE
     // *************************************************************************
-    public int sphere_detail = 5;
+    public int     sphere_detail            = 5;
+    public boolean sphere_refine_parallel   = true;
+    public boolean sphere_smooth            = false; // Shared vertices, averaged normals
+    public boolean sphere_vertex_color      = false; // Surface as vertex color, one draw call per segment
+    public boolean sphere_optimize_indices  = true;  // Vertex cache friendly triangle order
+    public int     sphere_height_filter     = PixmapSampler.NEAREST;
+    public boolean sphere_height_tiles      = false; // Height map is read from memory mapped tiles
+    public int     sphere_height_tile_size  = 256;
+    public long    sphere_noise_seed        = 0;     // Procedural terrain instead of maps if not 0, disables cache & LOD
+    public int     sphere_noise_octaves     = 6;
+    public float   sphere_noise_frequency   = 1.5f;
+    public float   sphere_noise_sea_level   = 0.1f;  // Noise value in [-1, 1] range
+    public float   sphere_noise_height      = 0.04f; // Height of highest peak
+    public boolean sphere_bvh               = true;  // Triangle BVH for terrain collision, not used by LOD
+    public boolean sphere_grid              = true;  // Geodesic index for terrain height lookups
+    public boolean sphere_shared_topology   = false; // Connectivity is shared by spheres of same detail, disables deformation
+    public float   sphere_adaptive_error    = 0.0f;  // Adaptive refinement if above 0, max height map error in height map values
+    public boolean sphere_cache             = true;
+    public String  sphere_cache_dir         = "cache";
+    public boolean sphere_lod               = false; // Chunked LOD terrain
+    public int     sphere_lod_patch_detail  = 4;     // Patch side is 2^N grid steps
+    public int     sphere_lod_max_depth     = 8;
+    public float   sphere_lod_split_factor  = 3.0f;  // Split distance in patch radii
+    public float   sphere_lod_skirt         = 0.002f;
+    public int     sphere_lod_build_num     = 4;     // Patches built per frame
+    public int     sphere_lod_expire        = 120;   // Frames until unused patch is released
+    public boolean sphere_deformable        = false; // Keeps vertex store, disables cache & LOD
+    public float   sphere_deform_min_height = 0.9f;
+    public int     sphere_deform_bench      = 0;     // Random impacts per frame, debug only
 
     // *************************************************************************
     // RENDERER
     // *************************************************************************
-    public boolean renderer_shapes = true;
+    public boolean renderer_shapes       = true;
+    public boolean renderer_pack_vertices = false; // Compact GPU vertex format
 
     // *************************************************************************
     // INPUT-MAN
@@ -111,7 +147,9 @@ public class Config {
     // *************************************************************************
     // SHOOTER
     // *************************************************************************
-    public int shooter_timeout = 100;
+    public int   shooter_timeout       = 100;
+    public float shooter_crater_radius = 0.02f;     // Angular radius
+    public float shooter_crater_depth  = 0.005f;
 
     // *************************************************************************
     // SKYBOX
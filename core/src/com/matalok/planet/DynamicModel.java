@@ -20,12 +20,20 @@
 package com.matalok.planet;
 
 // -----------------------------------------------------------------------------
+import java.nio.ShortBuffer;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Mesh;
 import com.badlogic.gdx.graphics.VertexAttribute;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.graphics.glutils.IndexBufferObject;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.reflect.ClassReflection;
+import com.badlogic.gdx.utils.reflect.Field;
+import com.badlogic.gdx.utils.reflect.ReflectionException;
 
 // -----------------------------------------------------------------------------
 public abstract class DynamicModel 
@@ -46,28 +54,153 @@ public abstract class DynamicModel
     private static float VA_DBG_FILLER = 77.77f;
     private static short IA_DBG_FILLER = 77;
 
-    // Number of vertices/indices flushed during last call
-    public static int flushed_vertex_num = 0;
-    public static int flushed_index_num = 0;
+    // Number of vertex/index bytes flushed during last call
+    public static int flushed_vertex_bytes = 0;
+    public static int flushed_index_bytes = 0;
+
+    // -------------------------------------------------------------------------
+    // Mesh has no partial index update and uploads whole index buffer after 
+    // any write through getIndicesBuffer(). Index buffer object is reached 
+    // by reflection, so dirty ranges are uploaded with glBufferSubData().
+    private static Field mesh_indices, ibo_handle, ibo_dirty;
+    private static boolean is_ibo_reflected;
+    private static IndexBufferObject GetIndexBufferObject(Mesh mesh) {
+        try {
+            if(!DynamicModel.is_ibo_reflected) {
+                DynamicModel.is_ibo_reflected = true;
+                mesh_indices = ClassReflection.getDeclaredField(Mesh.class, "indices");
+                ibo_handle = ClassReflection.getDeclaredField(IndexBufferObject.class, "bufferHandle");
+                ibo_dirty = ClassReflection.getDeclaredField(IndexBufferObject.class, "isDirty");
+                mesh_indices.setAccessible(true);
+                ibo_handle.setAccessible(true);
+                ibo_dirty.setAccessible(true);
+            }
+            if(mesh_indices == null || ibo_handle == null || ibo_dirty == null) {
+                return null;
+            }
+            Object indices = DynamicModel.mesh_indices.get(mesh);
+            return (indices instanceof IndexBufferObject) ? (IndexBufferObject)indices : null;
+
+        } catch(ReflectionException ex) {
+            Log.Err("Failed to reach index buffer object, indices are fully uploaded :: err=%s", 
+                ex.getMessage());
+            mesh_indices = null;
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Handle is read on every flush, it changes when GL context is restored. 
+    // Dirty buffer is fully uploaded by next bind, so 0 is returned for it.
+    private static int GetIndexHandle(IndexBufferObject ibo) {
+        try {
+            if((Boolean)DynamicModel.ibo_dirty.get(ibo)) {
+                return 0;
+            }
+            return (Integer)DynamicModel.ibo_handle.get(ibo);
+        } catch(ReflectionException ex) {
+            return 0;
+        }
+    }
+
+    // *************************************************************************
+    // DynamicModel.DirtyRanges
+    // *************************************************************************
+    // Small list of modified array spans [begin, end). When list is full new
+    // span is merged with the closest one.
+    public static class DirtyRanges {
+        // ---------------------------------------------------------------------
+        public static final int MAX_RANGE_NUM = 4;
+
+        // ---------------------------------------------------------------------
+        private int[] m_begin, m_end;
+        private int m_num;
+
+        // ---------------------------------------------------------------------
+        public DirtyRanges() {
+            m_begin = new int[DirtyRanges.MAX_RANGE_NUM];
+            m_end = new int[DirtyRanges.MAX_RANGE_NUM];
+        }
+
+        // ---------------------------------------------------------------------
+        public boolean IsEmpty() { return m_num == 0; }
+        public int GetNum() { return m_num; }
+        public int GetBegin(int idx) { return m_begin[idx]; }
+        public int GetEnd(int idx) { return m_end[idx]; }
+        public void Clear() { m_num = 0; }
+
+        // ---------------------------------------------------------------------
+        public void Add(int begin, int end) {
+            // Merge with overlapping or touching ranges
+            for(int i = 0; i < m_num; i++) {
+                if(begin <= m_end[i] && end >= m_begin[i]) {
+                    begin = Math.min(begin, m_begin[i]);
+                    end = Math.max(end, m_end[i]);
+                    Remove(i--);
+                }
+            }
+
+            // Merge with closest range if list is full
+            if(m_num == DirtyRanges.MAX_RANGE_NUM) {
+                int closest = 0, closest_gap = Integer.MAX_VALUE;
+                for(int i = 0; i < m_num; i++) {
+                    int gap = (begin > m_end[i]) ? begin - m_end[i] : m_begin[i] - end;
+                    if(gap < closest_gap) {
+                        closest = i;
+                        closest_gap = gap;
+                    }
+                }
+                begin = Math.min(begin, m_begin[closest]);
+                end = Math.max(end, m_end[closest]);
+                Remove(closest);
+            }
+
+            m_begin[m_num] = begin;
+            m_end[m_num++] = end;
+        }
+
+        // ---------------------------------------------------------------------
+        private void Remove(int idx) {
+            m_num--;
+            m_begin[idx] = m_begin[m_num];
+            m_end[idx] = m_end[m_num];
+        }
+    }
 
     // *************************************************************************
     // DynamicModel
     // *************************************************************************
     protected float[] m_vertex_array;
     protected short[] m_index_array;
-    protected boolean m_is_dirty_vertex;
-    protected boolean m_is_dirty_index;
     protected ModelInstance m_model_inst;
 
     // -------------------------------------------------------------------------
     private Mesh m_mesh;
     private Model m_model;
     private int m_attrib_num;
+    private VertexPack m_pack;
+    private float[] m_packed_array;
+    private DirtyRanges m_dirty_vertex;
+    private DirtyRanges m_dirty_index;
+    private IndexBufferObject m_ibo;            // Null if indices are fully uploaded
+    private ShortBuffer m_index_buff;           // Client copy of index buffer
 
     // -------------------------------------------------------------------------
     public DynamicModel() {
-        // Initially mesh arrays are dirty
-        m_is_dirty_vertex = m_is_dirty_index = true;
+        m_dirty_vertex = new DirtyRanges();
+        m_dirty_index = new DirtyRanges();
+    }
+
+    // -------------------------------------------------------------------------
+    // Marks span of vertex array [begin, end) to be flushed
+    public void SetVertexDirty(int begin, int end) {
+        m_dirty_vertex.Add(begin, end);
+    }
+
+    // -------------------------------------------------------------------------
+    // Marks span of index array [begin, end) to be flushed
+    public void SetIndexDirty(int begin, int end) {
+        m_dirty_index.Add(begin, end);
     }
 
     // -------------------------------------------------------------------------
@@ -75,6 +208,22 @@ public abstract class DynamicModel
         return m_attrib_num;
     }
 
+    // -------------------------------------------------------------------------
+    // Optional compact GPU vertex format, should be set before building model
+    public void SetVertexPack(VertexPack pack) {
+        m_pack = pack;
+    }
+
+    // -------------------------------------------------------------------------
+    public VertexPack GetVertexPack() {
+        return m_pack;
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean HasModel() {
+        return m_model != null;
+    }
+
     // -------------------------------------------------------------------------
     public float[] CreateVertexArray(int size, boolean dbg_filler) {
         Utils.Assert(m_vertex_array == null, "Failed to create vertrex array");
@@ -92,6 +241,11 @@ public abstract class DynamicModel
         return m_vertex_array;
     }
 
+    // -------------------------------------------------------------------------
+    public short[] GetIndexArray() {
+        return m_index_array;
+    }
+
     // -------------------------------------------------------------------------
     public short[] CreateIndexArray(int size, boolean dbg_filler) {
         Utils.Assert(m_index_array == null, "Failed to create index array");
@@ -106,10 +260,11 @@ public abstract class DynamicModel
 
     // -------------------------------------------------------------------------
     public void BuildDynamicModel(VertexAttribute[] vertex_attrib) {
-        // Calculate number of attributes per vertex 
+        // Calculate number of attributes per vertex, packed color takes 
+        // single float
         m_attrib_num = 0;
         for(VertexAttribute a : vertex_attrib) {
-            m_attrib_num += a.numComponents;
+            m_attrib_num += a.getSizeInBytes() / 4;
         }
 
         // Hmmm...
@@ -123,14 +278,20 @@ public abstract class DynamicModel
         PrepareModel();
 
         // Create dynamic mesh
-        m_mesh = new Mesh(false, vertex_num, index_num, vertex_attrib);
-
-        // Bind vertex array
-        m_mesh.setVertices(m_vertex_array);
+        if(m_pack != null) {
+            m_mesh = new Mesh(false, vertex_num, index_num, m_pack.attributes);
+            m_packed_array = m_pack.Pack(m_vertex_array, null);
+            m_mesh.setVertices(m_packed_array);
+        } else {
+            m_mesh = new Mesh(false, vertex_num, index_num, vertex_attrib);
+            m_mesh.setVertices(m_vertex_array);
+        }
 
         // Bind optional index array
         if(m_index_array != null) {
             m_mesh.setIndices(m_index_array);
+            m_index_buff = m_mesh.getIndicesBuffer();
+            m_ibo = DynamicModel.GetIndexBufferObject(m_mesh);
         }
 
         // Begin model builder
@@ -143,17 +304,43 @@ public abstract class DynamicModel
         // Finish model
         m_model = mb.end();
 
-        // Create model instance
+        // Create model instance, packed positions are relative to mesh center
         m_model_inst = new ModelInstance(m_model);
+        if(m_pack != null) {
+            m_pack.GetTransform(m_model_inst.transform);
+        }
 
         // 3) Finalize model
         FinalizeModel(m_model_inst);
+
+        // Mesh holds up-to-date arrays
+        m_dirty_vertex.Clear();
+        m_dirty_index.Clear();
     }
 
     // -------------------------------------------------------------------------
     private int FlushVertices() {
-        m_mesh.updateVertices(0, m_vertex_array);
-        return m_vertex_array.length / m_attrib_num;
+        int bytes = 0;
+        for(int i = 0; i < m_dirty_vertex.GetNum(); i++) {
+            int begin = m_dirty_vertex.GetBegin(i),
+                end = m_dirty_vertex.GetEnd(i);
+
+            if(m_pack != null) {
+                // Repack whole vertices covered by range
+                int first = begin / m_attrib_num,
+                    last = (end + m_attrib_num - 1) / m_attrib_num,
+                    pack_num = m_pack.attrib_num;
+                m_pack.Pack(m_vertex_array, m_packed_array, first, last - first);
+                m_mesh.updateVertices(first * pack_num, m_packed_array, 
+                    first * pack_num, (last - first) * pack_num);
+                bytes += (last - first) * pack_num * 4;
+
+            } else {
+                m_mesh.updateVertices(begin, m_vertex_array, begin, end - begin);
+                bytes += (end - begin) * 4;
+            }
+        }
+        return bytes;
     }
 
     // -------------------------------------------------------------------------
@@ -162,22 +349,53 @@ public abstract class DynamicModel
             return 0;
         }
 
-        m_mesh.setIndices(m_index_array);
-        return m_index_array.length;
+        // Ranges are written to client copy and uploaded to buffer object, 
+        // if it's not reachable whole buffer is uploaded by next bind
+        int handle = (m_ibo != null) ? DynamicModel.GetIndexHandle(m_ibo) : 0;
+        ShortBuffer buff = (handle != 0) ? m_index_buff : m_mesh.getIndicesBuffer();
+        int limit = buff.limit(), bytes = 0;
+        if(handle != 0) {
+            Gdx.gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, handle);
+        }
+        for(int i = 0; i < m_dirty_index.GetNum(); i++) {
+            int begin = m_dirty_index.GetBegin(i),
+                end = m_dirty_index.GetEnd(i);
+            buff.limit(end);
+            buff.position(begin);
+            buff.put(m_index_array, begin, end - begin);
+            if(handle != 0) {
+                buff.position(begin);
+                Gdx.gl.glBufferSubData(GL20.GL_ELEMENT_ARRAY_BUFFER, begin * 2, 
+                    (end - begin) * 2, buff);
+                bytes += (end - begin) * 2;
+            }
+        }
+        buff.limit(limit);
+        buff.position(0);
+
+        if(handle != 0) {
+            Gdx.gl.glBindBuffer(GL20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        } else if(!m_dirty_index.IsEmpty()) {
+            bytes = limit * 2;
+        }
+        return bytes;
     }
 
     // -------------------------------------------------------------------------
     public boolean FlushMeshArrays() {
-        if(!m_is_dirty_vertex && !m_is_dirty_index) {
+        // Arrays of model that is not built yet go to mesh when it's built
+        if(m_mesh == null || 
+          (m_dirty_vertex.IsEmpty() && m_dirty_index.IsEmpty())) {
             return false;
         }
 
         // Flush
-        DynamicModel.flushed_vertex_num = (m_is_dirty_vertex) ? FlushVertices() : 0;
-        DynamicModel.flushed_index_num = (m_is_dirty_index) ? FlushIndices() : 0;
+        DynamicModel.flushed_vertex_bytes = FlushVertices();
+        DynamicModel.flushed_index_bytes = FlushIndices();
 
-        // Reset dirty flags 
-        m_is_dirty_vertex = m_is_dirty_index = false;
+        // Reset dirty ranges
+        m_dirty_vertex.Clear();
+        m_dirty_index.Clear();
         return true;
     }
 
@@ -186,6 +404,13 @@ public abstract class DynamicModel
     // *************************************************************************
     @Override public void dispose() {
         CleanupModel();
-        m_model.dispose();
+        if(m_model != null) {
+            m_model.dispose();
+            m_model = null;
+        }
+        m_mesh = null;
+        m_ibo = null;
+        m_index_buff = null;
+        m_packed_array = null;
     }
 }
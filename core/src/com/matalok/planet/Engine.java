@@ -20,6 +20,10 @@
 package com.matalok.planet;
 
 //-----------------------------------------------------------------------------
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector3;
@@ -40,36 +44,208 @@ public class Engine
     public Shooter shooter;
     public Skybox skybox;
 
+    // -------------------------------------------------------------------------
+    // Level loading
+    private ExecutorService m_loader_pool;
+    private Future<?> m_loader;
+    private volatile boolean m_is_cancelled;
+    private volatile Throwable m_load_error;
+    private boolean m_is_loading;
+    private int m_load_id;
+    private long m_load_start;
+    private String m_load_msg;
+
     // -------------------------------------------------------------------------
     public Engine() {
         super("engine");
     }
 
     // -------------------------------------------------------------------------
-    public void Start(String height_map, String surface_map, 
+    public boolean IsLoading() {
+        return m_is_loading;
+    }
+
+    // -------------------------------------------------------------------------
+    // Level is built in two stages. CPU stage builds mesh arrays and path on
+    // worker thread while frames keep running. GL stage creates meshes on 
+    // render thread when EVT_LEVEL_READY is fired.
+    public void Start(final String height_map, final String surface_map, 
+      final String surface_palette, final float max_height) {
+        CancelLoading();
+        m_is_loading = true;
+        m_load_id++;
+        m_load_start = System.currentTimeMillis();
+        m_load_msg = "0%";
+        m_load_error = null;
+
+        final String load_id = Integer.toString(m_load_id);
+        Runnable job = new Runnable() {
+            @Override public void run() {
+                try {
+                    Load(height_map, surface_map, surface_palette, max_height);
+                } catch(Throwable ex) {
+                    m_load_error = ex;
+                }
+                if(!m_is_cancelled) {
+                    Main.p.scheduler.PostEvent(Scheduler.EVT_LEVEL_READY, load_id);
+                }
+            }
+        };
+        if(Main.p.cfg.engine_load_async) {
+            if(m_loader_pool == null) {
+                m_loader_pool = Executors.newSingleThreadExecutor();
+            }
+            m_loader = m_loader_pool.submit(job);
+        } else {
+            job.run();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Waits until worker notices cancellation, level objects are not touched
+    // by worker after this call
+    private void CancelLoading() {
+        if(m_loader != null) {
+            m_is_cancelled = true;
+            try { m_loader.get(); } catch(Exception ex) { }
+            m_is_cancelled = false;
+            m_loader = null;
+            Log.Info("Level loading cancelled :: id=%d", m_load_id);
+        }
+        m_is_loading = false;
+    }
+
+    // -------------------------------------------------------------------------
+    private void PostProgress(int percent, String stage) {
+        Main.p.scheduler.PostEvent(Scheduler.EVT_LOAD_PROGRESS, 
+            String.format("%d%% %s", percent, stage));
+    }
+
+    // -------------------------------------------------------------------------
+    // CPU stage, runs on worker thread
+    private void Load(String height_map, String surface_map, 
       String surface_palette, float max_height) {
         //
         // Sphere
         //
+        PostProgress(0, "sphere");
+        long start = System.currentTimeMillis();
+        int refine_lvl = Main.p.cfg.sphere_detail;
+
+        // Sphere mesh depends on refine level and source textures
+        SphereCache cache = null;
+        boolean deformable = Main.p.cfg.sphere_deformable,
+                procedural = (Main.p.cfg.sphere_noise_seed != 0),
+                adaptive = (Main.p.cfg.sphere_adaptive_error > 0.0f && !procedural);
+        if(Main.p.cfg.sphere_cache && !Main.p.cfg.sphere_lod && !deformable && !procedural) {
+            long checksum = SphereCache.GetChecksum(refine_lvl, 
+                Main.p.cfg.sphere_smooth, Main.p.cfg.sphere_vertex_color, 
+                Main.p.cfg.sphere_height_filter, max_height, 
+                (adaptive) ? Main.p.cfg.sphere_adaptive_error : 0.0f, 
+                Main.p.ass_man.GetFile(height_map), 
+                Main.p.ass_man.GetFile(surface_map), 
+                Main.p.ass_man.GetFile(surface_palette));
+            cache = new SphereCache(SphereCache.GetFile(
+                Main.p.cfg.sphere_cache_dir, refine_lvl, checksum), refine_lvl, checksum);
+        }
 
-        // Sphere textures
-        Pixmap hm = Main.p.ass_man.GetPixmap(height_map),
-               sm = Main.p.ass_man.GetPixmap(surface_map);
-
-        // Update height & surface
-        sphere.ReadHeightmap(hm, max_height);
-        sphere.ReadSuface(sm, 
-            new Palette(Main.p.ass_man.GetFile(surface_palette)));
+        // Build sphere if it's not cached
+        if(Main.p.cfg.sphere_lod && !deformable && !procedural) {
+            // LOD patches are built on demand from sphere textures
+            Pixmap hm = Main.p.ass_man.GetPixmap(height_map),
+                   sm = Main.p.ass_man.GetPixmap(surface_map);
+            sphere.CreateLod(hm, sm, 
+                new Palette(Main.p.ass_man.GetFile(surface_palette)), max_height);
+            hm.dispose();
+            sm.dispose();
+
+        } else if(cache == null || !cache.Read(sphere)) {
+            if(adaptive) {
+                // Triangles are refined only where they miss height map
+                Pixmap hm = Main.p.ass_man.GetPixmap(height_map);
+                sphere.CreateAdaptive(refine_lvl, Main.p.cfg.sphere_smooth, 
+                    Main.p.cfg.sphere_vertex_color, new PixmapSampler(hm), 
+                    Main.p.cfg.sphere_height_filter, Main.p.cfg.sphere_adaptive_error, 
+                    Main.p.cfg.sphere_refine_parallel);
+                hm.dispose();
+                if(m_is_cancelled) {
+                    return;
+                }
+                PostProgress(40, "sphere finalize");
+                sphere.Finalize();
+
+            } else if(Main.p.cfg.sphere_shared_topology && !deformable) {
+                // Refinement is skipped if topology was already built
+                sphere.Create(SphereTopology.Get(refine_lvl, 
+                    Main.p.cfg.sphere_refine_parallel, Main.p.cfg.sphere_smooth, 
+                    Main.p.cfg.sphere_vertex_color));
+            } else {
+                sphere.Create(refine_lvl, Main.p.cfg.sphere_refine_parallel, 
+                    Main.p.cfg.sphere_smooth, Main.p.cfg.sphere_vertex_color);
+                if(m_is_cancelled) {
+                    return;
+                }
+                PostProgress(40, "sphere finalize");
+                sphere.Finalize();
+            }
+            if(m_is_cancelled) {
+                return;
+            }
+
+            // Procedural terrain does not need any textures
+            if(procedural) {
+                PostProgress(60, "sphere terrain");
+                sphere.Generate(new SphereNoise(Main.p.cfg.sphere_noise_seed, 
+                    Main.p.cfg.sphere_noise_octaves, Main.p.cfg.sphere_noise_frequency, 
+                    Main.p.cfg.sphere_noise_sea_level), Main.p.cfg.sphere_noise_height);
+            } else {
+                // Update height, tiles are converted from height map once
+                PostProgress(60, "sphere height");
+                HeightTiles ht = (!Main.p.cfg.sphere_height_tiles) ? null : 
+                    HeightTiles.Load(Main.p.ass_man.GetFile(height_map), 
+                        HeightTiles.GetFile(Main.p.cfg.sphere_cache_dir, height_map), 
+                        Main.p.cfg.sphere_height_tile_size);
+                if(ht != null) {
+                    sphere.ReadHeightmap(ht, max_height);
+                    Log.Info("Height tiles read :: mapped=%d/%d", 
+                        ht.GetMappedNum(), ht.GetTileNum());
+                    ht.Dispose();
+                } else {
+                    Pixmap hm = Main.p.ass_man.GetPixmap(height_map);
+                    sphere.ReadHeightmap(hm, max_height);
+                    hm.dispose();
+                }
+
+                // Update surface
+                PostProgress(75, "sphere surface");
+                Pixmap sm = Main.p.ass_man.GetPixmap(surface_map);
+                sphere.ReadSuface(sm, 
+                    new Palette(Main.p.ass_man.GetFile(surface_palette)));
+                sm.dispose();
+            }
+
+            // Cache sphere mesh
+            if(cache != null) {
+                PostProgress(85, "sphere cache");
+                cache.Write(sphere);
+            }
+        }
+        if(Main.p.cfg.sphere_bvh) {
+            sphere.BuildBvh();
+        }
+        Log.Info("Sphere ready :: lvl=%d duration=%d", 
+            refine_lvl, System.currentTimeMillis() - start);
 
-        // Dispose sphere textures
-        hm.dispose();
-        sm.dispose();
+        if(m_is_cancelled) {
+            return;
+        }
 
         //
         // Path
         //
 
         // Create path
+        PostProgress(90, "path");
         float h = 1.2f, 
               h_max = 0.1f,
               lat = 15.0f;
@@ -86,6 +262,26 @@ public class Engine
 
         path.MakeLoop();
         path.Log();
+        PostProgress(100, "models");
+    }
+
+    // -------------------------------------------------------------------------
+    // GL stage, runs on render thread
+    private void OnLevelReady(String load_id) {
+        // Event of cancelled level
+        if(!m_is_loading || !load_id.equals(Integer.toString(m_load_id))) {
+            return;
+        }
+        m_loader = null;
+        Utils.Assert(m_load_error == null, "Failed to load level :: ex=%s", 
+            String.valueOf(m_load_error));
+
+        long start = System.currentTimeMillis();
+        sphere.BuildModels();
+        path.BuildModels();
+        m_is_loading = false;
+        Log.Info("Level ready :: duration=%d gl_duration=%d", 
+            System.currentTimeMillis() - m_load_start, System.currentTimeMillis() - start);
     }
 
     // *************************************************************************
@@ -107,6 +303,10 @@ public class Engine
 
             // Sphere
             sphere = (Sphere)AddChild(new Sphere());
+            if(Main.p.cfg.sphere_deform_bench > 0) {
+                sphere.AddChild(new SphereDeformBench(sphere, 
+                    Main.p.cfg.sphere_deform_bench));
+            }
 
             // Path
             path = (Path)AddChild(new Path());
@@ -139,12 +339,6 @@ public class Engine
             //
             ship.SetModel(Main.p.ass_man.GetModel(Main.p.cfg.asset_model_ship));
 
-            //
-            // Sphere
-            //
-            sphere.Create(Main.p.cfg.sphere_detail);
-            sphere.Finalize();
-
             //
             // Camera
             //
@@ -177,10 +371,47 @@ public class Engine
         return true;
     }
 
+    // -------------------------------------------------------------------------
+    @Override public boolean OnReset(int stage, Object[] args) {
+        // Worker should not touch level objects while they are reset
+        if(stage == CommonObject.STAGE_PRE) {
+            CancelLoading();
+        }
+        return true;
+    }
+
     // -------------------------------------------------------------------------
     @Override public boolean OnPrepare(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_PRE) {
             Main.p.renderer.SetCamera(ship_camera);
+
+            // Level objects are skipped until level is loaded
+            if(m_is_loading) {
+                Main.p.gui.WriteMsg("loading level: %s", m_load_msg);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    @Override public boolean OnRender(int stage, Object[] args) {
+        return (stage != CommonObject.STAGE_PRE || !m_is_loading);
+    }
+
+    // -------------------------------------------------------------------------
+    @Override public boolean OnShape(int stage, Object[] args) {
+        return (stage != CommonObject.STAGE_PRE || !m_is_loading);
+    }
+
+    // -------------------------------------------------------------------------
+    @Override public boolean OnDispose(int stage, Object[] args) {
+        if(stage == CommonObject.STAGE_PRE) {
+            CancelLoading();
+            if(m_loader_pool != null) {
+                m_loader_pool.shutdown();
+                m_loader_pool = null;
+            }
         }
         return true;
     }
@@ -199,6 +430,17 @@ public class Engine
             case Scheduler.EVT_CAMERA_LOCK:
                 ship_camera.FlagUnset(ShipCamera.F_TARGET_LOCKED);
             break;
+
+            // -----------------------------------------------------------------
+            case Scheduler.EVT_LOAD_PROGRESS:
+                m_load_msg = ((Scheduler.Event)event).arg;
+                Log.Info("Loading level :: progress=%s", m_load_msg);
+            break;
+
+            // -----------------------------------------------------------------
+            case Scheduler.EVT_LEVEL_READY:
+                OnLevelReady(((Scheduler.Event)event).arg);
+            break;
         }
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+
+// -----------------------------------------------------------------------------
+// Height map stored as raw square tiles of red channel, tiles are memory
+// mapped only when texels inside them are sampled. File layout:
+//  *** header - magic, version, width, height, tile size, source checksum
+//  *** tiles  - row by row, each tile is 'tile size ^ 2' bytes, border tiles
+//               are padded to full size
+public class HeightTiles 
+  extends PixmapSampler {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int MAGIC           = 0x48544C53; // "HTLS"
+    public static final int VERSION         = 1;
+    public static final int HEADER_SIZE     = 6 * 4;
+
+    // -------------------------------------------------------------------------
+    public static long GetChecksum(FileHandle src, int tile_size) {
+        CRC32 crc = new CRC32();
+        SphereCache.UpdateChecksum(crc, src);
+        crc.update(new byte[] {
+            (byte)(tile_size >> 24), (byte)(tile_size >> 16),
+            (byte)(tile_size >> 8), (byte)tile_size});
+        return crc.getValue();
+    }
+
+    // -------------------------------------------------------------------------
+    public static FileHandle GetFile(String dir, String src) {
+        return Gdx.files.local(dir).child(src + ".tiles");
+    }
+
+    // -------------------------------------------------------------------------
+    // Opens tiles converted from 'src' height map, conversion is done if tiles
+    // do not exist or are outdated
+    public static HeightTiles Load(FileHandle src, FileHandle dest, int tile_size) {
+        long checksum = HeightTiles.GetChecksum(src, tile_size);
+        HeightTiles tiles = HeightTiles.Open(dest, checksum);
+        if(tiles == null && HeightTiles.Convert(src, dest, tile_size)) {
+            tiles = HeightTiles.Open(dest, checksum);
+        }
+        return tiles;
+    }
+
+    // -------------------------------------------------------------------------
+    public static boolean Convert(FileHandle src, FileHandle dest, int tile_size) {
+        long start = System.currentTimeMillis();
+        Pixmap map = new Pixmap(src);
+        PixmapSampler sampler = new PixmapSampler(map);
+        int width = map.getWidth(), height = map.getHeight(),
+            tiles_x = (width + tile_size - 1) / tile_size,
+            tiles_y = (height + tile_size - 1) / tile_size;
+
+        RandomAccessFile raf = null;
+        try {
+            dest.parent().mkdirs();
+            long size = HeightTiles.HEADER_SIZE + (long)tiles_x * tiles_y * tile_size * tile_size;
+
+            // Map whole file
+            raf = new RandomAccessFile(dest.file(), "rw");
+            raf.setLength(size);
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Header
+            buff.putInt(HeightTiles.MAGIC);
+            buff.putInt(HeightTiles.VERSION);
+            buff.putInt(width);
+            buff.putInt(height);
+            buff.putInt(tile_size);
+            buff.putInt((int)HeightTiles.GetChecksum(src, tile_size));
+
+            // Tiles
+            for(int ty = 0; ty < tiles_y; ty++) {
+                for(int tx = 0; tx < tiles_x; tx++) {
+                    for(int y = ty * tile_size; y < (ty + 1) * tile_size; y++) {
+                        for(int x = tx * tile_size; x < (tx + 1) * tile_size; x++) {
+                            buff.put((x < width && y < height) ? 
+                                (byte)(sampler.GetPixel(x, y) >>> 24) : 0);
+                        }
+                    }
+                }
+            }
+            buff.force();
+            Log.Info("Height tiles converted :: src=%s dest=%s map=%dx%d tiles=%dx%d duration=%d", 
+                src.path(), dest.path(), width, height, tiles_x, tiles_y, 
+                System.currentTimeMillis() - start);
+            return true;
+
+        } catch(Exception ex) {
+            Log.Err("Failed to convert height tiles :: src=%s dest=%s ex=%s",
+                src.path(), dest.path(), ex.toString());
+            try { if(raf != null) raf.close(); raf = null; } catch(Exception e) { }
+            dest.delete();
+            return false;
+
+        } finally {
+            try { if(raf != null) raf.close(); } catch(Exception ex) { }
+            map.dispose();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public static HeightTiles Open(FileHandle file, long checksum) {
+        if(!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            // Validate header
+            raf = new RandomAccessFile(file.file(), "r");
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_ONLY, 0, 
+                HeightTiles.HEADER_SIZE);
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buff.getInt(),
+                version = buff.getInt(),
+                width = buff.getInt(),
+                height = buff.getInt(),
+                tile_size = buff.getInt(),
+                file_checksum = buff.getInt();
+            if(magic != HeightTiles.MAGIC || version != HeightTiles.VERSION ||
+               file_checksum != (int)checksum) {
+                Log.Err("Failed to open height tiles, header mismatch :: file=%s ver=%d", 
+                    file.path(), version);
+                raf.close();
+                return null;
+            }
+
+            // Channel stays open until tiles are disposed
+            Log.Info("Height tiles opened :: file=%s map=%dx%d tile=%d", 
+                file.path(), width, height, tile_size);
+            return new HeightTiles(raf, width, height, tile_size);
+
+        } catch(Exception ex) {
+            Log.Err("Failed to open height tiles :: file=%s ex=%s",
+                file.path(), ex.toString());
+            try { if(raf != null) raf.close(); } catch(Exception e) { }
+            return null;
+        }
+    }
+
+    // *************************************************************************
+    // HeightTiles
+    // *************************************************************************
+    private RandomAccessFile m_raf;
+    private MappedByteBuffer[] m_tiles;
+    private int m_tile_size, m_tiles_x, m_mapped_num;
+
+    // -------------------------------------------------------------------------
+    private HeightTiles(RandomAccessFile raf, int width, int height, int tile_size) {
+        super(width, height);
+        m_raf = raf;
+        m_tile_size = tile_size;
+        m_tiles_x = (width + tile_size - 1) / tile_size;
+        m_tiles = new MappedByteBuffer[m_tiles_x * ((height + tile_size - 1) / tile_size)];
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetMappedNum() {
+        return m_mapped_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetTileNum() {
+        return m_tiles.length;
+    }
+
+    // -------------------------------------------------------------------------
+    private synchronized MappedByteBuffer MapTile(int idx) {
+        if(m_tiles[idx] != null) {
+            return m_tiles[idx];
+        }
+
+        try {
+            long tile_bytes = (long)m_tile_size * m_tile_size;
+            m_tiles[idx] = m_raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 
+                HeightTiles.HEADER_SIZE + idx * tile_bytes, tile_bytes);
+            m_mapped_num++;
+        } catch(Exception ex) {
+            Utils.Assert(false, "Failed to map height tile :: tile=%d ex=%s", 
+                idx, ex.toString());
+        }
+        return m_tiles[idx];
+    }
+
+    // -------------------------------------------------------------------------
+    private void MapTile(int x, int y) {
+        x = (x % m_width + m_width) % m_width;
+        y = (y < 0) ? 0 : (y >= m_height) ? m_height - 1 : y;
+        int idx = (y / m_tile_size) * m_tiles_x + x / m_tile_size;
+        if(m_tiles[idx] == null) {
+            MapTile(idx);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void Dispose() {
+        // Mapped tiles are released by garbage collector
+        m_tiles = null;
+        try { m_raf.close(); } catch(Exception ex) { }
+    }
+
+    // *************************************************************************
+    // PixmapSampler
+    // *************************************************************************
+    @Override protected boolean IsThreadSafe() {
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Tiles are mapped in advance so that parallel tasks only read them,
+    // neighbour texels are included for bilinear filter
+    @Override protected void Prepare(float[] uv, int num) {
+        for(int i = 0; i < num; i++) {
+            int x = GetX(uv[i * 2 + 0]), y = GetY(uv[i * 2 + 1]);
+            MapTile(x - 1, y - 1);
+            MapTile(x + 1, y - 1);
+            MapTile(x - 1, y + 1);
+            MapTile(x + 1, y + 1);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Only red channel is stored, it's repeated in other color channels
+    @Override public int GetPixel(int x, int y) {
+        int idx = (y / m_tile_size) * m_tiles_x + x / m_tile_size;
+        MappedByteBuffer tile = m_tiles[idx];
+        if(tile == null) {
+            tile = MapTile(idx);
+        }
+        int r = tile.get((y % m_tile_size) * m_tile_size + x % m_tile_size) & 0xFF;
+        return (r << 24) | (r << 16) | (r << 8) | 0xFF;
+    }
+}
@@ -59,6 +59,8 @@ public class Interfaces {
     public interface ICamera {
         public void UpdateCamera();
         public boolean TestBackfaceCulling(Vector3 norm, Vector3 pos, float threshold);
+        public boolean TestFrustumCulling(Vector3 center, float radius);
+        public boolean TestConeCulling(Vector3 apex, Vector3 axis, float cutoff);
     }
 
     // -------------------------------------------------------------------------
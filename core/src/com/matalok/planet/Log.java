@@ -43,7 +43,8 @@ public class Log {
     }
 
     // -------------------------------------------------------------------------
-    public static void Raw(String lvl, String fmt, Object... args) {
+    // Worker threads log too, lines are not mixed
+    public static synchronized void Raw(String lvl, String fmt, Object... args) {
         if(Main.p != null) {
             float time = Utils.MsecToSec(Main.p.time_man.GetCur());
             System.out.printf("%s :: %s :: ", m_formatter.format(time), lvl);
@@ -256,6 +256,17 @@ public class Path
         }
     }
 
+    // -------------------------------------------------------------------------
+    // Segments are created without GPU resources, models are built by render
+    // thread
+    public void BuildModels() {
+        for(int i = 0; i < m_segment_num; i++) {
+            if(!m_segments[i].seg_model.HasModel()) {
+                m_segments[i].BuildModels();
+            }
+        }
+    }
+
     // -------------------------------------------------------------------------
     public float GetLength() {
         return (m_segment_num > 0) ? m_segments[m_segment_num - 1].GetEnd() : 0.0f;
@@ -329,7 +340,9 @@ public class Path
     @Override public boolean OnDispose(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_POST) {
             for(int i = 0; i < m_segment_num; i++) {
-                m_segments[i].seg_model.dispose();
+                if(m_segments[i].seg_model.HasModel()) {
+                    m_segments[i].seg_model.dispose();
+                }
             }
         }
         return true;
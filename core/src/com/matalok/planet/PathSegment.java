@@ -80,8 +80,17 @@ public class PathSegment
 
         // Build vertex array for normal-model
         CreateNormalVertexArray(normal_size);
+    }
 
-        // Finalize dynamic models
+    // -------------------------------------------------------------------------
+    // Creates GPU meshes, should be called by render thread
+    public void BuildModels() {
+        if(Main.p.cfg.renderer_pack_vertices) {
+            seg_model.SetVertexPack(new VertexPack(PathSegment.VERTEX_ATTRIB)
+                .FitBounds(seg_model.GetVertexArray(), null, 0.0f));
+            nor_model.SetVertexPack(new VertexPack(PathSegment.VERTEX_ATTRIB)
+                .FitBounds(nor_model.GetVertexArray(), null, 0.0f));
+        }
         seg_model.BuildDynamicModel(PathSegment.VERTEX_ATTRIB);
         nor_model.BuildDynamicModel(PathSegment.VERTEX_ATTRIB);
     }
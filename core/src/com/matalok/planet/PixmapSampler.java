@@ -0,0 +1,264 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveAction;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+// -----------------------------------------------------------------------------
+// Bulk pixmap sampler. Pixels are decoded straight from pixmap buffer instead
+// of calling Pixmap.getPixel() for each of them, colors are returned in same
+// RGBA8888 form as Pixmap.getPixel(). Texture coordinates are in [0, 1] range,
+// horizontal axis wraps around, vertical axis is clamped. Subclasses might
+// read pixels from other sources.
+public class PixmapSampler {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int NEAREST         = 0;
+    public static final int BILINEAR        = 1;
+    public static final int TASK_SIZE       = 16 * 1024; // Texels per parallel task
+
+    // *************************************************************************
+    // PixmapSampler
+    // *************************************************************************
+    protected int m_width, m_height;
+    private Pixmap m_map;
+    private ByteBuffer m_pixels;
+    private Pixmap.Format m_format;
+    private int m_pixel_size;
+
+    // -------------------------------------------------------------------------
+    // Subclasses provide their own pixels
+    protected PixmapSampler(int width, int height) {
+        m_width = width;
+        m_height = height;
+    }
+
+    // -------------------------------------------------------------------------
+    public PixmapSampler(Pixmap map) {
+        m_map = map;
+        m_pixels = map.getPixels();
+        m_format = map.getFormat();
+        m_width = map.getWidth();
+        m_height = map.getHeight();
+        switch(m_format) {
+            case Alpha: case Intensity:         m_pixel_size = 1; break;
+            case LuminanceAlpha: case RGB565:
+            case RGBA4444:                      m_pixel_size = 2; break;
+            case RGB888:                        m_pixel_size = 3; break;
+            case RGBA8888:                      m_pixel_size = 4; break;
+            default:                            m_pixel_size = 0; break;
+        }
+        if(m_pixel_size == 0) {
+            Log.Err("Unsupported pixmap format, falling back to getPixel() :: format=%s", 
+                m_format.toString());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetWidth() {
+        return m_width;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetHeight() {
+        return m_height;
+    }
+
+    // -------------------------------------------------------------------------
+    // Same conversion as native gdx2d pixmap code
+    public int GetPixel(int x, int y) {
+        if(m_pixel_size == 0) {
+            return m_map.getPixel(x, y);
+        }
+
+        int p = (y * m_width + x) * m_pixel_size;
+        switch(m_format) {
+            case Alpha: case Intensity: {
+                return 0xFFFFFF00 | (m_pixels.get(p) & 0xFF);
+            }
+            case LuminanceAlpha: {
+                int l = m_pixels.get(p) & 0xFF;
+                return (l << 24) | (l << 16) | (l << 8) | (m_pixels.get(p + 1) & 0xFF);
+            }
+            case RGB565: {
+                int c = (m_pixels.get(p) & 0xFF) | ((m_pixels.get(p + 1) & 0xFF) << 8);
+                return ((((c >> 11) & 0x1F) * 255 / 31) << 24) | 
+                    ((((c >> 5) & 0x3F) * 255 / 63) << 16) | 
+                    (((c & 0x1F) * 255 / 31) << 8) | 0xFF;
+            }
+            case RGBA4444: {
+                int c = (m_pixels.get(p) & 0xFF) | ((m_pixels.get(p + 1) & 0xFF) << 8);
+                return ((((c >> 12) & 0xF) * 17) << 24) | ((((c >> 8) & 0xF) * 17) << 16) | 
+                    ((((c >> 4) & 0xF) * 17) << 8) | ((c & 0xF) * 17);
+            }
+            case RGB888: {
+                return ((m_pixels.get(p) & 0xFF) << 24) | ((m_pixels.get(p + 1) & 0xFF) << 16) | 
+                    ((m_pixels.get(p + 2) & 0xFF) << 8) | 0xFF;
+            }
+            default: {
+                return ((m_pixels.get(p) & 0xFF) << 24) | ((m_pixels.get(p + 1) & 0xFF) << 16) | 
+                    ((m_pixels.get(p + 2) & 0xFF) << 8) | (m_pixels.get(p + 3) & 0xFF);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Pixmap.getPixel() fallback is not thread safe
+    protected boolean IsThreadSafe() {
+        return m_pixel_size != 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Called before texture coordinates are sampled
+    protected void Prepare(float[] uv, int num) {
+    }
+
+    // -------------------------------------------------------------------------
+    protected int GetX(float u) {
+        int x = (int)(u * m_width);
+        return (x >= m_width) ? m_width - 1 : (x < 0) ? 0 : x;
+    }
+
+    // -------------------------------------------------------------------------
+    protected int GetY(float v) {
+        int y = (int)(v * m_height);
+        return (y >= m_height) ? m_height - 1 : (y < 0) ? 0 : y;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetRgba(float u, float v) {
+        return GetPixel(GetX(u), GetY(v));
+    }
+
+    // -------------------------------------------------------------------------
+    // Red channel as signed byte, the way height map is stored
+    public float GetRed(float u, float v, int mode) {
+        if(mode == PixmapSampler.NEAREST) {
+            return GetPixel(GetX(u), GetY(v)) >> 24;
+        }
+
+        // Four closest texel centers
+        float x = u * m_width - 0.5f, y = v * m_height - 0.5f;
+        int x0 = (int)Math.floor(x), y0 = (int)Math.floor(y);
+        float fx = x - x0, fy = y - y0;
+        int x1 = x0 + 1, y1 = y0 + 1;
+        x0 = (x0 % m_width + m_width) % m_width;
+        x1 = x1 % m_width;
+        y0 = (y0 < 0) ? 0 : y0;
+        y1 = (y1 >= m_height) ? m_height - 1 : y1;
+
+        float top = 
+            (GetPixel(x0, y0) >> 24) * (1.0f - fx) + (GetPixel(x1, y0) >> 24) * fx;
+        float bottom = 
+            (GetPixel(x0, y1) >> 24) * (1.0f - fx) + (GetPixel(x1, y1) >> 24) * fx;
+        return top * (1.0f - fy) + bottom * fy;
+    }
+
+    // -------------------------------------------------------------------------
+    // Samples colors at 'num' texture coordinates stored as [u, v] pairs
+    public int[] SampleRgba(float[] uv, int num, boolean parallel) {
+        int[] dest = new int[num];
+        Run(new SampleTask(this, uv, dest, null, PixmapSampler.NEAREST, 0, num), 
+            parallel);
+        return dest;
+    }
+
+    // -------------------------------------------------------------------------
+    // Samples red channel at 'num' texture coordinates stored as [u, v] pairs
+    public float[] SampleRed(float[] uv, int num, int mode, boolean parallel) {
+        float[] dest = new float[num];
+        Run(new SampleTask(this, uv, null, dest, mode, 0, num), parallel);
+        return dest;
+    }
+
+    // -------------------------------------------------------------------------
+    private void Run(SampleTask task, boolean parallel) {
+        Prepare(task.m_uv, task.m_to);
+        if(parallel && IsThreadSafe()) {
+            SphereUtils.GetPool().invoke(task);
+        } else {
+            task.Sample();
+        }
+    }
+
+    // *************************************************************************
+    // SampleTask
+    // *************************************************************************
+    // Samples range of texture coordinates, range is split until it's small
+    // enough
+    public static class SampleTask 
+      extends RecursiveAction {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final long serialVersionUID = 42424204L;
+
+        // *********************************************************************
+        // SampleTask
+        // *********************************************************************
+        private PixmapSampler m_sampler;
+        private float[] m_uv, m_red;
+        private int[] m_rgba;
+        private int m_mode, m_from, m_to;
+
+        // ---------------------------------------------------------------------
+        public SampleTask(PixmapSampler sampler, float[] uv, int[] rgba, float[] red,
+          int mode, int from, int to) {
+            m_sampler = sampler;
+            m_uv = uv;
+            m_rgba = rgba;
+            m_red = red;
+            m_mode = mode;
+            m_from = from;
+            m_to = to;
+        }
+
+        // ---------------------------------------------------------------------
+        public void Sample() {
+            for(int i = m_from; i < m_to; i++) {
+                float u = m_uv[i * 2 + 0], v = m_uv[i * 2 + 1];
+                if(m_rgba != null) {
+                    m_rgba[i] = m_sampler.GetRgba(u, v);
+                } else {
+                    m_red[i] = m_sampler.GetRed(u, v, m_mode);
+                }
+            }
+        }
+
+        // *********************************************************************
+        // RecursiveAction
+        // *********************************************************************
+        @Override protected void compute() {
+            if(m_to - m_from > PixmapSampler.TASK_SIZE) {
+                int middle = (m_from + m_to) >>> 1;
+                RecursiveAction.invokeAll(
+                    new SampleTask(m_sampler, m_uv, m_rgba, m_red, m_mode, m_from, middle),
+                    new SampleTask(m_sampler, m_uv, m_rgba, m_red, m_mode, middle, m_to));
+                return;
+            }
+            Sample();
+        }
+    }
+}
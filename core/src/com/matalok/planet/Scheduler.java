@@ -35,9 +35,12 @@ public class Scheduler
     public static final int EVT_LOAD_LEVEL          = 2;
     public static final int EVT_CAMERA_UNLOCK       = 3;
     public static final int EVT_CAMERA_LOCK         = 4;
-    public static final int EVT_NUM                 = 5;
+    public static final int EVT_LOAD_PROGRESS       = 5;
+    public static final int EVT_LEVEL_READY         = 6;
+    public static final int EVT_NUM                 = 7;
     private static final String[] EVT_NAMES = new String[] {
-        "quit", "reset_level", "load_level", "cam_unlock", "cam_lock"};
+        "quit", "reset_level", "load_level", "cam_unlock", "cam_lock", 
+        "load_progress", "level_ready"};
 
     // *************************************************************************
     // SUBCLASS
@@ -62,7 +65,7 @@ public class Scheduler
     // *************************************************************************
     // Scheduler
     // *************************************************************************
-    private LinkedList<Event> m_event_queue, m_event_queue_copy;
+    private LinkedList<Event> m_event_queue, m_event_queue_copy, m_posted;
     private Hashtable<Integer, LinkedList<Interfaces.ISchedulerClient>> m_clients;
 
     // -------------------------------------------------------------------------
@@ -70,6 +73,7 @@ public class Scheduler
         super("scheduler");
         m_event_queue = new LinkedList<Scheduler.Event>();
         m_event_queue_copy = new LinkedList<Scheduler.Event>();
+        m_posted = new LinkedList<Scheduler.Event>();
         m_clients = new Hashtable<Integer, LinkedList<Interfaces.ISchedulerClient>>();
     }
 
@@ -96,6 +100,28 @@ public class Scheduler
         it.add(event);
     }
 
+    // -------------------------------------------------------------------------
+    // Might be called from any thread, event is scheduled by render thread
+    // and fired on next frame
+    public void PostEvent(int event_id, String arg) {
+        Event event = new Event();
+        event.id = event_id;
+        event.arg = arg;
+        synchronized(m_posted) {
+            m_posted.add(event);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void SchedulePostedEvents() {
+        synchronized(m_posted) {
+            for(Event evt : m_posted) {
+                ScheduleEvent(evt.id, evt.arg, 0, true);
+            }
+            m_posted.clear();
+        }
+    }
+
     // -------------------------------------------------------------------------
     public void RegisterClient(Interfaces.ISchedulerClient client) {
         for(int i = 0; i < Scheduler.EVT_NUM; i++) {
@@ -143,6 +169,9 @@ public class Scheduler
     // *************************************************************************
     @Override public boolean OnPrepare(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_PRE) {
+            // Events posted by other threads
+            SchedulePostedEvents();
+
             // Swap 'event_queue_copy' <--- 'm_event_queue'
             SwapEventQueues();
 
@@ -177,6 +206,9 @@ public class Scheduler
         if(stage == CommonObject.STAGE_PRE) {
             m_event_queue.clear();
             m_event_queue_copy.clear();
+            synchronized(m_posted) {
+                m_posted.clear();
+            }
         }
         return true;
     }
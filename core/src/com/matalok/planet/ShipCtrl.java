@@ -125,6 +125,11 @@ public class ShipCtrl
 
     // -------------------------------------------------------------------------
     private void Shoot(int x, int y) {
+        // Nothing to shoot at while level is loading
+        if(Main.p.engine.IsLoading()) {
+            return;
+        }
+
         // Notify clients
         for(Interfaces.IShipCtrlClient c : m_clients) {
             c.OnShoot(x, y);
@@ -25,7 +25,6 @@ import java.util.List;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.RenderableProvider;
-import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Quaternion;
 import com.badlogic.gdx.math.Vector3;
 
@@ -39,11 +38,30 @@ public class ShooterBullet
     private ModelInstance m_model_inst;
     private Utils.DirectionEx m_direx;
     private float m_total_distance;
+    private Vector3 m_crater;               // Terrain hit, deformed by render
+    private boolean m_has_crater;
+
+    // -------------------------------------------------------------------------
+    // Bullets move on worker threads, temporaries are not shared
+    private Vector3 m_move_delta, m_move_start, m_move_hit;
+    private Quaternion m_move_rot, m_tmp0, m_tmp1;
 
     // -------------------------------------------------------------------------
     public ShooterBullet() {
         super("bullet");
         m_direx = new Utils.DirectionEx();
+        m_crater = new Vector3();
+        m_move_delta = new Vector3();
+        m_move_start = new Vector3();
+        m_move_hit = new Vector3();
+        m_move_rot = new Quaternion();
+        m_tmp0 = new Quaternion();
+        m_tmp1 = new Quaternion();
+
+        // Collision only reads terrain, dispatch runs it after sphere refits 
+        // its BVH. Craters are made by render thread.
+        SetPrepareAccess(true, new Interfaces.ICommonObject[] {
+            Main.p.engine.sphere, Main.p.time_man}, null);
     }
 
     // -------------------------------------------------------------------------
@@ -63,7 +81,6 @@ public class ShooterBullet
     }
 
     // -------------------------------------------------------------------------
-    private static Vector3 move_delta = new Vector3();
     private boolean MoveForward(long time_delta) {
         // Test total distance
         float linear_delta = Main.p.cfg.bullet_speed_linear * time_delta;
@@ -78,27 +95,47 @@ public class ShooterBullet
 
         // Adjust direction (pitch)
         float angular_delta = Main.p.cfg.bullet_speed_angular * time_delta;
-        m_direx.dir.rotateRad(UtilsAngle.VECT_LEFT, angular_delta);
+        m_move_rot.setFromAxisRad(UtilsAngle.VECT_LEFT, angular_delta);
+        UtilsAngle.Rotate(m_direx.dir, m_move_rot, m_tmp0, m_tmp1);
 
         // Get delta of linear movement
-        move_delta
-            .set(m_direx.dir)
-            .mul(m_direx.rot)
+        UtilsAngle.Rotate(m_move_delta.set(m_direx.dir), m_direx.rot, m_tmp0, m_tmp1)
             .scl(linear_delta);
 
         // Move forward
-        m_direx.pos.add(move_delta);
+        m_move_start.set(m_direx.pos);
+        m_direx.pos.add(m_move_delta);
 
         // Apply transformation
-        Matrix4 tr = m_model_inst.transform;
-        tr.setToTranslation(m_direx.pos);
-        tr.rotate(m_direx.rot);
-        tr.scale(Main.p.cfg.bullet_scale, Main.p.cfg.bullet_scale, Main.p.cfg.bullet_scale);
+        float scale = Main.p.cfg.bullet_scale;
+        Vector3 pos = m_direx.pos;
+        Quaternion rot = m_direx.rot;
+        m_model_inst.transform.set(pos.x, pos.y, pos.z, 
+            rot.x, rot.y, rot.z, rot.w, scale, scale, scale);
+
+        // Test terrain collision
+        Sphere sphere = Main.p.engine.sphere;
+        boolean has_bvh = (sphere.PeekBvh() != null);
+        if(has_bvh && 
+           sphere.IntersectSegment(m_move_start, m_direx.pos, m_move_hit) != SphereBvh.NO_HIT) {
+            // Bullet hits the terrain
+            Log.Debug("Bullet hit the terrain :: name=%s alt=%.2f", 
+                GetNameId(), m_move_hit.len());
+            m_crater.set(m_move_hit);
+            m_has_crater = true;
+            return false;
+        }
 
-        // Test altitude limit
+        // Test altitude limit, without BVH ground is at low limit
         float altitude = m_direx.pos.len();
-        if(altitude < Main.p.cfg.bullet_altitude_limit_low ||
-           altitude > Main.p.cfg.bullet_altitude_limit_high) {
+        if(!has_bvh && altitude < Main.p.cfg.bullet_altitude_limit_low) {
+            // Bullet hits the ground
+            Log.Debug("Bullet hit the ground :: name=%s alt=%.2f", GetNameId(), altitude);
+            m_crater.set(m_direx.pos);
+            m_has_crater = true;
+            return false;
+
+        } else if(altitude > Main.p.cfg.bullet_altitude_limit_high) {
             // Altitude limit reached
             Log.Debug("Bullet altitude limit reached :: name=%s alt=%.2f", GetNameId(), altitude);
             return false;
@@ -123,6 +160,13 @@ public class ShooterBullet
     // -------------------------------------------------------------------------
     @Override public boolean OnRender(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_PRE) {
+            // Terrain is deformed on render thread
+            if(m_has_crater) {
+                Main.p.engine.sphere.Deform(m_crater, 
+                    Main.p.cfg.shooter_crater_radius, Main.p.cfg.shooter_crater_depth);
+                m_has_crater = false;
+            }
+
             Camera camera = Renderer.GetArgsCamera(args);
             List<RenderableProvider> renderables = Renderer.GetArgsRenderables(args);
             RenderableProvider inst = TestModelVisibility(camera);
@@ -20,7 +20,10 @@
 package com.matalok.planet;
 
 // -----------------------------------------------------------------------------
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.Pixmap;
@@ -28,6 +31,7 @@ import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.RenderableProvider;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Quaternion;
 import com.badlogic.gdx.math.Vector3;
@@ -59,6 +63,10 @@ public class Sphere
         new Material(ColorAttribute.createDiffuse(Color.WHITE)),    // SURF_SNOW
     };
 
+    // Material of single draw call segments, surface color comes from vertices
+    public static final Material VERTEX_COLOR_MATERIAL = 
+        new Material(ColorAttribute.createDiffuse(Color.WHITE));
+
     //
     // 12 vertices of base icosphere
     // http://blog.andreaskahler.com/2009/06/creating-icosphere-mesh-in-code.html
@@ -89,11 +97,30 @@ public class Sphere
         4, 9, 5,     2, 4, 11,    6, 2, 10,    8, 6, 7,     9, 8, 1     // Adjacent triangles
     };
 
+    //
+    // Runtime deformation
+    //
+    private static final int DEFORM_ARRAY_SIZE = 256;
+    private static final int DEFORM_LINK_NUM = 8;       // Max segments per vertex
+
     // *************************************************************************
     // Sphere
     // *************************************************************************
-    private SphereVertex.List m_vertices;
+    private SphereVertex.Store m_vertices;
+    private SphereTopology m_topology;
     private SphereSegment[] m_segments;
+    private SphereLod m_lod;
+    private SphereBvh m_bvh;
+    private SphereGrid m_grid;
+
+    // -------------------------------------------------------------------------
+    // Runtime deformation
+    private boolean m_is_deformable;
+    private int m_deform_stamp;
+    private int[] m_vertex_stamps;
+    private int[] m_deformed, m_smoothed;
+    private int[] m_link_segments, m_link_locals;
+    private int m_flushed_bytes;
 
     // -------------------------------------------------------------------------
     public Sphere() {
@@ -101,24 +128,131 @@ public class Sphere
     }
 
     // -------------------------------------------------------------------------
-    private SphereVertex AddVertex(float x, float y, float z) {
-        SphereVertex v = new SphereVertex(x, y, z);
-        m_vertices.add(v);
-        return v;
-    }
+    public void Create(int refine_lvl, boolean parallel, boolean smooth, 
+      boolean colored) {
+        // Drop previous mesh
+        DisposeSegments();
 
-    // -------------------------------------------------------------------------
-    public void Create(int refine_lvl) {
         // Create base sphere ...
-        CreateIcosphere(Sphere.ICOSPHERE_VERTICES, 
-            Sphere.ICOSPHERE_TRIANGLES, Sphere.SURF_MATERIALS);
+        int chunk_lvl = SphereSegment.GetChunkLvl(refine_lvl, (smooth) ? 
+            SphereVertex.SMOOTH_INSTANCE_NUM : SphereVertex.INSTANCE_NUM);
+        CreateIcosphere(Sphere.ICOSPHERE_VERTICES, Sphere.ICOSPHERE_TRIANGLES, 
+            Sphere.SURF_MATERIALS, refine_lvl, chunk_lvl, smooth, colored);
 
         // ... and refine it
-        Refine(refine_lvl);
+        long start = System.currentTimeMillis();
+        if(parallel) {
+            RefineParallel(refine_lvl - chunk_lvl);
+        } else {
+            Refine(refine_lvl - chunk_lvl);
+        }
+        Log.Info("Sphere refined :: lvl=%d chunk_lvl=%d segments=%d parallel=%b smooth=%b duration=%d", 
+            refine_lvl, chunk_lvl, m_segments.length, parallel, smooth,
+            System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    // Triangles are refined only while they differ from height map more than
+    // 'max_error', which is in units of height map values
+    public void CreateAdaptive(int refine_lvl, boolean smooth, boolean colored, 
+      PixmapSampler height_map, int filter, float max_error, boolean parallel) {
+        // Drop previous mesh
+        DisposeSegments();
+
+        // Refine base sphere without vertex store ...
+        long start = System.currentTimeMillis();
+        int instance_num = (smooth) ? 
+            SphereVertex.SMOOTH_INSTANCE_NUM : SphereVertex.ADAPTIVE_INSTANCE_NUM;
+        int chunk_lvl = SphereSegment.GetChunkLvl(refine_lvl, instance_num);
+        SphereAdaptive adaptive = new SphereAdaptive(Sphere.ICOSPHERE_VERTICES, 
+            Sphere.ICOSPHERE_TRIANGLES, chunk_lvl);
+        adaptive.Refine(refine_lvl - chunk_lvl, height_map, filter, max_error, 
+            (smooth) ? Integer.MAX_VALUE : instance_num, parallel);
+
+        // ... and fill segments with leaf triangles
+        int segment_num = adaptive.segment_begin.length - 1;
+        m_segments = new SphereSegment[segment_num];
+        m_vertices = new SphereVertex.Store(adaptive.vertex_num, adaptive.link_num, 
+            m_segments, instance_num, colored);
+        for(int v = 0; v < adaptive.vertex_num; v++) {
+            m_vertices.Add(adaptive.vertices[v * 3 + 0], adaptive.vertices[v * 3 + 1], 
+                adaptive.vertices[v * 3 + 2]);
+        }
+        int[] trig = adaptive.triangles;
+        for(int i = 0; i < segment_num; i++) {
+            SphereSegment s = m_segments[i] = 
+                new SphereSegment(i, m_vertices, Sphere.SURF_MATERIALS);
+            s.ReserveTriangles(adaptive.segment_begin[i + 1] - adaptive.segment_begin[i]);
+            for(int t = adaptive.segment_begin[i] * 3; 
+              t < adaptive.segment_begin[i + 1] * 3; t += 3) {
+                int v0 = m_vertices.LinkSegment(trig[t + 0], s);
+                int v1 = m_vertices.LinkSegment(trig[t + 1], s);
+                int v2 = m_vertices.LinkSegment(trig[t + 2], s);
+                s.AddTriangle(v0, v1, v2, Sphere.SURF_WATER);
+            }
+        }
+        Log.Info("Sphere refined adaptively :: lvl=%d chunk_lvl=%d segments=%d triangles=%d/%d max_error=%.2f duration=%d", 
+            refine_lvl, chunk_lvl, segment_num, trig.length / 3, 
+            (Sphere.ICOSPHERE_TRIANGLES.length / 3) << (2 * refine_lvl), max_error, 
+            System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    // Finalized mesh is copied from shared topology, sphere has no vertex 
+    // store and triangles so it can't be deformed
+    public void Create(SphereTopology topology) {
+        // Drop previous mesh
+        DisposeSegments();
+
+        long start = System.currentTimeMillis();
+        m_vertices = null;
+        m_topology = topology;
+        m_segments = new SphereSegment[topology.segments.length];
+        for(int i = 0; i < m_segments.length; i++) {
+            m_segments[i] = new SphereSegment(i, null, Sphere.SURF_MATERIALS);
+            m_segments[i].ReadShared(topology.segments[i]);
+        }
+        BuildGrid();
+        Log.Info("Sphere created from shared topology :: lvl=%d segments=%d duration=%d", 
+            topology.refine_lvl, m_segments.length, System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    public void CreateLod(Pixmap height_map, Pixmap surface_map, Palette pal,
+      float max_height) {
+        // Drop previous mesh
+        DisposeSegments();
+
+        // LOD terrain has no global vertex store, patches are built on demand
+        m_vertices = null;
+        m_lod = new SphereLod(Sphere.ICOSPHERE_VERTICES, Sphere.ICOSPHERE_TRIANGLES,
+            height_map, surface_map, pal, max_height);
+    }
+
+    // -------------------------------------------------------------------------
+    // Sphere is built without GPU resources, models are created by render 
+    // thread once mesh arrays are ready
+    public void BuildModels() {
+        long start = System.currentTimeMillis();
+        if(m_lod != null) {
+            m_lod.BuildRoots();
+        }
+        if(m_segments != null) {
+            for(SphereSegment s : m_segments) {
+                s.BuildModel();
+            }
+        }
+        Log.Info("Sphere models built :: duration=%d", System.currentTimeMillis() - start);
     }
 
     // -------------------------------------------------------------------------
     public void Finalize() {
+        Finalize(true);
+    }
+
+    // -------------------------------------------------------------------------
+    // Template sphere of shared topology does not need grid
+    void Finalize(boolean build_grid) {
         // Create mesh arrays
         for(SphereSegment s : m_segments) {
             s.CreateVertexArray();
@@ -126,33 +260,83 @@ public class Sphere
         }
 
         // Finalize vertices
-        for(SphereVertex v : m_vertices) {
-            v.Finalize();
-        }
+        m_vertices.Finalize();
 
         // Write vertex position to vertex arrays
-        for(SphereVertex v : m_vertices) {
-            v.WritePosition();
+        for(int v = 0; v < m_vertices.vertex_num; v++) {
+            m_vertices.WritePosition(v);
+        }
+
+        // Smooth normal is averaged from adjacent triangles of all segments
+        if(m_vertices.IsSmooth()) {
+            for(SphereSegment s : m_segments) {
+                s.AddSmoothNormals();
+            }
+            m_vertices.WriteSmoothNormals();
         }
 
-        // Create segment models
+        // Write triangles to vertex arrays, models are built later
+        for(SphereSegment s : m_segments) {
+            s.PrepareModel();
+        }
+        OptimizeIndices(true);
         for(SphereSegment s : m_segments) {
-            s.BuildDynamicModel(SphereVertex.GetVertexAttributes());
             s.RebuildSuface();
+            s.UpdateBounds();
+        }
+        if(build_grid) {
+            BuildGrid();
         }
         Log(false);
     }
 
+    // -------------------------------------------------------------------------
+    // Grid depends only on directions of vertices, so it's built before 
+    // heights are read
+    private void BuildGrid() {
+        m_grid = (Main.p.cfg.sphere_grid) ? new SphereGrid(m_segments) : null;
+    }
+
+    // -------------------------------------------------------------------------
+    public SphereGrid GetGrid() {
+        return m_grid;
+    }
+
+    // -------------------------------------------------------------------------
+    // Terrain height under given direction, 0 if it's unknown
+    public float GetHeight(Vector3 dir) {
+        if(m_lod != null) {
+            return m_lod.GetHeight(dir);
+        }
+        return (m_grid == null) ? 0.0f : m_grid.GetHeight(dir.x, dir.y, dir.z);
+    }
+
+    // -------------------------------------------------------------------------
+    // Query keeps no state and can be made from async objects
+    public float GetHeight(float lon, float lat) {
+        if(m_lod != null) {
+            return m_lod.GetHeight(lon, lat);
+        }
+        if(m_grid == null) {
+            return 0.0f;
+        }
+        float cos_lat = MathUtils.cos(lat);
+        return m_grid.GetHeight(cos_lat * MathUtils.cos(lon), MathUtils.sin(lat), 
+            cos_lat * MathUtils.sin(lon));
+    }
+
     // -------------------------------------------------------------------------
     public void Log(boolean detailed) {
         // Vertices
-        Log.Debug("Sphere vertices : %d", m_vertices.size());
+        Log.Debug("Sphere vertices : %d", m_vertices.vertex_num);
         if(detailed) {
-            for(int i = 0; i < m_vertices.size(); i++) {
-                SphereVertex v = m_vertices.get(i);
+            Vector3 norm = new Vector3();
+            for(int i = 0; i < m_vertices.vertex_num; i++) {
+                m_vertices.GetNorm(i, norm);
                 Log.Debug("  > idx=%d x=%.2f y=%.2f z=%.2f lon=%.2f lat=%.2f", 
-                    i, v.norm.x, v.norm.y, v.norm.z,
-                    v.geo_deg.x, v.geo_deg.y);
+                    i, norm.x, norm.y, norm.z,
+                    m_vertices.GetLon(i) * MathUtils.radDeg, 
+                    m_vertices.GetLat(i) * MathUtils.radDeg);
             }
         }
 
@@ -164,50 +348,481 @@ public class Sphere
     }
 
     // -------------------------------------------------------------------------
-    public SphereVertex GetVertex(int id) {
-        Utils.Assert(id < m_vertices.size(), 
-            "Failed to get sphere vertex, index out of bounds :: idx=%d size=%d", 
-            id, m_vertices.size());
-        return m_vertices.get(id);
+    public SphereVertex.Store GetVertices() {
+        return m_vertices;
     }
 
     // -------------------------------------------------------------------------
-    public void ReadHeightmap(Pixmap map, float max_height) {
-        for(SphereVertex v : m_vertices) {
-            int red = v.GetRgba(map) >> 24;
-            v.Scale(1.0f + red * max_height).WritePosition();
+    public SphereSegment[] GetSegments() {
+        return m_segments;
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertex attributes are read either from own store or shared topology
+    private int GetVertexNum() {
+        return (m_topology != null) ? m_topology.vertex_num : m_vertices.vertex_num;
+    }
+
+    // -------------------------------------------------------------------------
+    private float[] GetTexCoords() {
+        return (m_topology != null) ? m_topology.tex_coords : m_vertices.GetTexCoords();
+    }
+
+    // -------------------------------------------------------------------------
+    private boolean IsSmooth() {
+        return (m_topology != null) ? m_topology.smooth : m_vertices.IsSmooth();
+    }
+
+    // -------------------------------------------------------------------------
+    private boolean IsColored() {
+        return (m_topology != null) ? m_topology.colored : m_vertices.IsColored();
+    }
+
+    // -------------------------------------------------------------------------
+    // Height of each vertex is 1 + value * max_height
+    private void UpdateHeights(float[] values, float max_height) {
+        if(m_topology == null) {
+            for(int v = 0; v < m_vertices.vertex_num; v++) {
+                m_vertices.Scale(v, 1.0f + values[v] * max_height);
+                m_vertices.WritePosition(v);
+            }
+            return;
+        }
+
+        float[] heights = new float[m_topology.vertex_num];
+        for(int v = 0; v < heights.length; v++) {
+            heights[v] = 1.0f + values[v] * max_height;
+        }
+        for(SphereSegment s : m_segments) {
+            s.WriteHeights(heights, m_topology.norm);
         }
     }
 
+    // -------------------------------------------------------------------------
+    public void ReadHeightmap(Pixmap map, float max_height) {
+        ReadHeightmap(new PixmapSampler(map), max_height);
+    }
+
+    // -------------------------------------------------------------------------
+    public void ReadHeightmap(PixmapSampler map, float max_height) {
+        long start = System.currentTimeMillis();
+        Config cfg = Main.p.cfg;
+        float[] red = map.SampleRed(GetTexCoords(), GetVertexNum(), 
+            cfg.sphere_height_filter, cfg.sphere_refine_parallel);
+        UpdateHeights(red, max_height);
+        Log.Info("Sphere heights read :: map=%dx%d filter=%d duration=%d", 
+            map.GetWidth(), map.GetHeight(), cfg.sphere_height_filter, 
+            System.currentTimeMillis() - start);
+    }
+
     // -------------------------------------------------------------------------
     public void ReadSuface(Pixmap map, Palette pal) {
+        // Surface color of each vertex is read once
+        int vertex_num = GetVertexNum();
+        int[] rgba = new PixmapSampler(map).SampleRgba(GetTexCoords(), 
+            vertex_num, Main.p.cfg.sphere_refine_parallel);
+        int[] types = new int[vertex_num];
+        for(int v = 0; v < vertex_num; v++) {
+            types[v] = pal.GetColorIdx(rgba[v]);
+            if(types[v] == -1) {
+                Log.Err("Failed to read surface :: vertex=%d rgba=0x%08X", v, rgba[v]);
+            }
+        }
+        UpdateSurfaces(types);
+    }
+
+    // -------------------------------------------------------------------------
+    // Procedural alternative to height map and surface map
+    public void Generate(SphereNoise noise, float max_height) {
+        long start = System.currentTimeMillis();
+        int vertex_num = GetVertexNum();
+        int[] types = new int[vertex_num];
+        float[] elevations = noise.Generate(
+            (m_topology != null) ? m_topology.norm : m_vertices.norm, vertex_num, 
+            types, Main.p.cfg.sphere_refine_parallel);
+        UpdateHeights(elevations, max_height);
+        Log.Info("Sphere terrain generated :: seed=%d vertices=%d duration=%d", 
+            noise.GetSeed(), vertex_num, System.currentTimeMillis() - start);
+        UpdateSurfaces(types);
+    }
+
+    // -------------------------------------------------------------------------
+    // Surface type of each vertex, -1 keeps previous surface
+    private void UpdateSurfaces(int[] types) {
+        for(SphereSegment s : m_segments) {
+            s.UpdateSurface(types);
+        }
+
+        // Triangles that moved to other surfaces need new order
+        if(IsSmooth() && !IsColored()) {
+            OptimizeIndices(false);
+        }
         for(SphereSegment s : m_segments) {
-            s.UpdateSurface(map, pal);
             s.RebuildSuface();
         }
     }
 
     // -------------------------------------------------------------------------
-    private void CreateIcosphere(float[] vert, int[] trig, Material[] mat) {
-        Log.Info("Creating base sphere");
+    private void OptimizeIndices(boolean reorder_vertices) {
+        if(!Main.p.cfg.sphere_optimize_indices) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int triangle_num = 0, miss_before = 0, miss_after = 0;
+        int[][] remaps = new int[m_segments.length][];
+        for(SphereSegment s : m_segments) {
+            triangle_num += s.GetTriangleNum();
+            miss_before += s.GetCacheMissNum();
+
+            // Flat vertex instances are never shared, only memory order matters
+            if(IsSmooth()) {
+                s.OptimizeTriangleOrder();
+            }
+            if(reorder_vertices) {
+                remaps[s.idx] = s.ReorderVertices();
+            }
+            miss_after += s.GetCacheMissNum();
+        }
+
+        // Vertex links of all segments are remapped in single pass
+        if(reorder_vertices) {
+            m_vertices.RemapInstanceIds(remaps);
+        }
+        Log.Info("Sphere indices optimized :: acmr=%.3f/%.3f reorder=%b duration=%d", 
+            (float)miss_before / triangle_num, (float)miss_after / triangle_num,
+            reorder_vertices, System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    // Terrain collision, built once mesh is finalized or read from cache
+    public void BuildBvh() {
+        m_bvh = (m_segments == null) ? null : new SphereBvh(m_segments);
+    }
+
+    // -------------------------------------------------------------------------
+    // Bytes of vertex and index data flushed to GPU in last frame
+    public int GetFlushedBytes() {
+        return m_flushed_bytes;
+    }
+
+    // -------------------------------------------------------------------------
+    public SphereBvh GetBvh() {
+        // Deformed segments are refitted once before next query
+        if(m_bvh != null && m_bvh.IsDirty()) {
+            m_bvh.Refit();
+        }
+        return m_bvh;
+    }
+
+    // -------------------------------------------------------------------------
+    // Read-only access for async objects, tree is refitted by OnPrepare()
+    // before they run and should not be modified by them
+    public SphereBvh PeekBvh() {
+        if(m_bvh != null && m_bvh.IsDirty()) {
+            Utils.Assert(false, "Failed to peek BVH, tree is not refitted");
+        }
+        return m_bvh;
+    }
+
+    // -------------------------------------------------------------------------
+    // Returns fraction of segment before terrain hit or SphereBvh.NO_HIT. 
+    // Hit point is written to 'hit' if given. Safe for async objects, tree 
+    // is not refitted here.
+    public float IntersectSegment(Vector3 from, Vector3 to, Vector3 hit) {
+        SphereBvh bvh = PeekBvh();
+        if(bvh == null) {
+            return SphereBvh.NO_HIT;
+        }
+        float k = bvh.IntersectSegment(from, to);
+        if(k != SphereBvh.NO_HIT && hit != null) {
+            hit.set(to).sub(from).scl(k).add(from);
+        }
+        return k;
+    }
+
+    // -------------------------------------------------------------------------
+    // Lowers terrain around given geographical point, radius is angular 
+    public boolean Deform(float lon, float lat, float radius, float depth) {
+        return Deform(UtilsGeo.GeoToCartesian(deform_dir, lon, lat, 1.0f), 
+            radius, depth);
+    }
+
+    // -------------------------------------------------------------------------
+    private static Vector3 deform_dir = new Vector3(),
+                           deform_norm = new Vector3(),
+                           deform_min = new Vector3(),
+                           deform_max = new Vector3(),
+                           deform_smooth = new Vector3();
+    public boolean Deform(Vector3 dir, float radius, float depth) {
+        // Cached and LOD spheres have no vertex store
+        if(m_vertices == null || m_segments == null) {
+            return false;
+        }
+        PrepareDeform();
+
+        // Each vertex and triangle is visited once per call
+        int stamp = NextDeformStamp();
+        dir = deform_dir.set(dir).nor();
+        float cos_radius = (float)Math.cos(radius),
+              min_height = Main.p.cfg.sphere_deform_min_height;
+
+        // Move vertices inside crater
+        int deformed_num = 0;
+        for(SphereSegment s : m_segments) {
+            if(!s.TestBoundCone(dir, radius)) {
+                continue;
+            }
+
+            for(int local = 0; local < s.GetLocalVertexNum(); local++) {
+                int v = s.GetLocalVertex(local);
+                if(m_vertex_stamps[v] == stamp) {
+                    continue;
+                }
+                m_vertex_stamps[v] = stamp;
+
+                float dot = dir.dot(m_vertices.GetNorm(v, deform_norm));
+                if(dot <= cos_radius) {
+                    continue;
+                }
+
+                // Region of moved vertices before they move
+                deform_norm.scl(m_vertices.height[v]);
+                if(deformed_num == 0) {
+                    deform_min.set(deform_norm);
+                    deform_max.set(deform_norm);
+                } else {
+                    deform_min.set(Math.min(deform_min.x, deform_norm.x), 
+                        Math.min(deform_min.y, deform_norm.y), 
+                        Math.min(deform_min.z, deform_norm.z));
+                    deform_max.set(Math.max(deform_max.x, deform_norm.x), 
+                        Math.max(deform_max.y, deform_norm.y), 
+                        Math.max(deform_max.z, deform_norm.z));
+                }
+
+                // Parabolic crater profile
+                float k = (float)Math.acos(Math.min(dot, 1.0f)) / radius;
+                float height = Math.max(min_height, 
+                    m_vertices.height[v] - depth * (1.0f - k * k));
+                m_vertices.Scale(v, height);
+                m_vertices.WritePosition(v);
+
+                if(deformed_num == m_deformed.length) {
+                    m_deformed = Arrays.copyOf(m_deformed, deformed_num * 2);
+                }
+                m_deformed[deformed_num++] = v;
+            }
+        }
+        if(m_bvh != null && deformed_num > 0) {
+            m_bvh.SetDirty(deform_min, deform_max);
+        }
+
+        // Update normals of triangles around moved vertices
+        if(m_vertices.IsSmooth()) {
+            UpdateSmoothNormals(m_deformed, deformed_num, NextDeformStamp());
+        } else {
+            for(int i = 0; i < deformed_num; i++) {
+                int link_num = m_vertices.GetLinks(m_deformed[i], 
+                    m_link_segments, m_link_locals);
+                for(int l = 0; l < link_num; l++) {
+                    SphereSegment s = m_segments[m_link_segments[l]];
+                    for(int a = s.GetAdjacentBegin(m_link_locals[l]); 
+                      a < s.GetAdjacentEnd(m_link_locals[l]); a++) {
+                        SphereTriangle t = s.GetAdjacent(a);
+                        if(t.stamp != stamp) {
+                            t.stamp = stamp;
+                            t.UpdateNormal(deform_norm);
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Stamps of vertices and triangles are cleared when counter wraps
+    private int NextDeformStamp() {
+        if(++m_deform_stamp == 0) {
+            Arrays.fill(m_vertex_stamps, 0);
+            for(SphereSegment s : m_segments) {
+                for(int i = 0; s.HasTriangles() && i < s.GetTriangleNum(); i++) {
+                    s.GetTriangle(i).stamp = 0;
+                }
+            }
+            m_deform_stamp = 1;
+        }
+        return m_deform_stamp;
+    }
+
+    // -------------------------------------------------------------------------
+    private void UpdateSmoothNormals(int[] deformed, int deformed_num, int stamp) {
+        // Normals of moved vertices and their neighbours are affected
+        int smoothed_num = 0;
+        for(int i = 0; i < deformed_num; i++) {
+            int link_num = m_vertices.GetLinks(deformed[i], 
+                m_link_segments, m_link_locals);
+            for(int l = 0; l < link_num; l++) {
+                SphereSegment s = m_segments[m_link_segments[l]];
+                for(int a = s.GetAdjacentBegin(m_link_locals[l]); 
+                  a < s.GetAdjacentEnd(m_link_locals[l]); a++) {
+                    for(int v : s.GetAdjacent(a).vertices) {
+                        if(m_vertex_stamps[v] == stamp) {
+                            continue;
+                        }
+                        m_vertex_stamps[v] = stamp;
+                        if(smoothed_num == m_smoothed.length) {
+                            m_smoothed = Arrays.copyOf(m_smoothed, smoothed_num * 2);
+                        }
+                        m_smoothed[smoothed_num++] = v;
+                    }
+                }
+            }
+        }
+
+        // Average normals of adjacent triangles in all segments
+        Vector3 normal = deform_smooth;
+        for(int i = 0; i < smoothed_num; i++) {
+            int v = m_smoothed[i];
+            int link_num = m_vertices.GetLinks(v, m_link_segments, m_link_locals);
+            normal.setZero();
+            for(int l = 0; l < link_num; l++) {
+                SphereSegment s = m_segments[m_link_segments[l]];
+                for(int a = s.GetAdjacentBegin(m_link_locals[l]); 
+                  a < s.GetAdjacentEnd(m_link_locals[l]); a++) {
+                    normal.add(s.GetAdjacent(a).GetNormal(deform_norm));
+                }
+            }
+            normal.nor();
+            for(int l = 0; l < link_num; l++) {
+                m_vertices.WriteNormal(v, m_segments[m_link_segments[l]], 0, normal);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void PrepareDeform() {
+        if(m_is_deformable) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        for(SphereSegment s : m_segments) {
+            s.BuildAdjacency();
+        }
+        m_vertex_stamps = new int[m_vertices.vertex_num];
+        m_deformed = new int[Sphere.DEFORM_ARRAY_SIZE];
+        m_smoothed = new int[Sphere.DEFORM_ARRAY_SIZE];
+        m_link_segments = new int[Sphere.DEFORM_LINK_NUM];
+        m_link_locals = new int[Sphere.DEFORM_LINK_NUM];
+        m_deform_stamp = 0;
+        m_is_deformable = true;
+        Log.Info("Sphere prepared for deformation :: duration=%d", 
+            System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetCacheSize() {
+        int size = 0;
+        for(SphereSegment s : m_segments) {
+            size += s.GetCacheSize();
+        }
+        return size;
+    }
+
+    // -------------------------------------------------------------------------
+    public void WriteCache(ByteBuffer buff) {
+        buff.putInt(m_segments.length);
+        for(SphereSegment s : m_segments) {
+            s.WriteCache(buff);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void ReadCache(ByteBuffer buff, int segment_num) {
+        // Drop previous mesh
+        DisposeSegments();
+
+        // Cached sphere has segment meshes only, no vertices and triangles
+        m_vertices = null;
+        m_segments = new SphereSegment[segment_num];
+        for(int i = 0; i < m_segments.length; i++) {
+            m_segments[i] = new SphereSegment(i, null, Sphere.SURF_MATERIALS);
+            m_segments[i].ReadCache(buff);
+        }
+        BuildGrid();
+    }
+
+    // -------------------------------------------------------------------------
+    private void DisposeSegments() {
+        if(m_lod != null) {
+            m_lod.Dispose();
+            m_lod = null;
+        }
+
+        m_is_deformable = false;
+        m_topology = null;
+        m_bvh = null;
+        m_grid = null;
+        if(m_segments == null) {
+            return;
+        }
+
+        for(SphereSegment s : m_segments) {
+            if(s.HasModel()) {
+                s.dispose();
+            }
+        }
+        m_segments = null;
+    }
+
+    // -------------------------------------------------------------------------
+    private void CreateIcosphere(float[] vert, int[] trig, Material[] mat, 
+      int refine_lvl, int chunk_lvl, boolean smooth, boolean colored) {
+        Log.Info("Creating base sphere :: chunk_lvl=%d", chunk_lvl);
+
+        // Vertex store is sized for final refinement level
+        int segment_num = (trig.length / 3) << (2 * chunk_lvl);
+        m_segments = new SphereSegment[segment_num];
+        m_vertices = new SphereVertex.Store(
+            SphereVertex.GetVertexNum(refine_lvl), 
+            SphereVertex.GetSegmentVertexNum(refine_lvl - chunk_lvl) * segment_num,
+            m_segments, smooth, colored);
 
         // Set vertices
-        m_vertices = new SphereVertex.List();
         for(int i = 0; i < vert.length; i += 3) {
-            AddVertex(vert[i + 0], vert[i + 1], vert[i + 2]);
+            m_vertices.Add(vert[i + 0], vert[i + 1], vert[i + 2]);
+        }
+
+        // Split base triangles until segments fit into index range. Children
+        // follow same order as in SphereTriangle.Refine()
+        while(--chunk_lvl >= 0) {
+            SphereUtils.VertexCache cache = new SphereUtils.VertexCache(
+                SphereUtils.VertexCache.GetEdgeNum(m_vertices.vertex_num), this);
+            int[] split = new int[trig.length * 4];
+            for(int i = 0, j = 0; i < trig.length; i += 3) {
+                int v0 = trig[i + 0], v1 = trig[i + 1], v2 = trig[i + 2],
+                    v01 = cache.GetVertex(v0, v1),
+                    v12 = cache.GetVertex(v1, v2),
+                    v20 = cache.GetVertex(v2, v0);
+                split[j++] = v0;  split[j++] = v01; split[j++] = v20;
+                split[j++] = v1;  split[j++] = v12; split[j++] = v01;
+                split[j++] = v2;  split[j++] = v20; split[j++] = v12;
+                split[j++] = v01; split[j++] = v12; split[j++] = v20;
+            }
+            trig = split;
         }
 
         // Each triangle of base sphere represents a segment
-        m_segments = new SphereSegment[trig.length / 3];
         for(int i = 0; i < m_segments.length; i++) {
             // Create new segment
-            SphereSegment s = m_segments[i] = new SphereSegment(mat);
+            SphereSegment s = m_segments[i] = new SphereSegment(i, m_vertices, mat);
 
             // Link vertices with segment
             int offset = i * 3;
-            SphereVertex v0 = m_vertices.get(trig[offset + 0]).LinkSegment(s);
-            SphereVertex v1 = m_vertices.get(trig[offset + 1]).LinkSegment(s);
-            SphereVertex v2 = m_vertices.get(trig[offset + 2]).LinkSegment(s);
+            int v0 = m_vertices.LinkSegment(trig[offset + 0], s);
+            int v1 = m_vertices.LinkSegment(trig[offset + 1], s);
+            int v2 = m_vertices.LinkSegment(trig[offset + 2], s);
 
             // Add initial triangle to segment
             s.AddTriangle(v0, v1, v2, Sphere.SURF_WATER);
@@ -220,15 +835,60 @@ public class Sphere
         // Repeat multiple times
         Log.Info("Refining sphere :: it_num=%d", level);
         while(--level >= 0) {
-            SphereUtils.VertexCache cache = 
-                new SphereUtils.VertexCache(m_vertices.size(), this);
+            SphereUtils.VertexCache cache = new SphereUtils.VertexCache(
+                SphereUtils.VertexCache.GetEdgeNum(m_vertices.vertex_num), this);
 
             int triangle_num = 0;
             for(SphereSegment s : m_segments) {
                 triangle_num += s.Refine(cache);
             }
             Log.Info("  > it=%d vert=%d trig=%d", 
-                level, m_vertices.size(), triangle_num);
+                level, m_vertices.vertex_num, triangle_num);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Produces exactly same vertex ids and mesh arrays as serial refinement
+    private void RefineParallel(int level) {
+        // Repeat multiple times
+        ForkJoinPool pool = SphereUtils.GetPool();
+        Log.Info("Refining sphere in parallel :: it_num=%d threads=%d", 
+            level, pool.getParallelism());
+
+        // Middle vertices of shared edges are reserved in serial stage and 
+        // initialized by owning segment
+        SphereUtils.ISphereManager reserver = new SphereUtils.ISphereManager() {
+            @Override public int CreateVertex(int v0, int v1) {
+                return m_vertices.Reserve();
+            }
+        };
+
+        while(--level >= 0) {
+            // Stage 1 :: collect edges of each segment
+            pool.invoke(new SphereUtils.SegmentTask(m_segments, 0, 
+                m_segments.length, SphereUtils.SegmentTask.OP_COLLECT_EDGES));
+
+            // Stage 2 :: assign middle vertex ids in segment order
+            int shared_num = 0;
+            for(SphereSegment s : m_segments) {
+                shared_num += s.GetSharedEdgeNum();
+            }
+            SphereUtils.VertexCache cache = 
+                new SphereUtils.VertexCache(shared_num, reserver);
+            for(SphereSegment s : m_segments) {
+                s.LinkEdges(cache);
+            }
+
+            // Stage 3 :: create middle vertices and split triangles
+            pool.invoke(new SphereUtils.SegmentTask(m_segments, 0, 
+                m_segments.length, SphereUtils.SegmentTask.OP_REFINE_EDGES));
+
+            int triangle_num = 0;
+            for(SphereSegment s : m_segments) {
+                triangle_num += s.GetTriangleNum();
+            }
+            Log.Info("  > it=%d vert=%d trig=%d shared_edges=%d", 
+                level, m_vertices.vertex_num, triangle_num, shared_num);
         }
     }
 
@@ -236,22 +896,52 @@ public class Sphere
     // CommonObject
     // *************************************************************************
     @Override public boolean OnPrepare(int stage, Object[] args) {
-        if(stage == CommonObject.STAGE_PRE) {
+        if(stage == CommonObject.STAGE_PRE && m_lod != null) {
+            // Build queued LOD patches
+            m_lod.Update();
+        }
+
+        // Children that deform sphere are prepared before post stage
+        if(stage == CommonObject.STAGE_POST && m_segments != null) {
             // Flush segment data to GPU
+            int segment_num = 0;
+            m_flushed_bytes = 0;
             for(SphereSegment s : m_segments) {
                 if(s.FlushMeshArrays()) {
-                    Log.Debug(
-                        "Flushing sphere segment data to GPU :: segment=%d vertex_num=%d index_num=%d", 
-                        s.id, DynamicModel.flushed_vertex_num, DynamicModel.flushed_index_num);
+                    m_flushed_bytes += DynamicModel.flushed_vertex_bytes + 
+                        DynamicModel.flushed_index_bytes;
+                    segment_num++;
+
+                    // Deformed segment might have moved out of culling volumes
+                    if(m_is_deformable) {
+                        s.UpdateBounds();
+                    }
                 }
             }
+            if(segment_num > 0) {
+                Log.Debug("Flushing sphere data to GPU :: segments=%d bytes=%d", 
+                    segment_num, m_flushed_bytes);
+            }
+
+            // Terrain collision is refitted before async objects query it
+            GetBvh();
         }
         return true;
     }
 
     // -------------------------------------------------------------------------
     @Override public boolean OnRender(int stage, Object[] args) {
-        if(stage == CommonObject.STAGE_PRE) {
+        if(stage == CommonObject.STAGE_PRE && m_lod != null) {
+            Camera camera = Renderer.GetArgsCamera(args);
+            List<RenderableProvider> renderables = Renderer.GetArgsRenderables(args);
+
+            // Select LOD patches that are visible by camera
+            m_lod.Select(camera, camera.GetGdxCamera().position, renderables);
+            Main.p.gui.WriteMsg("visible sphere patches: %d/%d", 
+                m_lod.GetVisibleNum(), m_lod.GetBuiltNum());
+        }
+
+        if(stage == CommonObject.STAGE_PRE && m_segments != null) {
             Camera camera = Renderer.GetArgsCamera(args);
             List<RenderableProvider> renderables = Renderer.GetArgsRenderables(args);
 
@@ -278,12 +968,19 @@ public class Sphere
         return true;
     }
 
+    // -------------------------------------------------------------------------
+    @Override public boolean OnReset(int stage, Object[] args) {
+        // GPU resources of previous level are released by render thread
+        if(stage == CommonObject.STAGE_POST) {
+            DisposeSegments();
+        }
+        return true;
+    }
+
     // -------------------------------------------------------------------------
     @Override public boolean OnDispose(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_POST) {
-            for(SphereSegment s : m_segments) {
-                s.dispose();
-            }
+            DisposeSegments();
         }
         return true;
     }
@@ -291,8 +988,8 @@ public class Sphere
     // *************************************************************************
     // SphereUtils.ISphereManager
     // *************************************************************************
-    @Override public SphereVertex CreateVertex(Vector3 v) {
-        return AddVertex(v.x, v.y, v.z);
+    @Override public int CreateVertex(int v0, int v1) {
+        return m_vertices.AddMiddle(v0, v1);
     }
 
     // *************************************************************************
@@ -0,0 +1,651 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.util.Arrays;
+
+import com.badlogic.gdx.math.MathUtils;
+
+// -----------------------------------------------------------------------------
+// Adaptive refinement of base icosphere. Triangle is split only while height 
+// map deviates from it more than given error. Error is measured at vertices 
+// that uniform refinement would create inside of triangle. Coarser neighbours
+// are split first, so that neighbouring triangles differ by at most one level,
+// remaining T-junctions are closed by splitting triangles in two.
+public class SphereAdaptive 
+  implements SphereUtils.ISphereManager {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int NO_VERTEX       = -1;
+    public static final int NO_TRIANGLE     = -1;
+
+    // -------------------------------------------------------------------------
+    private static final int ARRAY_SIZE     = 1024;
+    private static final float GROWTH_FACTOR = 1.6f;
+
+    // -------------------------------------------------------------------------
+    // Triangle states
+    private static final byte STATE_LEAF        = 0;
+    private static final byte STATE_EVALUATED   = 1;    // Leaf with known error
+    private static final byte STATE_SPLIT       = 2;
+    private static final byte STATE_QUEUED      = 3;    // Leaf checked by closure
+
+    // -------------------------------------------------------------------------
+    // Directed edge, each edge of closed mesh belongs to single triangle
+    private static long GetEdgeKey(int v0, int v1) {
+        return (long)v0 << 32 | (long)v1;
+    }
+
+    // *************************************************************************
+    // EdgeMap
+    // *************************************************************************
+    // Open addressing map of edge keys, values are overwritten
+    private static class EdgeMap {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final long EMPTY_KEY = -1L;
+        private static final float LOAD_FACTOR = 0.5f;
+
+        // *********************************************************************
+        // EdgeMap
+        // *********************************************************************
+        private long[] m_keys;
+        private int[] m_values;
+        private int m_mask, m_size;
+
+        // ---------------------------------------------------------------------
+        public EdgeMap(int capacity) {
+            capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            m_keys = new long[capacity];
+            m_values = new int[capacity];
+            m_mask = capacity - 1;
+            Arrays.fill(m_keys, EdgeMap.EMPTY_KEY);
+        }
+
+        // ---------------------------------------------------------------------
+        private int GetSlot(long key) {
+            int slot = SphereUtils.VertexCache.GetHash(key) & m_mask;
+            while(m_keys[slot] != key && m_keys[slot] != EdgeMap.EMPTY_KEY) {
+                slot = (slot + 1) & m_mask;
+            }
+            return slot;
+        }
+
+        // ---------------------------------------------------------------------
+        public int Get(long key, int missing) {
+            int slot = GetSlot(key);
+            return (m_keys[slot] == key) ? m_values[slot] : missing;
+        }
+
+        // ---------------------------------------------------------------------
+        public void Put(long key, int value) {
+            int slot = GetSlot(key);
+            if(m_keys[slot] == EdgeMap.EMPTY_KEY) {
+                if(m_size + 1 > m_keys.length * EdgeMap.LOAD_FACTOR) {
+                    Grow();
+                    Put(key, value);
+                    return;
+                }
+                m_keys[slot] = key;
+                m_size++;
+            }
+            m_values[slot] = value;
+        }
+
+        // ---------------------------------------------------------------------
+        private void Grow() {
+            long[] keys = m_keys;
+            int[] values = m_values;
+            m_keys = new long[keys.length * 2];
+            m_values = new int[keys.length * 2];
+            m_mask = m_keys.length - 1;
+            Arrays.fill(m_keys, EdgeMap.EMPTY_KEY);
+            for(int i = 0; i < keys.length; i++) {
+                if(keys[i] != EdgeMap.EMPTY_KEY) {
+                    int slot = GetSlot(keys[i]);
+                    m_keys[slot] = keys[i];
+                    m_values[slot] = values[i];
+                }
+            }
+        }
+    }
+
+    // *************************************************************************
+    // SphereAdaptive
+    // *************************************************************************
+    // Result of refinement, leaf triangles are grouped by segment
+    public int vertex_num;
+    public float[] vertices;                    // [vertex * 3] -> position before normalization
+    public int[] triangles;                     // [leaf * 3] -> vertex
+    public int[] segment_begin;                 // [segment] -> first leaf
+    public int link_num;                        // Vertex-segment pairs
+
+    // -------------------------------------------------------------------------
+    private float[] m_norms;                    // [vertex * 3] -> unit direction
+    private int[] m_parents;                    // [vertex * 2] -> ends of split edge
+    private int m_triangle_num;
+    private int[] m_triangles;                  // [triangle * 3] -> vertex
+    private byte[] m_depth;
+    private byte[] m_state;
+    private int[] m_segment;
+    private EdgeMap m_middles;                  // Undirected edge -> middle vertex
+    private EdgeMap m_edges;                    // Directed edge -> triangle
+    private int[] m_queue;                      // Leaves with split edges
+    private int m_queue_num;
+    private int m_split_num, m_forced_num, m_closed_num;
+
+    // -------------------------------------------------------------------------
+    public SphereAdaptive(float[] vert, int[] trig, int chunk_lvl) {
+        vertices = new float[SphereAdaptive.ARRAY_SIZE * 3];
+        m_norms = new float[SphereAdaptive.ARRAY_SIZE * 3];
+        m_parents = new int[SphereAdaptive.ARRAY_SIZE * 2];
+        m_triangles = new int[SphereAdaptive.ARRAY_SIZE * 3];
+        m_depth = new byte[SphereAdaptive.ARRAY_SIZE];
+        m_state = new byte[SphereAdaptive.ARRAY_SIZE];
+        m_segment = new int[SphereAdaptive.ARRAY_SIZE];
+        m_middles = new EdgeMap(SphereAdaptive.ARRAY_SIZE);
+        m_edges = new EdgeMap(SphereAdaptive.ARRAY_SIZE);
+
+        // Base vertices
+        for(int i = 0; i < vert.length; i += 3) {
+            AddVertex(vert[i + 0], vert[i + 1], vert[i + 2], 
+                SphereAdaptive.NO_VERTEX, SphereAdaptive.NO_VERTEX);
+        }
+
+        // Base triangles are split into segments in same order as 
+        // Sphere.CreateIcosphere() does
+        while(--chunk_lvl >= 0) {
+            int[] split = new int[trig.length * 4];
+            for(int i = 0, j = 0; i < trig.length; i += 3) {
+                int v0 = trig[i + 0], v1 = trig[i + 1], v2 = trig[i + 2],
+                    v01 = GetMiddle(v0, v1),
+                    v12 = GetMiddle(v1, v2),
+                    v20 = GetMiddle(v2, v0);
+                split[j++] = v0;  split[j++] = v01; split[j++] = v20;
+                split[j++] = v1;  split[j++] = v12; split[j++] = v01;
+                split[j++] = v2;  split[j++] = v20; split[j++] = v12;
+                split[j++] = v01; split[j++] = v12; split[j++] = v20;
+            }
+            trig = split;
+        }
+
+        // Each triangle is a root of segment
+        for(int i = 0; i < trig.length; i += 3) {
+            AddTriangle(trig[i + 0], trig[i + 1], trig[i + 2], 0, i / 3);
+        }
+        segment_begin = new int[trig.length / 3 + 1];
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertex store gets same coordinates as uniform refinement, so that 
+    // vertices have same texture coordinates
+    private int AddVertex(float x, float y, float z, int parent0, int parent1) {
+        if(vertex_num * 3 == vertices.length) {
+            int size = (int)(vertex_num * SphereAdaptive.GROWTH_FACTOR) + 1;
+            vertices = Arrays.copyOf(vertices, size * 3);
+            m_norms = Arrays.copyOf(m_norms, size * 3);
+            m_parents = Arrays.copyOf(m_parents, size * 2);
+        }
+
+        float len = (float)Math.sqrt(x * x + y * y + z * z);
+        int v = vertex_num++;
+        vertices[v * 3 + 0] = x;
+        vertices[v * 3 + 1] = y;
+        vertices[v * 3 + 2] = z;
+        m_norms[v * 3 + 0] = x / len;
+        m_norms[v * 3 + 1] = y / len;
+        m_norms[v * 3 + 2] = z / len;
+        m_parents[v * 2 + 0] = parent0;
+        m_parents[v * 2 + 1] = parent1;
+        return v;
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetMiddle(int v0, int v1) {
+        long key = SphereUtils.VertexCache.GetKey(v0, v1);
+        int v = m_middles.Get(key, SphereAdaptive.NO_VERTEX);
+        if(v == SphereAdaptive.NO_VERTEX) {
+            v = CreateVertex(v0, v1);
+            m_middles.Put(key, v);
+        }
+        return v;
+    }
+
+    // -------------------------------------------------------------------------
+    private int FindMiddle(int v0, int v1) {
+        return m_middles.Get(SphereUtils.VertexCache.GetKey(v0, v1), 
+            SphereAdaptive.NO_VERTEX);
+    }
+
+    // -------------------------------------------------------------------------
+    private int AddTriangle(int v0, int v1, int v2, int depth, int segment) {
+        if(m_triangle_num == m_state.length) {
+            int size = (int)(m_triangle_num * SphereAdaptive.GROWTH_FACTOR) + 1;
+            m_triangles = Arrays.copyOf(m_triangles, size * 3);
+            m_depth = Arrays.copyOf(m_depth, size);
+            m_state = Arrays.copyOf(m_state, size);
+            m_segment = Arrays.copyOf(m_segment, size);
+        }
+
+        int t = m_triangle_num++;
+        m_triangles[t * 3 + 0] = v0;
+        m_triangles[t * 3 + 1] = v1;
+        m_triangles[t * 3 + 2] = v2;
+        m_depth[t] = (byte)depth;
+        m_state[t] = SphereAdaptive.STATE_LEAF;
+        m_segment[t] = segment;
+        m_edges.Put(SphereAdaptive.GetEdgeKey(v0, v1), t);
+        m_edges.Put(SphereAdaptive.GetEdgeKey(v1, v2), t);
+        m_edges.Put(SphereAdaptive.GetEdgeKey(v2, v0), t);
+        return t;
+    }
+
+    // -------------------------------------------------------------------------
+    private boolean IsLeaf(int t) {
+        return m_state[t] != SphereAdaptive.STATE_SPLIT;
+    }
+
+    // -------------------------------------------------------------------------
+    // Splits triangle into 4, children follow same order as in 
+    // SphereTriangle.Refine()
+    private void Split(int t) {
+        int v0 = m_triangles[t * 3 + 0], 
+            v1 = m_triangles[t * 3 + 1], 
+            v2 = m_triangles[t * 3 + 2];
+        SplitCoarser(v0, v1);
+        SplitCoarser(v1, v2);
+        SplitCoarser(v2, v0);
+
+        int v01 = GetMiddle(v0, v1),
+            v12 = GetMiddle(v1, v2),
+            v20 = GetMiddle(v2, v0),
+            depth = m_depth[t] + 1,
+            segment = m_segment[t];
+        m_state[t] = SphereAdaptive.STATE_SPLIT;
+        AddTriangle(v0, v01, v20, depth, segment);
+        AddTriangle(v1, v12, v01, depth, segment);
+        AddTriangle(v2, v20, v12, depth, segment);
+        AddTriangle(v01, v12, v20, depth, segment);
+        m_split_num++;
+
+        // Neighbours of same level get split edge
+        if(m_queue != null) {
+            Queue(m_edges.Get(SphereAdaptive.GetEdgeKey(v1, v0), SphereAdaptive.NO_TRIANGLE));
+            Queue(m_edges.Get(SphereAdaptive.GetEdgeKey(v2, v1), SphereAdaptive.NO_TRIANGLE));
+            Queue(m_edges.Get(SphereAdaptive.GetEdgeKey(v0, v2), SphereAdaptive.NO_TRIANGLE));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void Queue(int t) {
+        if(t == SphereAdaptive.NO_TRIANGLE || !IsLeaf(t) || 
+           m_state[t] == SphereAdaptive.STATE_QUEUED) {
+            return;
+        }
+        if(m_queue_num == m_queue.length) {
+            m_queue = Arrays.copyOf(m_queue, m_queue_num * 2);
+        }
+        m_queue[m_queue_num++] = t;
+        m_state[t] = SphereAdaptive.STATE_QUEUED;
+    }
+
+    // -------------------------------------------------------------------------
+    // Neighbour behind edge (v0, v1) is split if it is one level coarser, 
+    // i.e. if given edge is only half of neighbour's edge
+    private void SplitCoarser(int v0, int v1) {
+        // Neighbour is already split ...
+        if(FindMiddle(v0, v1) != SphereAdaptive.NO_VERTEX) {
+            return;
+        }
+
+        // ... or it has same edge
+        int n = m_edges.Get(SphereAdaptive.GetEdgeKey(v1, v0), SphereAdaptive.NO_TRIANGLE);
+        if(n != SphereAdaptive.NO_TRIANGLE && IsLeaf(n)) {
+            return;
+        }
+
+        // One of the vertices is middle of neighbour's edge
+        long key;
+        if(m_parents[v1 * 2 + 0] == v0 || m_parents[v1 * 2 + 1] == v0) {
+            int x = m_parents[v1 * 2 + 0] ^ m_parents[v1 * 2 + 1] ^ v0;
+            key = SphereAdaptive.GetEdgeKey(x, v0);
+        } else {
+            Utils.Assert(m_parents[v0 * 2 + 0] == v1 || m_parents[v0 * 2 + 1] == v1,
+                "Failed to split adaptive sphere, neighbour not found :: v0=%d v1=%d", v0, v1);
+            int x = m_parents[v0 * 2 + 0] ^ m_parents[v0 * 2 + 1] ^ v1;
+            key = SphereAdaptive.GetEdgeKey(v1, x);
+        }
+        n = m_edges.Get(key, SphereAdaptive.NO_TRIANGLE);
+        Utils.Assert(n != SphereAdaptive.NO_TRIANGLE && IsLeaf(n),
+            "Failed to split adaptive sphere, coarse neighbour not found :: v0=%d v1=%d", v0, v1);
+        Split(n);
+        m_forced_num++;
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertex of flat sphere has limited number of instances, so number of 
+    // triangles around vertex is limited by 'max_valence'
+    public void Refine(int level, PixmapSampler height_map, int filter, 
+      float max_error, int max_valence, boolean parallel) {
+        int[] candidates = new int[SphereAdaptive.ARRAY_SIZE];
+        for(;;) {
+            // Leaves whose error is not known yet
+            int candidate_num = 0;
+            for(int t = 0; t < m_triangle_num; t++) {
+                if(m_state[t] == SphereAdaptive.STATE_LEAF && m_depth[t] < level) {
+                    if(candidate_num == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidate_num * 2);
+                    }
+                    candidates[candidate_num++] = t;
+                    m_state[t] = SphereAdaptive.STATE_EVALUATED;
+                }
+            }
+            if(candidate_num == 0) {
+                break;
+            }
+
+            // Split rough triangles, some of them might be already split 
+            // as coarser neighbours
+            float[] errors = GetErrors(candidates, candidate_num, level, 
+                height_map, filter, parallel);
+            for(int i = 0; i < candidate_num; i++) {
+                if(errors[i] > max_error && IsLeaf(candidates[i])) {
+                    Split(candidates[i]);
+                }
+            }
+        }
+        Close(max_valence);
+        CollectLeaves();
+        Log.Info("Sphere adaptive refinement :: vertices=%d triangles=%d split=%d forced=%d closed=%d", 
+            vertex_num, triangles.length / 3, m_split_num, m_forced_num, m_closed_num);
+    }
+
+    // -------------------------------------------------------------------------
+    // Largest difference between height map and triangle plane at vertices of
+    // uniformly refined triangle
+    private float[] GetErrors(int[] candidates, int candidate_num, int level, 
+      PixmapSampler height_map, int filter, boolean parallel) {
+        // Sample points of all candidates
+        int[] offsets = new int[candidate_num + 1];
+        for(int i = 0; i < candidate_num; i++) {
+            int n = 1 << (level - m_depth[candidates[i]]);
+            offsets[i + 1] = offsets[i] + (n + 1) * (n + 2) / 2;
+        }
+        float[] uv = new float[offsets[candidate_num] * 2], grid = null;
+        for(int i = 0; i < candidate_num; i++) {
+            int t = candidates[i],
+                n = 1 << (level - m_depth[t]),
+                p = offsets[i] * 2;
+            grid = GetGrid(t, n, grid);
+            for(int j = 0; j <= n; j++) {
+                for(int k = 0; k <= n - j; k++, p += 2) {
+                    int g = (j * (n + 1) + k) * 6 + 3;
+                    GetTexCoord(grid[g + 0], grid[g + 1], grid[g + 2], uv, p);
+                }
+            }
+        }
+        float[] heights = height_map.SampleRed(uv, offsets[candidate_num], filter, parallel);
+
+        // Corners are first, last of first row and last sample
+        float[] errors = new float[candidate_num];
+        for(int i = 0; i < candidate_num; i++) {
+            int n = 1 << (level - m_depth[candidates[i]]),
+                p = offsets[i];
+            float h0 = heights[p], h2 = heights[p + n], h1 = heights[offsets[i + 1] - 1],
+                  error = 0.0f;
+            for(int j = 0; j <= n; j++) {
+                for(int k = 0; k <= n - j; k++, p++) {
+                    float w1 = (float)j / n, w2 = (float)k / n, w0 = 1.0f - w1 - w2;
+                    error = Math.max(error, 
+                        Math.abs(heights[p] - (h0 * w0 + h1 * w1 + h2 * w2)));
+                }
+            }
+            errors[i] = error;
+        }
+        return errors;
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertices of triangle refined 'n' times, each one is a middle of two 
+    // vertices of previous level. Vertex (j, k) is stored at j * (n + 1) + k 
+    // as unit direction followed by position before normalization.
+    private float[] GetGrid(int t, int n, float[] grid) {
+        int size = (n + 1) * (n + 1) * 6;
+        if(grid == null || grid.length < size) {
+            grid = new float[size];
+        }
+        int[] corners = new int[] {0, n * (n + 1), n};
+        for(int i = 0; i < 3; i++) {
+            int v = m_triangles[t * 3 + i];
+            System.arraycopy(m_norms, v * 3, grid, corners[i] * 6 + 0, 3);
+            System.arraycopy(vertices, v * 3, grid, corners[i] * 6 + 3, 3);
+        }
+
+        for(int step = n; step > 1; step /= 2) {
+            int half = step / 2;
+            for(int j = 0; j < n; j += step) {
+                for(int k = 0; j + k < n; k += step) {
+                    SetMiddle(grid, n, j + half, k, j, k, j + step, k);
+                    SetMiddle(grid, n, j, k + half, j, k, j, k + step);
+                    SetMiddle(grid, n, j + half, k + half, j + step, k, j, k + step);
+                }
+            }
+        }
+        return grid;
+    }
+
+    // -------------------------------------------------------------------------
+    // Same as SphereVertex.Store.InitMiddle()
+    private static void SetMiddle(float[] grid, int n, int j, int k, 
+      int j0, int k0, int j1, int k1) {
+        int d = (j * (n + 1) + k) * 6, 
+            s0 = (j0 * (n + 1) + k0) * 6, 
+            s1 = (j1 * (n + 1) + k1) * 6;
+        float x = (grid[s0 + 0] + grid[s1 + 0]) / 2.0f,
+              y = (grid[s0 + 1] + grid[s1 + 1]) / 2.0f,
+              z = (grid[s0 + 2] + grid[s1 + 2]) / 2.0f,
+              len = (float)Math.sqrt(x * x + y * y + z * z);
+        grid[d + 0] = x / len;
+        grid[d + 1] = y / len;
+        grid[d + 2] = z / len;
+        grid[d + 3] = x;
+        grid[d + 4] = y;
+        grid[d + 5] = z;
+    }
+
+    // -------------------------------------------------------------------------
+    // Same mapping as SphereVertex.Store.GetTexCoords()
+    private static void GetTexCoord(float x, float y, float z, float[] uv, int offset) {
+        float lon = UtilsAngle.Normalize(MathUtils.atan2(z, x)),
+              lat = MathUtils.atan2(y, (float)Math.sqrt(x * x + z * z));
+        uv[offset + 0] = 1.0f - lon / MathUtils.PI2;
+        uv[offset + 1] = 0.5f - lat / MathUtils.PI;
+    }
+
+    // -------------------------------------------------------------------------
+    // Leaves with two or three split edges are split as well, leaves with 
+    // single split edge are split in two
+    private void Close(int max_valence) {
+        // Only leaves with split edges are checked, split triangles queue 
+        // their neighbours
+        m_queue = new int[SphereAdaptive.ARRAY_SIZE];
+        m_queue_num = 0;
+        for(int t = 0; t < m_triangle_num; t++) {
+            if(GetSplitEdge(t) != -1) {
+                Queue(t);
+            }
+        }
+
+        int[] valence = new int[vertex_num];
+        for(;;) {
+            boolean is_changed = true;
+            while(is_changed) {
+                is_changed = false;
+                for(int i = 0; i < m_queue_num; i++) {
+                    int t = m_queue[i];
+                    if(IsLeaf(t) && GetSplitEdgeNum(t) >= 2) {
+                        Split(t);
+                        is_changed = true;
+                    }
+                }
+            }
+
+            // Halves add triangles to middle and opposite vertex, leaves whose
+            // halves exceed vertex instances are split in 4. Vertices created
+            // by these splits are checked in next pass.
+            valence = GetValence(valence);
+            int valence_num = vertex_num;
+            for(int i = 0; i < m_queue_num; i++) {
+                int t = m_queue[i],
+                    e = GetSplitEdge(t);
+                if(e == -1) {
+                    continue;
+                }
+                int v0 = m_triangles[t * 3 + e], 
+                    v1 = m_triangles[t * 3 + (e + 1) % 3],
+                    v2 = m_triangles[t * 3 + (e + 2) % 3],
+                    middle = FindMiddle(v0, v1);
+                if((v2 < valence_num && valence[v2] > max_valence) || 
+                   (middle < valence_num && valence[middle] > max_valence)) {
+                    Split(t);
+                    is_changed = true;
+                }
+            }
+            if(!is_changed) {
+                break;
+            }
+        }
+
+        for(int i = 0; i < m_queue_num; i++) {
+            int t = m_queue[i],
+                e = GetSplitEdge(t);
+            if(e == -1) {
+                continue;
+            }
+            int v0 = m_triangles[t * 3 + e], 
+                v1 = m_triangles[t * 3 + (e + 1) % 3],
+                v2 = m_triangles[t * 3 + (e + 2) % 3],
+                middle = FindMiddle(v0, v1);
+            m_state[t] = SphereAdaptive.STATE_SPLIT;
+            AddTriangle(v0, middle, v2, m_depth[t] + 1, m_segment[t]);
+            AddTriangle(middle, v1, v2, m_depth[t] + 1, m_segment[t]);
+            m_closed_num++;
+        }
+        m_queue = null;
+    }
+
+    // -------------------------------------------------------------------------
+    // Number of triangles around each vertex once leaves are closed
+    private int[] GetValence(int[] valence) {
+        if(valence.length < vertex_num) {
+            valence = new int[vertex_num];
+        }
+        Arrays.fill(valence, 0);
+        for(int t = 0; t < m_triangle_num; t++) {
+            if(IsLeaf(t)) {
+                for(int i = 0; i < 3; i++) {
+                    valence[m_triangles[t * 3 + i]]++;
+                }
+            }
+        }
+        for(int i = 0; i < m_queue_num; i++) {
+            int t = m_queue[i],
+                e = GetSplitEdge(t);
+            if(e != -1) {
+                valence[m_triangles[t * 3 + (e + 2) % 3]]++;
+                valence[FindMiddle(m_triangles[t * 3 + e], 
+                    m_triangles[t * 3 + (e + 1) % 3])] += 2;
+            }
+        }
+        return valence;
+    }
+
+    // -------------------------------------------------------------------------
+    // First split edge of leaf, -1 if there is none
+    private int GetSplitEdge(int t) {
+        if(!IsLeaf(t)) {
+            return -1;
+        }
+        for(int i = 0; i < 3; i++) {
+            if(FindMiddle(m_triangles[t * 3 + i], 
+              m_triangles[t * 3 + (i + 1) % 3]) != SphereAdaptive.NO_VERTEX) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetSplitEdgeNum(int t) {
+        int v0 = m_triangles[t * 3 + 0], 
+            v1 = m_triangles[t * 3 + 1], 
+            v2 = m_triangles[t * 3 + 2];
+        return ((FindMiddle(v0, v1) != SphereAdaptive.NO_VERTEX) ? 1 : 0) +
+            ((FindMiddle(v1, v2) != SphereAdaptive.NO_VERTEX) ? 1 : 0) + 
+            ((FindMiddle(v2, v0) != SphereAdaptive.NO_VERTEX) ? 1 : 0);
+    }
+
+    // -------------------------------------------------------------------------
+    // Groups leaves by segment and counts distinct vertices of each segment
+    private void CollectLeaves() {
+        int segment_num = segment_begin.length - 1;
+        Arrays.fill(segment_begin, 0);
+        for(int t = 0; t < m_triangle_num; t++) {
+            if(IsLeaf(t)) {
+                segment_begin[m_segment[t] + 1]++;
+            }
+        }
+        for(int s = 0; s < segment_num; s++) {
+            segment_begin[s + 1] += segment_begin[s];
+        }
+
+        int[] fill = Arrays.copyOf(segment_begin, segment_num);
+        triangles = new int[segment_begin[segment_num] * 3];
+        for(int t = 0; t < m_triangle_num; t++) {
+            if(IsLeaf(t)) {
+                System.arraycopy(m_triangles, t * 3, triangles, fill[m_segment[t]]++ * 3, 3);
+            }
+        }
+
+        int[] stamps = new int[vertex_num];
+        link_num = 0;
+        for(int s = 0; s < segment_num; s++) {
+            for(int i = segment_begin[s] * 3; i < segment_begin[s + 1] * 3; i++) {
+                if(stamps[triangles[i]] != s + 1) {
+                    stamps[triangles[i]] = s + 1;
+                    link_num++;
+                }
+            }
+        }
+    }
+
+    // *************************************************************************
+    // SphereUtils.ISphereManager
+    // *************************************************************************
+    @Override public int CreateVertex(int v0, int v1) {
+        return AddVertex(
+            (m_norms[v0 * 3 + 0] + m_norms[v1 * 3 + 0]) / 2.0f,
+            (m_norms[v0 * 3 + 1] + m_norms[v1 * 3 + 1]) / 2.0f,
+            (m_norms[v0 * 3 + 2] + m_norms[v1 * 3 + 2]) / 2.0f, v0, v1);
+    }
+}
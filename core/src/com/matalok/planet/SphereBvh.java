@@ -0,0 +1,476 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.util.Arrays;
+
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Bounding volume hierarchy over triangles of sphere segments. Triangles are
+// read from vertex and index arrays of segments, so cached sphere works too.
+// Tree is built once with median split of triangle centers, after vertices
+// move tree keeps its topology and only leaves overlapping dirty region and
+// their ancestors are refitted. Queries do not allocate and may run on several
+// threads at once, each thread has its own traversal stack and hit triangle is
+// returned to caller. SetDirty() and Refit() modify tree and should not
+// overlap with queries.
+public class SphereBvh {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int LEAF_SIZE       = 4;    // Max triangles per leaf
+    public static final int STACK_SIZE      = 64;   // Max traversal depth
+    public static final float NO_HIT        = -1.0f;
+
+    // -------------------------------------------------------------------------
+    // Queries might run on several threads at once
+    private static ThreadLocal<int[]> query_stack = new ThreadLocal<int[]>() {
+        @Override protected int[] initialValue() {
+            return new int[SphereBvh.STACK_SIZE];
+        }
+    };
+
+    // *************************************************************************
+    // SphereBvh
+    // *************************************************************************
+    private SphereSegment[] m_segments;
+
+    // -------------------------------------------------------------------------
+    // Triangles in leaf order, each has 3 vertex positions
+    private int m_triangle_num;
+    private float[] m_triangles;
+    private int[] m_triangle_segment, m_triangle_index;
+
+    // -------------------------------------------------------------------------
+    // Nodes, leaf has triangle range, inner node has adjacent children
+    private int m_node_num;
+    private float[] m_bounds;                   // min xyz, max xyz
+    private int[] m_first, m_count;             // count is 0 for inner node
+    private int[] m_parent;
+
+    // -------------------------------------------------------------------------
+    // Partial refit, dirty leaves are followed by their ancestors
+    private boolean[] m_is_dirty;
+    private int[] m_dirty_nodes;
+    private int m_dirty_num;
+
+    // -------------------------------------------------------------------------
+    private int[] m_stack;
+
+    // -------------------------------------------------------------------------
+    public SphereBvh(SphereSegment[] segments) {
+        long start = System.currentTimeMillis();
+        m_segments = segments;
+
+        // Collect triangles of all segments
+        for(SphereSegment s : segments) {
+            m_triangle_num += s.GetIndexArray().length / 3;
+        }
+        int[] src_segment = new int[m_triangle_num], src_index = new int[m_triangle_num];
+        float[] center = new float[m_triangle_num * 3];
+        for(int i = 0, t = 0; i < segments.length; i++) {
+            float[] va = segments[i].GetVertexArray();
+            short[] ia = segments[i].GetIndexArray();
+            int attrib_num = segments[i].GetAttribNum();
+            for(int j = 0; j < ia.length; j += 3, t++) {
+                src_segment[t] = i;
+                src_index[t] = j;
+                for(int k = 0; k < 3; k++) {
+                    int v = (ia[j + k] & 0xFFFF) * attrib_num;
+                    center[t * 3 + 0] += va[v + SphereVertex.ATTRIB_POS_X];
+                    center[t * 3 + 1] += va[v + SphereVertex.ATTRIB_POS_Y];
+                    center[t * 3 + 2] += va[v + SphereVertex.ATTRIB_POS_Z];
+                }
+            }
+        }
+
+        // Split nodes until they fit into leaves, binary tree with at least 
+        // one triangle per leaf has less than twice as many nodes
+        int[] order = new int[m_triangle_num];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int node_max = Math.max(1, 2 * m_triangle_num - 1);
+        m_bounds = new float[node_max * 6];
+        m_first = new int[node_max];
+        m_count = new int[node_max];
+        m_parent = new int[node_max];
+        m_parent[0] = -1;
+        m_node_num = 1;
+        m_count[0] = m_triangle_num;
+        int max_depth = 0;
+        int[] stack = new int[SphereBvh.STACK_SIZE], depth = new int[SphereBvh.STACK_SIZE];
+        int sp = 0;
+        stack[sp] = 0;
+        depth[sp++] = 0;
+        while(sp > 0) {
+            int node = stack[--sp], node_depth = depth[sp];
+            max_depth = Math.max(max_depth, node_depth);
+            int begin = m_first[node], end = begin + m_count[node];
+            if(end - begin <= SphereBvh.LEAF_SIZE) {
+                continue;
+            }
+
+            // Split along longest axis of triangle centers
+            int axis = SphereBvh.GetLongestAxis(center, order, begin, end);
+            int middle = (begin + end) >>> 1;
+            SphereBvh.Select(center, axis, order, begin, end, middle);
+
+            int left = m_node_num;
+            m_node_num += 2;
+            m_first[node] = left;
+            m_count[node] = 0;
+            m_first[left] = begin;
+            m_count[left] = middle - begin;
+            m_first[left + 1] = middle;
+            m_count[left + 1] = end - middle;
+            m_parent[left] = m_parent[left + 1] = node;
+
+            Utils.Assert(sp + 2 <= SphereBvh.STACK_SIZE, 
+                "Failed to build sphere BVH, tree is too deep :: depth=%d", node_depth);
+            stack[sp] = left;
+            depth[sp++] = node_depth + 1;
+            stack[sp] = left + 1;
+            depth[sp++] = node_depth + 1;
+        }
+
+        // Triangles are stored in leaf order
+        m_triangles = new float[m_triangle_num * 9];
+        m_triangle_segment = new int[m_triangle_num];
+        m_triangle_index = new int[m_triangle_num];
+        for(int i = 0; i < m_triangle_num; i++) {
+            m_triangle_segment[i] = src_segment[order[i]];
+            m_triangle_index[i] = src_index[order[i]];
+        }
+        m_stack = new int[SphereBvh.STACK_SIZE];
+        m_is_dirty = new boolean[m_node_num];
+        m_dirty_nodes = new int[m_node_num];
+        RefitAll();
+        Log.Info("Sphere BVH built :: triangles=%d nodes=%d depth=%d duration=%d", 
+            m_triangle_num, m_node_num, max_depth, System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    private static int GetLongestAxis(float[] center, int[] order, int begin, int end) {
+        float[] min = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE},
+                max = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for(int i = begin; i < end; i++) {
+            int c = order[i] * 3;
+            for(int j = 0; j < 3; j++) {
+                min[j] = Math.min(min[j], center[c + j]);
+                max[j] = Math.max(max[j], center[c + j]);
+            }
+        }
+        float x = max[0] - min[0], y = max[1] - min[1], z = max[2] - min[2];
+        return (x >= y && x >= z) ? 0 : (y >= z) ? 1 : 2;
+    }
+
+    // -------------------------------------------------------------------------
+    // Partial quick sort, puts n-th triangle to its place with smaller 
+    // triangles before it and larger after it
+    private static void Select(float[] center, int axis, int[] order, int begin, 
+      int end, int n) {
+        int lo = begin, hi = end - 1;
+        while(lo < hi) {
+            float pivot = center[order[(lo + hi) >>> 1] * 3 + axis];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(center[order[i] * 3 + axis] < pivot) i++;
+                while(center[order[j] * 3 + axis] > pivot) j--;
+                if(i <= j) {
+                    int tmp = order[i];
+                    order[i++] = order[j];
+                    order[j--] = tmp;
+                }
+            }
+            if(n <= j) {
+                hi = j;
+            } else if(n >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void CopyTriangle(int t) {
+        SphereSegment s = m_segments[m_triangle_segment[t]];
+        float[] va = s.GetVertexArray();
+        short[] ia = s.GetIndexArray();
+        int attrib_num = s.GetAttribNum(), idx = m_triangle_index[t];
+        for(int k = 0; k < 3; k++) {
+            int v = (ia[idx + k] & 0xFFFF) * attrib_num, o = t * 9 + k * 3;
+            m_triangles[o + 0] = va[v + SphereVertex.ATTRIB_POS_X];
+            m_triangles[o + 1] = va[v + SphereVertex.ATTRIB_POS_Y];
+            m_triangles[o + 2] = va[v + SphereVertex.ATTRIB_POS_Z];
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Leaf bounds are taken from triangles, inner node bounds from children
+    private void UpdateBounds(int n) {
+        int b = n * 6, from, to;
+        float[] src;
+        if(m_count[n] > 0) {
+            src = m_triangles;
+            from = m_first[n] * 9;
+            to = (m_first[n] + m_count[n]) * 9;
+        } else {
+            src = m_bounds;
+            from = m_first[n] * 6;
+            to = (m_first[n] + 2) * 6;
+        }
+        float min_x = Float.MAX_VALUE, min_y = Float.MAX_VALUE, min_z = Float.MAX_VALUE,
+              max_x = -Float.MAX_VALUE, max_y = -Float.MAX_VALUE, max_z = -Float.MAX_VALUE;
+        int step = (src == m_triangles) ? 3 : 6, 
+            max_offset = (src == m_triangles) ? 0 : 3;
+        for(int i = from; i < to; i += step) {
+            min_x = Math.min(min_x, src[i + 0]);
+            min_y = Math.min(min_y, src[i + 1]);
+            min_z = Math.min(min_z, src[i + 2]);
+            max_x = Math.max(max_x, src[i + max_offset + 0]);
+            max_y = Math.max(max_y, src[i + max_offset + 1]);
+            max_z = Math.max(max_z, src[i + max_offset + 2]);
+        }
+        m_bounds[b + 0] = min_x;
+        m_bounds[b + 1] = min_y;
+        m_bounds[b + 2] = min_z;
+        m_bounds[b + 3] = max_x;
+        m_bounds[b + 4] = max_y;
+        m_bounds[b + 5] = max_z;
+    }
+
+    // -------------------------------------------------------------------------
+    // Copies all triangles from segments and updates all nodes, children 
+    // always follow their parents
+    public void RefitAll() {
+        for(int t = 0; t < m_triangle_num; t++) {
+            CopyTriangle(t);
+        }
+        for(int n = m_node_num - 1; n >= 0; n--) {
+            UpdateBounds(n);
+        }
+        while(m_dirty_num > 0) {
+            m_is_dirty[m_dirty_nodes[--m_dirty_num]] = false;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertices inside given box are about to move, leaves that overlap box 
+    // are refitted by next Refit()
+    public void SetDirty(Vector3 min, Vector3 max) {
+        if(m_node_num == 0) {
+            return;
+        }
+        int sp = 0;
+        m_stack[sp++] = 0;
+        while(sp > 0) {
+            int n = m_stack[--sp], b = n * 6;
+            if(m_bounds[b + 0] > max.x || m_bounds[b + 3] < min.x ||
+               m_bounds[b + 1] > max.y || m_bounds[b + 4] < min.y ||
+               m_bounds[b + 2] > max.z || m_bounds[b + 5] < min.z) {
+                continue;
+            }
+            if(m_count[n] == 0) {
+                m_stack[sp++] = m_first[n];
+                m_stack[sp++] = m_first[n] + 1;
+            } else if(!m_is_dirty[n]) {
+                m_is_dirty[n] = true;
+                m_dirty_nodes[m_dirty_num++] = n;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean IsDirty() {
+        return m_dirty_num > 0;
+    }
+
+    // -------------------------------------------------------------------------
+    // Refits triangles of dirty leaves and all their ancestors
+    public void Refit() {
+        // Leaves
+        for(int i = 0; i < m_dirty_num; i++) {
+            int n = m_dirty_nodes[i];
+            for(int t = m_first[n]; t < m_first[n] + m_count[n]; t++) {
+                CopyTriangle(t);
+            }
+        }
+
+        // Ancestors, list grows while it's traversed
+        for(int i = 0; i < m_dirty_num; i++) {
+            int parent = m_parent[m_dirty_nodes[i]];
+            if(parent != -1 && !m_is_dirty[parent]) {
+                m_is_dirty[parent] = true;
+                m_dirty_nodes[m_dirty_num++] = parent;
+            }
+        }
+
+        // Children before parents
+        Arrays.sort(m_dirty_nodes, 0, m_dirty_num);
+        while(m_dirty_num > 0) {
+            int n = m_dirty_nodes[--m_dirty_num];
+            UpdateBounds(n);
+            m_is_dirty[n] = false;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetTriangleNum() {
+        return m_triangle_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetNodeNum() {
+        return m_node_num;
+    }
+
+    // -------------------------------------------------------------------------
+    // Distance to nearest hit in units of direction length or NO_HIT
+    public float Intersect(Vector3 origin, Vector3 dir, float max_t) {
+        return Intersect(origin.x, origin.y, origin.z, dir.x, dir.y, dir.z, max_t);
+    }
+
+    // -------------------------------------------------------------------------
+    // Fraction of segment before nearest hit or NO_HIT
+    public float IntersectSegment(Vector3 from, Vector3 to) {
+        return Intersect(from.x, from.y, from.z, 
+            to.x - from.x, to.y - from.y, to.z - from.z, 1.0f);
+    }
+
+    // -------------------------------------------------------------------------
+    public float Intersect(float ox, float oy, float oz, float dx, float dy, 
+      float dz, float max_t) {
+        return Intersect(ox, oy, oz, dx, dy, dz, max_t, null);
+    }
+
+    // -------------------------------------------------------------------------
+    // Segment and index offset of hit triangle are written to hit_tri when it 
+    // is given, both are -1 if nothing was hit
+    public float Intersect(float ox, float oy, float oz, float dx, float dy, 
+      float dz, float max_t, int[] hit_tri) {
+        if(hit_tri != null) {
+            hit_tri[0] = hit_tri[1] = -1;
+        }
+        if(m_node_num == 0 || m_triangle_num == 0) {
+            return SphereBvh.NO_HIT;
+        }
+
+        float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz, best = max_t;
+        int sp = 0, hit = -1;
+        if(IntersectBounds(0, ox, oy, oz, ix, iy, iz, best) < 0.0f) {
+            return SphereBvh.NO_HIT;
+        }
+        int[] stack = SphereBvh.query_stack.get();
+        stack[sp++] = 0;
+        while(sp > 0) {
+            int n = stack[--sp];
+            if(m_count[n] > 0) {
+                // Test triangles of leaf
+                for(int t = m_first[n]; t < m_first[n] + m_count[n]; t++) {
+                    float dst = IntersectTriangle(t, ox, oy, oz, dx, dy, dz);
+                    if(dst >= 0.0f && dst <= best) {
+                        best = dst;
+                        hit = t;
+                    }
+                }
+                continue;
+            }
+
+            // Nearer child is visited first
+            int left = m_first[n], right = left + 1;
+            float left_t = IntersectBounds(left, ox, oy, oz, ix, iy, iz, best),
+                  right_t = IntersectBounds(right, ox, oy, oz, ix, iy, iz, best);
+            if(left_t >= 0.0f && right_t >= 0.0f) {
+                if(left_t < right_t) {
+                    stack[sp++] = right;
+                    stack[sp++] = left;
+                } else {
+                    stack[sp++] = left;
+                    stack[sp++] = right;
+                }
+            } else if(left_t >= 0.0f) {
+                stack[sp++] = left;
+            } else if(right_t >= 0.0f) {
+                stack[sp++] = right;
+            }
+        }
+        if(hit == -1) {
+            return SphereBvh.NO_HIT;
+        }
+        if(hit_tri != null) {
+            hit_tri[0] = m_triangle_segment[hit];
+            hit_tri[1] = m_triangle_index[hit];
+        }
+        return best;
+    }
+
+    // -------------------------------------------------------------------------
+    // Slab test, returns entry distance or -1 if box is missed within max_t
+    private float IntersectBounds(int n, float ox, float oy, float oz, 
+      float ix, float iy, float iz, float max_t) {
+        int b = n * 6;
+        float t0 = (m_bounds[b + 0] - ox) * ix, t1 = (m_bounds[b + 3] - ox) * ix;
+        float t_min = Math.min(t0, t1), t_max = Math.max(t0, t1);
+        t0 = (m_bounds[b + 1] - oy) * iy;
+        t1 = (m_bounds[b + 4] - oy) * iy;
+        t_min = Math.max(t_min, Math.min(t0, t1));
+        t_max = Math.min(t_max, Math.max(t0, t1));
+        t0 = (m_bounds[b + 2] - oz) * iz;
+        t1 = (m_bounds[b + 5] - oz) * iz;
+        t_min = Math.max(t_min, Math.min(t0, t1));
+        t_max = Math.min(t_max, Math.max(t0, t1));
+        if(t_max < t_min || t_max < 0.0f || t_min > max_t) {
+            return -1.0f;
+        }
+        return Math.max(t_min, 0.0f);
+    }
+
+    // -------------------------------------------------------------------------
+    // Moller-Trumbore test of both sides of triangle
+    private float IntersectTriangle(int t, float ox, float oy, float oz, 
+      float dx, float dy, float dz) {
+        float[] tr = m_triangles;
+        int o = t * 9;
+        float e1x = tr[o + 3] - tr[o + 0], e1y = tr[o + 4] - tr[o + 1], e1z = tr[o + 5] - tr[o + 2],
+              e2x = tr[o + 6] - tr[o + 0], e2y = tr[o + 7] - tr[o + 1], e2z = tr[o + 8] - tr[o + 2];
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if(det == 0.0f) {
+            return SphereBvh.NO_HIT;
+        }
+        float inv = 1.0f / det;
+        float sx = ox - tr[o + 0], sy = oy - tr[o + 1], sz = oz - tr[o + 2];
+        float u = (sx * px + sy * py + sz * pz) * inv;
+        if(u < 0.0f || u > 1.0f) {
+            return SphereBvh.NO_HIT;
+        }
+        float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inv;
+        if(v < 0.0f || u + v > 1.0f) {
+            return SphereBvh.NO_HIT;
+        }
+        float dst = (e2x * qx + e2y * qy + e2z * qz) * inv;
+        return (dst >= 0.0f) ? dst : SphereBvh.NO_HIT;
+    }
+}
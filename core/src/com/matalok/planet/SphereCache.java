@@ -0,0 +1,193 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+
+// -----------------------------------------------------------------------------
+// Binary cache of refined and finalized sphere mesh. File layout:
+//  *** header  - magic, version, refine level, checksum, segment number
+//  *** segment - center, normal, vertex number, attribute number, array sizes,
+//                surface ranges, vertex array, index array
+public class SphereCache {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int MAGIC           = 0x53504852; // "SPHR"
+    public static final int VERSION         = 3;
+    public static final int HEADER_SIZE     = 5 * 4;
+    public static final int BUFF_SIZE       = 64 * 1024;
+
+    // -------------------------------------------------------------------------
+    public static long GetChecksum(int refine_lvl, boolean smooth, boolean colored, 
+      int height_filter, float max_height, float max_error, FileHandle... files) {
+        CRC32 crc = new CRC32();
+        SphereCache.UpdateChecksum(crc, files);
+
+        // Parameters that affect mesh, each one is fed separately so that
+        // they can't cancel each other
+        SphereCache.UpdateChecksum(crc, SphereCache.VERSION);
+        SphereCache.UpdateChecksum(crc, refine_lvl);
+        SphereCache.UpdateChecksum(crc, Float.floatToIntBits(max_height));
+        SphereCache.UpdateChecksum(crc, ((smooth) ? 1 : 0) | ((colored) ? 2 : 0));
+        SphereCache.UpdateChecksum(crc, height_filter);
+        SphereCache.UpdateChecksum(crc, Float.floatToIntBits(max_error));
+        return crc.getValue();
+    }
+
+    // -------------------------------------------------------------------------
+    public static void UpdateChecksum(CRC32 crc, int value) {
+        crc.update(new byte[] {
+            (byte)(value >> 24), (byte)(value >> 16),
+            (byte)(value >> 8), (byte)value});
+    }
+
+    // -------------------------------------------------------------------------
+    public static void UpdateChecksum(CRC32 crc, FileHandle... files) {
+        byte[] buff = new byte[SphereCache.BUFF_SIZE];
+        for(FileHandle f : files) {
+            InputStream is = null;
+            try {
+                is = f.read();
+                for(;;) {
+                    int len = is.read(buff);
+                    if(len < 0) {
+                        break;
+                    }
+                    crc.update(buff, 0, len);
+                }
+            } catch(Exception ex) {
+                Utils.Assert(false, "Failed to read cache source :: file=%s ex=%s",
+                    f.path(), ex.toString());
+            } finally {
+                try { if(is != null) is.close(); } catch(Exception ex) { }
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public static FileHandle GetFile(String dir, int refine_lvl, long checksum) {
+        return Gdx.files.local(dir).child(
+            String.format("sphere-%d-%08x.bin", refine_lvl, checksum));
+    }
+
+    // *************************************************************************
+    // SphereCache
+    // *************************************************************************
+    private FileHandle m_file;
+    private int m_refine_lvl;
+    private long m_checksum;
+
+    // -------------------------------------------------------------------------
+    public SphereCache(FileHandle file, int refine_lvl, long checksum) {
+        m_file = file;
+        m_refine_lvl = refine_lvl;
+        m_checksum = checksum;
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean Read(Sphere sphere) {
+        if(!m_file.exists()) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            // Map whole file
+            raf = new RandomAccessFile(m_file.file(), "r");
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Validate header
+            int magic = buff.getInt(),
+                version = buff.getInt(),
+                refine_lvl = buff.getInt(),
+                checksum = buff.getInt(),
+                segment_num = buff.getInt();
+            if(magic != SphereCache.MAGIC || version != SphereCache.VERSION ||
+               refine_lvl != m_refine_lvl || checksum != (int)m_checksum) {
+                Log.Err("Failed to read sphere cache, header mismatch :: file=%s ver=%d lvl=%d",
+                    m_file.path(), version, refine_lvl);
+                return false;
+            }
+
+            // Read segments
+            sphere.ReadCache(buff, segment_num);
+            Log.Info("Sphere cache read :: file=%s size=%d", m_file.path(), ch.size());
+            return true;
+
+        } catch(Exception ex) {
+            Log.Err("Failed to read sphere cache :: file=%s ex=%s",
+                m_file.path(), ex.toString());
+            return false;
+
+        } finally {
+            try { if(raf != null) raf.close(); } catch(Exception ex) { }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean Write(Sphere sphere) {
+        RandomAccessFile raf = null;
+        try {
+            m_file.parent().mkdirs();
+            long size = SphereCache.HEADER_SIZE + sphere.GetCacheSize();
+
+            // Map whole file
+            raf = new RandomAccessFile(m_file.file(), "rw");
+            raf.setLength(size);
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Header
+            buff.putInt(SphereCache.MAGIC);
+            buff.putInt(SphereCache.VERSION);
+            buff.putInt(m_refine_lvl);
+            buff.putInt((int)m_checksum);
+
+            // Segments
+            sphere.WriteCache(buff);
+            buff.force();
+            Log.Info("Sphere cache written :: file=%s size=%d", m_file.path(), size);
+            return true;
+
+        } catch(Exception ex) {
+            Log.Err("Failed to write sphere cache :: file=%s ex=%s",
+                m_file.path(), ex.toString());
+            try { if(raf != null) raf.close(); raf = null; } catch(Exception e) { }
+            m_file.delete();
+            return false;
+
+        } finally {
+            try { if(raf != null) raf.close(); } catch(Exception ex) { }
+        }
+    }
+}
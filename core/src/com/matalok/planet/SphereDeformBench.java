@@ -0,0 +1,68 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import com.badlogic.gdx.math.MathUtils;
+
+// -----------------------------------------------------------------------------
+// Debug object that deforms parent sphere with random impacts every frame. 
+// Impacts are made between pre and post stage of sphere prepare, so they are
+// flushed to GPU in same frame.
+public class SphereDeformBench extends CommonObject {
+    // *************************************************************************
+    // SphereDeformBench
+    // *************************************************************************
+    private Sphere m_sphere;
+    private int m_impact_num;
+    private long m_time;
+
+    // -------------------------------------------------------------------------
+    public SphereDeformBench(Sphere sphere, int impact_num) {
+        super("sphere-deform-bench");
+        m_sphere = sphere;
+        m_impact_num = impact_num;
+    }
+
+    // *************************************************************************
+    // CommonObject
+    // *************************************************************************
+    @Override public boolean OnPrepare(int stage, Object[] args) {
+        if(stage == CommonObject.STAGE_PRE) {
+            Config cfg = Main.p.cfg;
+            long start = System.nanoTime();
+            for(int i = 0; i < m_impact_num; i++) {
+                m_sphere.Deform(MathUtils.random(MathUtils.PI2), 
+                    MathUtils.random(-MathUtils.PI / 2, MathUtils.PI / 2), 
+                    cfg.shooter_crater_radius, cfg.shooter_crater_depth);
+            }
+            m_time = System.nanoTime() - start;
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    @Override public boolean OnRender(int stage, Object[] args) {
+        if(stage == CommonObject.STAGE_PRE) {
+            Main.p.gui.WriteMsg("deform bench: impacts=%d time=%.2fms flushed=%d", 
+                m_impact_num, m_time / 1000000.0f, m_sphere.GetFlushedBytes());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Geodesic index of sphere triangles. Direction is projected to one of 6 
+// faces of cube, each face is split into NxN cells and every cell keeps list
+// of triangles that overlap it. Great circles are straight lines in this 
+// projection, so cells of triangle are found from bounds of its projected 
+// corners. Index depends only on directions of vertices, heights are read 
+// from vertex arrays of segments and may change after index is built.
+public class SphereGrid {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int FACE_NUM            = 6;
+    public static final int TRIANGLES_PER_CELL  = 2;
+    public static final float CELL_PADDING      = 1.0e-4f;
+    public static final float LARGE_EDGE_COS    = 0.8f;     // ~37 degrees
+
+    // *************************************************************************
+    // SphereGrid
+    // *************************************************************************
+    private SphereSegment[] m_segments;
+    private int m_triangle_num;
+    private int m_cell_num;                     // Cells per face side
+    private float m_half_cell_num;
+
+    // -------------------------------------------------------------------------
+    // Triangles
+    private float[] m_edges;                    // Outward normals of edge planes
+    private int[] m_offsets;                    // Position offsets in vertex array
+    private int[] m_triangle_segment;
+    private SphereTriangle[] m_triangles;       // Empty if sphere was cached
+
+    // -------------------------------------------------------------------------
+    // Cells
+    private int[] m_cell_begin;                 // [cell] -> first in cell list
+    private int[] m_cell_triangles;
+
+    // -------------------------------------------------------------------------
+    public SphereGrid(SphereSegment[] segments) {
+        long start = System.currentTimeMillis();
+        m_segments = segments;
+
+        // Triangle corners are normalized, height does not matter
+        boolean has_triangles = true;
+        for(SphereSegment s : segments) {
+            m_triangle_num += s.GetIndexArray().length / 3;
+            has_triangles &= s.HasTriangles();
+        }
+        m_edges = new float[m_triangle_num * 9];
+        m_offsets = new int[m_triangle_num * 3];
+        m_triangle_segment = new int[m_triangle_num];
+        m_triangles = new SphereTriangle[(has_triangles) ? m_triangle_num : 0];
+        float[] corners = new float[m_triangle_num * 9];
+        for(int i = 0, t = 0; i < segments.length; i++) {
+            float[] va = segments[i].GetVertexArray();
+            short[] ia = segments[i].GetIndexArray();
+            int attrib_num = segments[i].GetAttribNum();
+            for(int j = 0; j < ia.length; j += 3, t++) {
+                m_triangle_segment[t] = i;
+                if(has_triangles) {
+                    m_triangles[t] = segments[i].GetTriangle(j / 3);
+                }
+                for(int k = 0; k < 3; k++) {
+                    int offset = (ia[j + k] & 0xFFFF) * attrib_num + SphereVertex.ATTRIB_POS_X, 
+                        c = t * 9 + k * 3;
+                    float x = va[offset + 0], y = va[offset + 1], z = va[offset + 2],
+                          len = (float)Math.sqrt(x * x + y * y + z * z);
+                    m_offsets[t * 3 + k] = offset;
+                    corners[c + 0] = x / len;
+                    corners[c + 1] = y / len;
+                    corners[c + 2] = z / len;
+                }
+                SetEdges(t, corners);
+            }
+        }
+
+        // Cell lists are filled in two passes, first one counts triangles
+        m_cell_num = Math.max(1, (int)Math.sqrt(m_triangle_num / 
+            (SphereGrid.FACE_NUM * SphereGrid.TRIANGLES_PER_CELL)));
+        m_half_cell_num = m_cell_num * 0.5f;
+        m_cell_begin = new int[SphereGrid.FACE_NUM * m_cell_num * m_cell_num + 1];
+        for(int t = 0; t < m_triangle_num; t++) {
+            AddTriangle(t, corners, null);
+        }
+        for(int i = 0; i < m_cell_begin.length - 1; i++) {
+            m_cell_begin[i + 1] += m_cell_begin[i];
+        }
+        m_cell_triangles = new int[m_cell_begin[m_cell_begin.length - 1]];
+        int[] fill = new int[m_cell_begin.length - 1];
+        for(int t = 0; t < m_triangle_num; t++) {
+            AddTriangle(t, corners, fill);
+        }
+
+        Log.Info("Sphere grid built :: triangles=%d cells=%dx%dx%d refs=%d duration=%d", 
+            m_triangle_num, SphereGrid.FACE_NUM, m_cell_num, m_cell_num, 
+            m_cell_triangles.length, System.currentTimeMillis() - start);
+    }
+
+    // -------------------------------------------------------------------------
+    // Direction is inside triangle if it's above all edge planes
+    private void SetEdges(int t, float[] corners) {
+        int c = t * 9;
+        float sign = 1.0f;
+        for(int k = 0; k < 3; k++) {
+            int a = c + k * 3, b = c + ((k + 1) % 3) * 3, e = c + ((k + 2) % 3) * 3;
+
+            // Edge opposite to vertex 'k' is stored at 'k'
+            m_edges[a + 0] = corners[b + 1] * corners[e + 2] - corners[b + 2] * corners[e + 1];
+            m_edges[a + 1] = corners[b + 2] * corners[e + 0] - corners[b + 0] * corners[e + 2];
+            m_edges[a + 2] = corners[b + 0] * corners[e + 1] - corners[b + 1] * corners[e + 0];
+            if(k == 0) {
+                sign = (corners[a + 0] * m_edges[a + 0] + corners[a + 1] * m_edges[a + 1] + 
+                    corners[a + 2] * m_edges[a + 2] < 0.0f) ? -1.0f : 1.0f;
+            }
+        }
+        for(int i = c; i < c + 9; i++) {
+            m_edges[i] *= sign;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Adds triangle to all cells that overlap bounds of its projection, 
+    // counts cell triangles if 'fill' is null
+    private void AddTriangle(int t, float[] corners, int[] fill) {
+        int c = t * 9;
+        for(int face = 0; face < SphereGrid.FACE_NUM; face++) {
+            int axis = face >> 1, 
+                u_axis = (axis + 1) % 3, 
+                v_axis = (axis + 2) % 3;
+            float sign = ((face & 1) == 1) ? -1.0f : 1.0f;
+
+            // Projection is valid if triangle is in front of face
+            float u_min = Float.MAX_VALUE, u_max = -Float.MAX_VALUE,
+                  v_min = Float.MAX_VALUE, v_max = -Float.MAX_VALUE;
+            int front_num = 0;
+            for(int k = 0; k < 3; k++) {
+                float w = corners[c + k * 3 + axis] * sign;
+                if(w <= 0.0f) {
+                    continue;
+                }
+                float u = corners[c + k * 3 + u_axis] / w, v = corners[c + k * 3 + v_axis] / w;
+                u_min = Math.min(u_min, u);
+                u_max = Math.max(u_max, u);
+                v_min = Math.min(v_min, v);
+                v_max = Math.max(v_max, v);
+                front_num++;
+            }
+            if(front_num == 0) {
+                continue;
+            }
+
+            // Triangle that crosses horizon of face can't be projected. Face 
+            // starts 35 degrees above horizon, so only triangles with longer 
+            // edges can reach it, they are found on very coarse spheres.
+            int u0 = 0, u1 = m_cell_num - 1, v0 = 0, v1 = m_cell_num - 1;
+            if(front_num < 3 && !IsLarge(t, corners)) {
+                continue;
+            } else if(front_num == 3) {
+                if(u_max < -1.0f || u_min > 1.0f || v_max < -1.0f || v_min > 1.0f) {
+                    continue;
+                }
+                u0 = GetCell(u_min - SphereGrid.CELL_PADDING); 
+                u1 = GetCell(u_max + SphereGrid.CELL_PADDING);
+                v0 = GetCell(v_min - SphereGrid.CELL_PADDING); 
+                v1 = GetCell(v_max + SphereGrid.CELL_PADDING);
+            }
+            for(int v = v0; v <= v1; v++) {
+                for(int u = u0; u <= u1; u++) {
+                    int cell = (face * m_cell_num + v) * m_cell_num + u;
+                    if(fill == null) {
+                        m_cell_begin[cell + 1]++;
+                    } else {
+                        m_cell_triangles[m_cell_begin[cell] + fill[cell]++] = t;
+                    }
+                }
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private static boolean IsLarge(int t, float[] corners) {
+        int c = t * 9;
+        for(int k = 0; k < 3; k++) {
+            int a = c + k * 3, b = c + ((k + 1) % 3) * 3;
+            if(corners[a + 0] * corners[b + 0] + corners[a + 1] * corners[b + 1] + 
+               corners[a + 2] * corners[b + 2] < SphereGrid.LARGE_EDGE_COS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // Cell of direction projected to cube, face is (axis * 2 + negative) and
+    // face coordinates are in same order as in AddTriangle(). Query does not 
+    // keep state and can be made from several threads.
+    private int GetCell(float x, float y, float z) {
+        float ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z), u, v;
+        int face;
+        if(ax >= ay && ax >= az) {
+            u = y / ax;
+            v = z / ax;
+            face = (x < 0.0f) ? 1 : 0;
+        } else if(ay >= az) {
+            u = z / ay;
+            v = x / ay;
+            face = (y < 0.0f) ? 3 : 2;
+        } else {
+            u = x / az;
+            v = y / az;
+            face = (z < 0.0f) ? 5 : 4;
+        }
+        return (face * m_cell_num + GetCell(v)) * m_cell_num + GetCell(u);
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetCell(float uv) {
+        int cell = (int)((uv + 1.0f) * m_half_cell_num);
+        return (cell < 0) ? 0 : (cell >= m_cell_num) ? m_cell_num - 1 : cell;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetTriangleNum() {
+        return m_triangle_num;
+    }
+
+    // -------------------------------------------------------------------------
+    // Refined triangle, null if sphere was read from cache
+    public SphereTriangle GetTriangle(int t) {
+        return (t < 0 || t >= m_triangles.length) ? null : m_triangles[t];
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetSegment(int t) {
+        return m_triangle_segment[t];
+    }
+
+    // -------------------------------------------------------------------------
+    public int Find(float lon, float lat) {
+        float cos_lat = MathUtils.cos(lat);
+        return Find(cos_lat * MathUtils.cos(lon), MathUtils.sin(lat), 
+            cos_lat * MathUtils.sin(lon));
+    }
+
+    // -------------------------------------------------------------------------
+    public int Find(Vector3 dir) {
+        return Find(dir.x, dir.y, dir.z);
+    }
+
+    // -------------------------------------------------------------------------
+    // Triangle under given direction, length of direction does not matter. 
+    // If rounding puts direction outside of all candidates, the closest one 
+    // is returned.
+    public int Find(float x, float y, float z) {
+        // Cell of direction
+        int cell = GetCell(x, y, z);
+
+        // Candidates of cell
+        int best = -1;
+        float best_dist = -Float.MAX_VALUE;
+        float[] e = m_edges;
+        for(int i = m_cell_begin[cell]; i < m_cell_begin[cell + 1]; i++) {
+            int t = m_cell_triangles[i], o = t * 9;
+            float d0 = x * e[o + 0] + y * e[o + 1] + z * e[o + 2],
+                  d1 = x * e[o + 3] + y * e[o + 4] + z * e[o + 5],
+                  d2 = x * e[o + 6] + y * e[o + 7] + z * e[o + 8],
+                  dist = Math.min(d0, Math.min(d1, d2));
+            if(dist >= 0.0f) {
+                return t;
+            }
+            if(dist > best_dist) {
+                best_dist = dist;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    // -------------------------------------------------------------------------
+    // Height of vertices interpolated with barycentric coordinates of 
+    // direction inside triangle
+    public float GetHeight(int t, float x, float y, float z) {
+        float[] e = m_edges;
+        int o = t * 9;
+        float w0 = x * e[o + 0] + y * e[o + 1] + z * e[o + 2],
+              w1 = x * e[o + 3] + y * e[o + 4] + z * e[o + 5],
+              w2 = x * e[o + 6] + y * e[o + 7] + z * e[o + 8],
+              sum = w0 + w1 + w2;
+
+        float[] va = m_segments[m_triangle_segment[t]].GetVertexArray();
+        int p0 = m_offsets[t * 3 + 0], p1 = m_offsets[t * 3 + 1], p2 = m_offsets[t * 3 + 2];
+        float h0 = (float)Math.sqrt(va[p0] * va[p0] + va[p0 + 1] * va[p0 + 1] + va[p0 + 2] * va[p0 + 2]),
+              h1 = (float)Math.sqrt(va[p1] * va[p1] + va[p1 + 1] * va[p1 + 1] + va[p1 + 2] * va[p1 + 2]),
+              h2 = (float)Math.sqrt(va[p2] * va[p2] + va[p2 + 1] * va[p2 + 1] + va[p2 + 2] * va[p2 + 2]);
+        return (sum == 0.0f) ? (h0 + h1 + h2) / 3.0f : 
+            (w0 * h0 + w1 * h1 + w2 * h2) / sum;
+    }
+
+    // -------------------------------------------------------------------------
+    public float GetHeight(float x, float y, float z) {
+        int t = Find(x, y, z);
+        return (t == -1) ? 0.0f : GetHeight(t, x, y, z);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.g3d.RenderableProvider;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Chunked level-of-detail terrain. Each face of base icosphere is a root of
+// quadtree of patches. Patches are split while camera is close to them and
+// meshes of patches that were not used for a while are released.
+public class SphereLod {
+    // *************************************************************************
+    // SphereLod
+    // *************************************************************************
+    private SpherePatch[] m_roots;
+    private LinkedList<SpherePatch> m_build_queue;
+    private LinkedList<SpherePatch> m_built;
+    private int m_frame;
+    private int m_visible_num;
+
+    // -------------------------------------------------------------------------
+    // Height source
+    private int m_width, m_height;
+    private byte[] m_heights, m_surfaces;
+    private float m_max_height;
+
+    // -------------------------------------------------------------------------
+    public SphereLod(float[] vert, int[] trig, Pixmap height_map, Pixmap surface_map,
+      Palette pal, float max_height) {
+        // Copy height map and surface map once, pixmap lookups are slow
+        PixmapSampler hs = new PixmapSampler(height_map),
+                      ss = new PixmapSampler(surface_map);
+        m_width = height_map.getWidth();
+        m_height = height_map.getHeight();
+        m_max_height = max_height;
+        m_heights = new byte[m_width * m_height];
+        m_surfaces = new byte[m_width * m_height];
+        int unknown_num = 0;
+        for(int y = 0; y < m_height; y++) {
+            int sy = y * surface_map.getHeight() / m_height;
+            for(int x = 0; x < m_width; x++) {
+                int sx = x * surface_map.getWidth() / m_width;
+                int surf = pal.GetColorIdx(ss.GetPixel(sx, sy));
+                if(surf == -1) {
+                    surf = Sphere.SURF_WATER;
+                    unknown_num++;
+                }
+                m_heights[y * m_width + x] = (byte)(hs.GetPixel(x, y) >> 24);
+                m_surfaces[y * m_width + x] = (byte)surf;
+            }
+        }
+        if(unknown_num > 0) {
+            Log.Err("Failed to read some of sphere surfaces :: unknown_num=%d", unknown_num);
+        }
+
+        // Each triangle of base sphere is a root patch
+        m_roots = new SpherePatch[trig.length / 3];
+        Vector3 v0 = new Vector3(), v1 = new Vector3(), v2 = new Vector3();
+        for(int i = 0; i < m_roots.length; i++) {
+            int offset = i * 3;
+            m_roots[i] = new SpherePatch(
+                GetVertex(v0, vert, trig[offset + 0]),
+                GetVertex(v1, vert, trig[offset + 1]),
+                GetVertex(v2, vert, trig[offset + 2]), 0);
+        }
+
+        m_build_queue = new LinkedList<SpherePatch>();
+        m_built = new LinkedList<SpherePatch>();
+        Config cfg = Main.p.cfg;
+        Utils.Assert(cfg.sphere_lod_patch_detail <= 6,
+            "Failed to create sphere LOD, patch detail is too high :: detail=%d",
+            cfg.sphere_lod_patch_detail);
+        Log.Info("Sphere LOD created :: patches=%d map=%dx%d",
+            m_roots.length, m_width, m_height);
+    }
+
+    // -------------------------------------------------------------------------
+    // Roots are always present, they are built by render thread
+    public void BuildRoots() {
+        for(SpherePatch p : m_roots) {
+            if(!p.IsBuilt()) {
+                BuildPatch(p);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private static Vector3 GetVertex(Vector3 dest, float[] vert, int idx) {
+        return dest.set(vert[idx * 3 + 0], vert[idx * 3 + 1], vert[idx * 3 + 2]);
+    }
+
+    // -------------------------------------------------------------------------
+    // Same mapping as SphereVertex.Store.GetRgba()
+    private int GetTexel(Vector3 dir) {
+        return GetTexel(MathUtils.atan2(dir.z, dir.x), 
+            MathUtils.atan2(dir.y, (float)Math.sqrt(dir.x * dir.x + dir.z * dir.z)));
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetTexel(float lon, float lat) {
+        lon = UtilsAngle.Normalize(lon);
+        int x = (int)((1.0f - lon / MathUtils.PI2) * m_width);
+        int y = (int)((0.5f - lat / MathUtils.PI) * m_height);
+        if(x >= m_width) x = m_width - 1;
+        if(y >= m_height) y = m_height - 1;
+        return y * m_width + x;
+    }
+
+    // -------------------------------------------------------------------------
+    public float GetHeight(Vector3 dir) {
+        return 1.0f + m_heights[GetTexel(dir)] * m_max_height;
+    }
+
+    // -------------------------------------------------------------------------
+    public float GetHeight(float lon, float lat) {
+        return 1.0f + m_heights[GetTexel(lon, lat)] * m_max_height;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetSurface(Vector3 dir) {
+        return m_surfaces[GetTexel(dir)];
+    }
+
+    // -------------------------------------------------------------------------
+    private void BuildPatch(SpherePatch p) {
+        Config cfg = Main.p.cfg;
+        p.Build(this, cfg.sphere_lod_patch_detail, cfg.sphere_lod_skirt);
+        p.last_frame = m_frame;
+        m_built.add(p);
+    }
+
+    // -------------------------------------------------------------------------
+    private void QueuePatch(SpherePatch p) {
+        if(p.IsBuilt() || p.is_queued) {
+            return;
+        }
+        p.is_queued = true;
+        m_build_queue.add(p);
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetVisibleNum() {
+        return m_visible_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetBuiltNum() {
+        return m_built.size();
+    }
+
+    // -------------------------------------------------------------------------
+    public void Update() {
+        Config cfg = Main.p.cfg;
+        m_frame++;
+
+        // Build limited number of queued patches per frame
+        for(int i = 0; i < cfg.sphere_lod_build_num && !m_build_queue.isEmpty(); i++) {
+            SpherePatch p = m_build_queue.removeFirst();
+            p.is_queued = false;
+            if(!p.IsBuilt()) {
+                BuildPatch(p);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void Select(Camera camera, Vector3 camera_pos,
+      List<RenderableProvider> renderables) {
+        m_visible_num = 0;
+        for(SpherePatch p : m_roots) {
+            Select(p, camera, camera_pos, renderables);
+        }
+
+        // Release meshes of patches that were not used for a while, roots stay
+        Config cfg = Main.p.cfg;
+        Iterator<SpherePatch> it = m_built.iterator();
+        while(it.hasNext()) {
+            SpherePatch p = it.next();
+            if(p.depth > 0 && m_frame - p.last_frame > cfg.sphere_lod_expire) {
+                p.Release();
+                it.remove();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void Select(SpherePatch p, Camera camera, Vector3 camera_pos,
+      List<RenderableProvider> renderables) {
+        // Skip patches facing away from camera
+        p.last_frame = m_frame;
+        RenderableProvider inst = p.TestModelVisibility(camera);
+        if(inst == null) {
+            return;
+        }
+
+        // Split patch if camera is close enough and children are ready
+        Config cfg = Main.p.cfg;
+        boolean split = p.depth < cfg.sphere_lod_max_depth &&
+            camera_pos.dst(p.center) < p.radius * cfg.sphere_lod_split_factor;
+        if(split) {
+            SpherePatch[] children = p.Split();
+            if(p.IsChildrenBuilt()) {
+                for(SpherePatch c : children) {
+                    Select(c, camera, camera_pos, renderables);
+                }
+                return;
+            }
+
+            // Render coarse patch until children are built
+            for(SpherePatch c : children) {
+                c.last_frame = m_frame;
+                QueuePatch(c);
+            }
+        }
+        renderables.add(inst);
+        m_visible_num++;
+    }
+
+    // -------------------------------------------------------------------------
+    public void Dispose() {
+        for(SpherePatch p : m_roots) {
+            p.ReleaseAll();
+        }
+        m_built.clear();
+        m_build_queue.clear();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+// -----------------------------------------------------------------------------
+// Procedural terrain. Height is fractal sum of seeded 3D simplex noise sampled
+// at unit sphere direction, surface type depends on height and latitude.
+// Simplex noise is based on public domain code by Stefan Gustavson:
+// http://staffwww.itn.liu.se/~stegu/simplexnoise/simplexnoise.pdf
+public class SphereNoise {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final int TASK_SIZE       = 16 * 1024; // Vertices per parallel task
+    public static final float LACUNARITY    = 2.0f;      // Frequency step of octave
+    public static final float PERSISTENCE   = 0.5f;      // Amplitude step of octave
+
+    // -------------------------------------------------------------------------
+    // Surface thresholds, elevation is in [0, 1] range above sea level
+    public static final float SAND_LEVEL    = 0.04f;
+    public static final float ROCK_LEVEL    = 0.25f;
+    public static final float SNOW_LEVEL    = 0.45f;     // Snow line at equator ...
+    public static final float SNOW_LAT      = 0.3f;      // ... goes down towards poles
+    public static final float ICE_LAT       = 0.92f;     // Frozen water near poles
+
+    // -------------------------------------------------------------------------
+    private static final float F3 = 1.0f / 3.0f;
+    private static final float G3 = 1.0f / 6.0f;
+    private static final int[] GRAD3 = new int[] {
+        1, 1, 0,   -1, 1, 0,   1, -1, 0,   -1, -1, 0,
+        1, 0, 1,   -1, 0, 1,   1, 0, -1,   -1, 0, -1,
+        0, 1, 1,   0, -1, 1,   0, 1, -1,   0, -1, -1
+    };
+
+    // -------------------------------------------------------------------------
+    private static int FastFloor(float x) {
+        int xi = (int)x;
+        return (x < xi) ? xi - 1 : xi;
+    }
+
+    // -------------------------------------------------------------------------
+    private static float Dot(int g, float x, float y, float z) {
+        return SphereNoise.GRAD3[g] * x + SphereNoise.GRAD3[g + 1] * y + 
+            SphereNoise.GRAD3[g + 2] * z;
+    }
+
+    // *************************************************************************
+    // SphereNoise
+    // *************************************************************************
+    private long m_seed;
+    private int m_octave_num;
+    private float m_frequency, m_sea_level, m_amplitude_sum;
+    private int[] m_perm;                       // Doubled permutation table
+    private int[] m_grad;                       // Doubled gradient offsets
+
+    // -------------------------------------------------------------------------
+    public SphereNoise(long seed, int octave_num, float frequency, float sea_level) {
+        m_seed = seed;
+        m_octave_num = octave_num;
+        m_frequency = frequency;
+        m_sea_level = sea_level;
+
+        // Shuffled permutation of 256 values defines planet
+        Random rnd = new Random(seed);
+        int[] p = new int[256];
+        for(int i = 0; i < p.length; i++) {
+            p[i] = i;
+        }
+        for(int i = p.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1), tmp = p[i];
+            p[i] = p[j];
+            p[j] = tmp;
+        }
+        m_perm = new int[512];
+        m_grad = new int[512];
+        for(int i = 0; i < m_perm.length; i++) {
+            m_perm[i] = p[i & 255];
+            m_grad[i] = (m_perm[i] % 12) * 3;
+        }
+
+        // Fractal sum is normalized to [-1, 1]
+        float amplitude = 1.0f;
+        for(int i = 0; i < m_octave_num; i++) {
+            m_amplitude_sum += amplitude;
+            amplitude *= SphereNoise.PERSISTENCE;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public long GetSeed() {
+        return m_seed;
+    }
+
+    // -------------------------------------------------------------------------
+    // Simplex noise in [-1, 1] range
+    public float Noise(float xin, float yin, float zin) {
+        // Skew input space to find simplex cell
+        float s = (xin + yin + zin) * SphereNoise.F3;
+        int i = SphereNoise.FastFloor(xin + s),
+            j = SphereNoise.FastFloor(yin + s),
+            k = SphereNoise.FastFloor(zin + s);
+        float t = (i + j + k) * SphereNoise.G3;
+        float x0 = xin - (i - t), y0 = yin - (j - t), z0 = zin - (k - t);
+
+        // Offsets of second and third corners of simplex
+        int i1, j1, k1, i2, j2, k2;
+        if(x0 >= y0) {
+            if(y0 >= z0)      { i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 1; k2 = 0; }
+            else if(x0 >= z0) { i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 0; k2 = 1; }
+            else              { i1 = 0; j1 = 0; k1 = 1; i2 = 1; j2 = 0; k2 = 1; }
+        } else {
+            if(y0 < z0)       { i1 = 0; j1 = 0; k1 = 1; i2 = 0; j2 = 1; k2 = 1; }
+            else if(x0 < z0)  { i1 = 0; j1 = 1; k1 = 0; i2 = 0; j2 = 1; k2 = 1; }
+            else              { i1 = 0; j1 = 1; k1 = 0; i2 = 1; j2 = 1; k2 = 0; }
+        }
+        float x1 = x0 - i1 + SphereNoise.G3, 
+              y1 = y0 - j1 + SphereNoise.G3, 
+              z1 = z0 - k1 + SphereNoise.G3;
+        float x2 = x0 - i2 + 2.0f * SphereNoise.G3, 
+              y2 = y0 - j2 + 2.0f * SphereNoise.G3, 
+              z2 = z0 - k2 + 2.0f * SphereNoise.G3;
+        float x3 = x0 - 1.0f + 3.0f * SphereNoise.G3, 
+              y3 = y0 - 1.0f + 3.0f * SphereNoise.G3, 
+              z3 = z0 - 1.0f + 3.0f * SphereNoise.G3;
+
+        // Gradients of corners
+        int ii = i & 255, jj = j & 255, kk = k & 255;
+        int[] perm = m_perm, grad = m_grad;
+        int g0 = grad[ii + perm[jj + perm[kk]]],
+            g1 = grad[ii + i1 + perm[jj + j1 + perm[kk + k1]]],
+            g2 = grad[ii + i2 + perm[jj + j2 + perm[kk + k2]]],
+            g3 = grad[ii + 1 + perm[jj + 1 + perm[kk + 1]]];
+
+        // Contributions of corners
+        float n = 0.0f;
+        float t0 = 0.6f - x0 * x0 - y0 * y0 - z0 * z0;
+        if(t0 > 0.0f) {
+            t0 *= t0;
+            n += t0 * t0 * SphereNoise.Dot(g0, x0, y0, z0);
+        }
+        float t1 = 0.6f - x1 * x1 - y1 * y1 - z1 * z1;
+        if(t1 > 0.0f) {
+            t1 *= t1;
+            n += t1 * t1 * SphereNoise.Dot(g1, x1, y1, z1);
+        }
+        float t2 = 0.6f - x2 * x2 - y2 * y2 - z2 * z2;
+        if(t2 > 0.0f) {
+            t2 *= t2;
+            n += t2 * t2 * SphereNoise.Dot(g2, x2, y2, z2);
+        }
+        float t3 = 0.6f - x3 * x3 - y3 * y3 - z3 * z3;
+        if(t3 > 0.0f) {
+            t3 *= t3;
+            n += t3 * t3 * SphereNoise.Dot(g3, x3, y3, z3);
+        }
+        return 32.0f * n;
+    }
+
+    // -------------------------------------------------------------------------
+    // Fractal sum of octaves in [-1, 1] range
+    public float Fractal(float x, float y, float z) {
+        float sum = 0.0f, amplitude = 1.0f, frequency = m_frequency;
+        for(int i = 0; i < m_octave_num; i++) {
+            sum += amplitude * Noise(x * frequency, y * frequency, z * frequency);
+            amplitude *= SphereNoise.PERSISTENCE;
+            frequency *= SphereNoise.LACUNARITY;
+        }
+        return sum / m_amplitude_sum;
+    }
+
+    // -------------------------------------------------------------------------
+    // Elevation above sea level in [0, 1] range, water is flat
+    public float GetElevation(float noise) {
+        return (noise <= m_sea_level) ? 0.0f : 
+            (noise - m_sea_level) / (1.0f - m_sea_level);
+    }
+
+    // -------------------------------------------------------------------------
+    // Latitude is given as sine, which is Y of unit direction
+    public int GetSurface(float noise, float elevation, float sin_lat) {
+        float lat = Math.abs(sin_lat);
+        if(noise <= m_sea_level) {
+            return (lat > SphereNoise.ICE_LAT) ? Sphere.SURF_SNOW : Sphere.SURF_WATER;
+        }
+        if(elevation > SphereNoise.SNOW_LEVEL - SphereNoise.SNOW_LAT * lat) {
+            return Sphere.SURF_SNOW;
+        }
+        if(elevation < SphereNoise.SAND_LEVEL) {
+            return Sphere.SURF_SAND;
+        }
+        return (elevation > SphereNoise.ROCK_LEVEL) ? Sphere.SURF_ROCK : Sphere.SURF_GRASS;
+    }
+
+    // -------------------------------------------------------------------------
+    // Evaluates elevation and surface of 'num' unit directions stored as 
+    // [x, y, z] triplets
+    public float[] Generate(float[] dir, int num, int[] surfaces, boolean parallel) {
+        float[] elevations = new float[num];
+        GenerateTask task = new GenerateTask(this, dir, elevations, surfaces, 0, num);
+        if(parallel) {
+            SphereUtils.GetPool().invoke(task);
+        } else {
+            task.Generate();
+        }
+        return elevations;
+    }
+
+    // *************************************************************************
+    // GenerateTask
+    // *************************************************************************
+    // Generates range of vertices, range is split until it's small enough
+    public static class GenerateTask 
+      extends RecursiveAction {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final long serialVersionUID = 42424205L;
+
+        // *********************************************************************
+        // GenerateTask
+        // *********************************************************************
+        private SphereNoise m_noise;
+        private float[] m_dir, m_elevations;
+        private int[] m_surfaces;
+        private int m_from, m_to;
+
+        // ---------------------------------------------------------------------
+        public GenerateTask(SphereNoise noise, float[] dir, float[] elevations, 
+          int[] surfaces, int from, int to) {
+            m_noise = noise;
+            m_dir = dir;
+            m_elevations = elevations;
+            m_surfaces = surfaces;
+            m_from = from;
+            m_to = to;
+        }
+
+        // ---------------------------------------------------------------------
+        public void Generate() {
+            for(int i = m_from; i < m_to; i++) {
+                float x = m_dir[i * 3 + 0], y = m_dir[i * 3 + 1], z = m_dir[i * 3 + 2];
+                float noise = m_noise.Fractal(x, y, z),
+                      elevation = m_noise.GetElevation(noise);
+                m_elevations[i] = elevation;
+                m_surfaces[i] = m_noise.GetSurface(noise, elevation, y);
+            }
+        }
+
+        // *********************************************************************
+        // RecursiveAction
+        // *********************************************************************
+        @Override protected void compute() {
+            if(m_to - m_from > SphereNoise.TASK_SIZE) {
+                int middle = (m_from + m_to) >>> 1;
+                RecursiveAction.invokeAll(
+                    new GenerateTask(m_noise, m_dir, m_elevations, m_surfaces, 
+                        m_from, middle),
+                    new GenerateTask(m_noise, m_dir, m_elevations, m_surfaces, 
+                        middle, m_to));
+                return;
+            }
+            Generate();
+        }
+    }
+}
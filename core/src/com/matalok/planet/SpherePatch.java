@@ -0,0 +1,342 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+//-----------------------------------------------------------------------------
+import com.matalok.planet.Interfaces.ICamera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.RenderableProvider;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Node of LOD quadtree built over single icosahedron face. Each node covers
+// triangular area of sphere and owns a regular triangular grid mesh with
+// skirts along it's edges to hide cracks between neighbours of different depth.
+public class SpherePatch
+  extends DynamicModel {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    private static int inst_num = 0;
+
+    // *************************************************************************
+    // SpherePatch
+    // *************************************************************************
+    public int id, depth;
+    public Vector3 a, b, c;             // Corners on unit sphere
+    public Vector3 center, normal;
+    public float radius;
+    public SpherePatch[] children;
+    public int last_frame;
+    public boolean is_queued;
+
+    // -------------------------------------------------------------------------
+    private int[] m_surface_ranges;
+    private MeshPart[] m_mesh_parts;
+
+    // -------------------------------------------------------------------------
+    public SpherePatch(Vector3 v0, Vector3 v1, Vector3 v2, int d) {
+        id = SpherePatch.inst_num++;
+        depth = d;
+        a = new Vector3(v0).nor();
+        b = new Vector3(v1).nor();
+        c = new Vector3(v2).nor();
+
+        // Bounding sphere around corners
+        normal = new Vector3(a).add(b).add(c).nor();
+        center = new Vector3(a).add(b).add(c).scl(1.0f / 3.0f);
+        radius = Math.max(center.dst(a), Math.max(center.dst(b), center.dst(c)));
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean IsBuilt() {
+        return HasModel();
+    }
+
+    // -------------------------------------------------------------------------
+    public SpherePatch[] Split() {
+        if(children == null) {
+            Vector3 ab = new Vector3(a).add(b).nor(),
+                    bc = new Vector3(b).add(c).nor(),
+                    ca = new Vector3(c).add(a).nor();
+            children = new SpherePatch[] {
+                new SpherePatch(a, ab, ca, depth + 1),
+                new SpherePatch(ab, b, bc, depth + 1),
+                new SpherePatch(ca, bc, c, depth + 1),
+                new SpherePatch(ab, bc, ca, depth + 1),
+            };
+        }
+        return children;
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean IsChildrenBuilt() {
+        if(children == null) {
+            return false;
+        }
+        for(SpherePatch p : children) {
+            if(!p.IsBuilt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    private static Vector3 grid_pos = new Vector3();
+    private static void GetGridPos(Vector3 dest, SpherePatch p, int i, int j, int n,
+      SphereLod lod) {
+        // Point on flat triangle projected to sphere and lifted by height
+        float u = (float)i / n, v = (float)j / n;
+        dest.set(p.a).scl(1.0f - u - v)
+            .mulAdd(p.b, u)
+            .mulAdd(p.c, v)
+            .nor();
+        dest.scl(lod.GetHeight(dest));
+    }
+
+    // -------------------------------------------------------------------------
+    public void Build(SphereLod lod, int detail, float skirt) {
+        int n = 1 << detail;
+
+        // Grid positions
+        int side = n + 1;
+        float[] grid = new float[side * side * 3];
+        for(int j = 0; j <= n; j++) {
+            for(int i = 0; i <= n - j; i++) {
+                SpherePatch.GetGridPos(grid_pos, this, i, j, n, lod);
+                int offset = (j * side + i) * 3;
+                grid[offset + 0] = grid_pos.x;
+                grid[offset + 1] = grid_pos.y;
+                grid[offset + 2] = grid_pos.z;
+            }
+        }
+
+        // Grid triangles followed by 2 skirt triangles per edge step
+        int triangle_num = n * n + 3 * n * 2;
+        int[] triangles = new int[triangle_num * 3];
+        int[] types = new int[triangle_num];
+        int t = 0;
+        for(int j = 0; j < n; j++) {
+            for(int i = 0; i < n - j; i++) {
+                // Upward triangle
+                t = AddGridTriangle(triangles, types, t, lod, grid,
+                    j * side + i, j * side + i + 1, (j + 1) * side + i);
+
+                // Downward triangle
+                if(i < n - j - 1) {
+                    t = AddGridTriangle(triangles, types, t, lod, grid,
+                        j * side + i + 1, (j + 1) * side + i + 1, (j + 1) * side + i);
+                }
+            }
+        }
+
+        // Skirt vertices are appended after grid vertices
+        float[] skirt_grid = new float[grid.length];
+        float scale = 1.0f - skirt;
+        for(int i = 0; i < grid.length; i++) {
+            skirt_grid[i] = grid[i] * scale;
+        }
+
+        // Edges :: a->b (j = 0), b->c (i + j = n), c->a (i = 0)
+        for(int k = 0; k < n; k++) {
+            t = AddSkirt(triangles, types, t, lod, grid, k, k + 1, 0, 0, side);
+            t = AddSkirt(triangles, types, t, lod, grid, n - k, n - k - 1, k, k + 1, side);
+            t = AddSkirt(triangles, types, t, lod, grid, 0, 0, n - k, n - k - 1, side);
+        }
+        Utils.Assert(t == triangle_num,
+            "Failed to build sphere patch, wrong triangle number :: patch=%d num=%d expected=%d",
+            id, t, triangle_num);
+
+        // Sort triangles by surface type
+        int surface_num = Sphere.SURF_MATERIALS.length;
+        m_surface_ranges = new int[surface_num * 2];
+        int[] order = new int[triangle_num];
+        int idx = 0;
+        for(int s = 0; s < surface_num; s++) {
+            m_surface_ranges[s * 2 + 0] = idx * 3;
+            for(int i = 0; i < triangle_num; i++) {
+                if(types[i] == s) {
+                    order[idx++] = i;
+                }
+            }
+            m_surface_ranges[s * 2 + 1] = idx * 3 - m_surface_ranges[s * 2 + 0];
+        }
+
+        // Each triangle gets own vertices so that it could own normal
+        float[] va = CreateVertexArray(triangle_num * 3 * SphereVertex.ATTRIB_NUM, false);
+        short[] ia = CreateIndexArray(triangle_num * 3, false);
+        Vector3 v0 = new Vector3(), v1 = new Vector3(), v2 = new Vector3();
+        int va_offset = 0;
+        for(int i = 0; i < triangle_num; i++) {
+            int tr = order[i], toffset = tr * 3;
+            GetVertex(v0, triangles[toffset + 0], grid, skirt_grid);
+            GetVertex(v1, triangles[toffset + 1], grid, skirt_grid);
+            GetVertex(v2, triangles[toffset + 2], grid, skirt_grid);
+            Vector3 norm = Utils.GetTriangleNormal(v0, v1, v2);
+            va_offset = WriteVertex(va, va_offset, v0, norm);
+            va_offset = WriteVertex(va, va_offset, v1, norm);
+            va_offset = WriteVertex(va, va_offset, v2, norm);
+            ia[i * 3 + 0] = (short)(i * 3 + 0);
+            ia[i * 3 + 1] = (short)(i * 3 + 1);
+            ia[i * 3 + 2] = (short)(i * 3 + 2);
+        }
+
+        // Bounding sphere should enclose lifted terrain as well
+        center.set(v0.set(a).add(b).add(c).nor().scl(lod.GetHeight(v0)));
+        for(int j = 0; j <= n; j++) {
+            for(int i = 0; i <= n - j; i++) {
+                int offset = (j * side + i) * 3;
+                radius = Math.max(radius, 
+                    center.dst(grid[offset], grid[offset + 1], grid[offset + 2]));
+            }
+        }
+
+        // Create model
+        BuildDynamicModel(SphereVertex.GetVertexAttributes());
+    }
+
+    // -------------------------------------------------------------------------
+    private static Vector3 tr_v0 = new Vector3();
+    private static int AddGridTriangle(int[] triangles, int[] types, int t, SphereLod lod,
+      float[] grid, int g0, int g1, int g2) {
+        triangles[t * 3 + 0] = g0;
+        triangles[t * 3 + 1] = g1;
+        triangles[t * 3 + 2] = g2;
+
+        // First vertex defines type of surface
+        types[t] = lod.GetSurface(tr_v0.set(grid[g0 * 3], grid[g0 * 3 + 1], grid[g0 * 3 + 2]));
+        return t + 1;
+    }
+
+    // -------------------------------------------------------------------------
+    private static int AddSkirt(int[] triangles, int[] types, int t, SphereLod lod,
+      float[] grid, int i0, int i1, int j0, int j1, int side) {
+        // Top edge is shared with grid, bottom edge is lowered copy of it
+        int g0 = j0 * side + i0, g1 = j1 * side + i1,
+            s0 = -1 - g0, s1 = -1 - g1;
+
+        // Skirt has same surface type as grid vertex it hangs from
+        int type = lod.GetSurface(
+            tr_v0.set(grid[g0 * 3], grid[g0 * 3 + 1], grid[g0 * 3 + 2]));
+
+        triangles[t * 3 + 0] = g1; triangles[t * 3 + 1] = g0; triangles[t * 3 + 2] = s0;
+        types[t++] = type;
+        triangles[t * 3 + 0] = g1; triangles[t * 3 + 1] = s0; triangles[t * 3 + 2] = s1;
+        types[t++] = type;
+        return t;
+    }
+
+    // -------------------------------------------------------------------------
+    private static int WriteVertex(float[] va, int offset, Vector3 pos, Vector3 norm) {
+        va[offset + SphereVertex.ATTRIB_POS_X] = pos.x;
+        va[offset + SphereVertex.ATTRIB_POS_Y] = pos.y;
+        va[offset + SphereVertex.ATTRIB_POS_Z] = pos.z;
+        va[offset + SphereVertex.ATTRIB_NORM_X] = norm.x;
+        va[offset + SphereVertex.ATTRIB_NORM_Y] = norm.y;
+        va[offset + SphereVertex.ATTRIB_NORM_Z] = norm.z;
+        return offset + SphereVertex.ATTRIB_NUM;
+    }
+
+    // -------------------------------------------------------------------------
+    // Negative index refers to skirt vertex
+    private static void GetVertex(Vector3 dest, int g, float[] grid, float[] skirt) {
+        float[] src = (g >= 0) ? grid : skirt;
+        int offset = ((g >= 0) ? g : -1 - g) * 3;
+        dest.set(src[offset + 0], src[offset + 1], src[offset + 2]);
+    }
+
+    // -------------------------------------------------------------------------
+    public void Release() {
+        if(!IsBuilt()) {
+            return;
+        }
+        dispose();
+        m_model_inst = null;
+        m_vertex_array = null;
+        m_index_array = null;
+        m_mesh_parts = null;
+    }
+
+    // -------------------------------------------------------------------------
+    public void ReleaseAll() {
+        Release();
+        if(children != null) {
+            for(SpherePatch p : children) {
+                p.ReleaseAll();
+            }
+        }
+    }
+
+    // *************************************************************************
+    // DynamicModel
+    // *************************************************************************
+    @Override protected void PrepareModel() {
+    }
+
+    // -------------------------------------------------------------------------
+    @Override protected void CreateModel(ModelBuilder mb, Mesh mesh) {
+        // Create meshpart for each type of surface
+        for(int i = 0; i < Sphere.SURF_MATERIALS.length; i++) {
+            mb.part(new MeshPart(
+                        "sphere-patch-" + id + "-" + Sphere.SURF_NAMES[i],
+                        mesh, m_surface_ranges[i * 2 + 0],
+                        m_surface_ranges[i * 2 + 1],
+                        GL20.GL_TRIANGLES),
+                Sphere.SURF_MATERIALS[i]);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    @Override protected void FinalizeModel(ModelInstance inst) {
+        m_mesh_parts = new MeshPart[Sphere.SURF_MATERIALS.length];
+        for(int i = 0; i < m_mesh_parts.length; i++) {
+            m_mesh_parts[i] = inst.nodes.get(0).parts.get(i).meshPart;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    @Override protected void CleanupModel() {
+    }
+
+    // -------------------------------------------------------------------------
+    @Override protected void LogVertexArray() {
+        Log.Debug("Vertex array :: patch=%d array_size=%d", id, m_vertex_array.length);
+    }
+
+    // -------------------------------------------------------------------------
+    @Override protected void LogIndexArray() {
+        Log.Debug("Index array :: patch=%d array_size=%d", id, m_index_array.length);
+    }
+
+    // *************************************************************************
+    // Interfaces.ISmartModel
+    // *************************************************************************
+    @Override public RenderableProvider TestModelVisibility(ICamera camera) {
+        // Patch is visible if it's inside frustum and any part of it's bounding 
+        // sphere might face camera
+        return (camera.TestFrustumCulling(center, radius) && 
+            camera.TestBackfaceCulling(normal, center, -radius)) ? m_model_inst : null;
+    }
+}
@@ -20,17 +20,20 @@
 package com.matalok.planet;
 
 //-----------------------------------------------------------------------------
-import java.util.ListIterator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.matalok.planet.Interfaces.ICamera;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Mesh;
-import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.VertexAttribute;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.RenderableProvider;
+import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.model.MeshPart;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector3;
 
 // -----------------------------------------------------------------------------
@@ -39,7 +42,29 @@ public class SphereSegment
     // *************************************************************************
     // STATIC
     // *************************************************************************
-    public static float BACKFACE_CULLING_THRESH = -0.3f;
+    // Normal cones wider than this are not used for culling
+    public static final float CONE_MIN_DOT = 0.1f;
+
+    // GPU reads segment indices as unsigned shorts
+    public static final int MAX_VERTEX_NUM = 65536;
+
+    // Initial capacity of triangle array
+    public static final int TRIANGLE_ARRAY_SIZE = 16;
+
+    // Space left in packed vertex bounds for heights applied after build
+    public static final float PACK_PADDING = 0.25f;
+
+    // -------------------------------------------------------------------------
+    // Number of times each face of base icosphere has to be split into smaller 
+    // segments so that vertex instances of a segment fit into index range
+    public static int GetChunkLvl(int refine_lvl, int instance_num) {
+        int chunk_lvl = 0;
+        while(SphereVertex.GetSegmentVertexNum(refine_lvl - chunk_lvl) * 
+          instance_num > SphereSegment.MAX_VERTEX_NUM) {
+            chunk_lvl++;
+        }
+        return chunk_lvl;
+    }
 
     // -------------------------------------------------------------------------
     private static int inst_num = 0;
@@ -47,19 +72,59 @@ public class SphereSegment
     // *************************************************************************
     // SphereSegment
     // *************************************************************************
-    public int id;
+    public int id, idx;
 
     // -------------------------------------------------------------------------
+    private SphereVertex.Store m_store;
     private Vector3 m_center;
     private Vector3 m_normal;
     private int m_triangle_num;
     private int m_vertex_num;
     private SphereUtils.Surface[] m_surfaces;
+    private SphereUtils.EdgeList m_edges;
 
     // -------------------------------------------------------------------------
-    public SphereSegment(Material[] materials) {
+    // Triangles are stored contiguously and grouped by surface type
+    private SphereTriangle[] m_triangles;
+    private int[] m_surface_begin;              // [surface] -> first triangle
+    private boolean m_is_sorted;                // Surface ranges are valid
+    private boolean m_is_prepared;              // Triangles are written to vertex array
+    private boolean m_has_triangles;            // False if read from cache or template
+
+    // -------------------------------------------------------------------------
+    // Single draw call mode, surface type is a vertex color
+    private int m_attrib_num;
+    private float[] m_surface_colors;
+
+    // -------------------------------------------------------------------------
+    // Adjacency used by runtime deformation
+    private int[] m_local_vertices;             // [local] -> vertex id
+    private int[] m_adjacent_begin;             // [local] -> first adjacent triangle
+    private SphereTriangle[] m_adjacent;
+    private Vector3 m_bound_dir;
+    private float m_bound_angle;
+
+    // -------------------------------------------------------------------------
+    // Culling volumes: bounding sphere and cone of triangle normals
+    private Vector3 m_sphere_center;
+    private float m_sphere_radius;
+    private Vector3 m_cone_apex;
+    private Vector3 m_cone_axis;
+    private float m_cone_cutoff;
+
+    // -------------------------------------------------------------------------
+    // Shared topology, triangles are referenced by their index in template
+    private SphereTopology.Segment m_shared;
+    private byte[] m_shared_types;              // [template triangle] -> surface
+    private int[] m_shared_order;               // [triangle] -> template triangle
+
+    // -------------------------------------------------------------------------
+    public SphereSegment(int index, SphereVertex.Store store, Material[] materials) {
         id = SphereSegment.inst_num++;
+        idx = index;
+        m_store = store;
         m_vertex_num = 0;
+        m_attrib_num = (store != null) ? store.GetAttribNum() : SphereVertex.ATTRIB_NUM;
 
         m_surfaces = new SphereUtils.Surface[] {
             new SphereUtils.Surface(materials[Sphere.SURF_WATER]),
@@ -68,6 +133,32 @@ public class SphereSegment
             new SphereUtils.Surface(materials[Sphere.SURF_ROCK]),
             new SphereUtils.Surface(materials[Sphere.SURF_SNOW]),
         };
+
+        m_triangles = new SphereTriangle[0];
+        m_has_triangles = true;
+        m_surface_begin = new int[m_surfaces.length + 1];
+
+        // Vertex color is taken from diffuse color of surface material
+        m_surface_colors = new float[m_surfaces.length];
+        for(int i = 0; i < m_surfaces.length; i++) {
+            ColorAttribute c = (ColorAttribute)materials[i].get(ColorAttribute.Diffuse);
+            m_surface_colors[i] = (c != null) ? c.color.toFloatBits() : 0.0f;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean IsColored() {
+        return m_attrib_num == SphereVertex.COLOR_ATTRIB_NUM;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetAttribNum() {
+        return m_attrib_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public float GetSurfaceColor(int surface) {
+        return m_surface_colors[surface];
     }
 
     // -------------------------------------------------------------------------
@@ -75,22 +166,34 @@ public class SphereSegment
         return m_vertex_num++;
     }
 
+    // -------------------------------------------------------------------------
+    public SphereVertex.Store GetVertexStore() {
+        return m_store;
+    }
+
     // -------------------------------------------------------------------------
     public void Log(boolean detailed) {
-        String str = String.format("  > segment=%d ", id);
-        for(int i = 0; i < m_surfaces.length; i++) {
-            SphereUtils.Surface s = m_surfaces[i];
-            str += String.format("%s=%d ", Sphere.SURF_NAMES[i], s.triangles.size());
+        if(!m_has_triangles) {
+            Log.Debug("  > segment=%d triangles=%d (mesh arrays only)", id, m_triangle_num);
+            return;
+        }
+
+        int[] counts = new int[m_surfaces.length];
+        for(int i = 0; i < m_triangle_num; i++) {
+            SphereTriangle t = m_triangles[i];
+            counts[t.type]++;
             if(detailed) {
-                for(int j = 0; j < s.triangles.size(); j++) {
-                    SphereTriangle t = s.triangles.get(j);
-                    Log.Debug("      > triangle=%d v0=%d(%d) v1=%d(%d) v2=%d(%d)",
-                        i, t.vertices[0].id, t.vertex_inst[0],
-                           t.vertices[1].id, t.vertex_inst[1],
-                           t.vertices[2].id, t.vertex_inst[2]);
-                }
+                Log.Debug("      > triangle=%d type=%d v0=%d(%d) v1=%d(%d) v2=%d(%d)",
+                    i, t.type, t.vertices[0], t.vertex_inst[0],
+                               t.vertices[1], t.vertex_inst[1],
+                               t.vertices[2], t.vertex_inst[2]);
             }
         }
+
+        String str = String.format("  > segment=%d ", id);
+        for(int i = 0; i < m_surfaces.length; i++) {
+            str += String.format("%s=%d ", Sphere.SURF_NAMES[i], counts[i]);
+        }
         Log.Debug(str);
     }
 
@@ -98,100 +201,789 @@ public class SphereSegment
     public SphereTriangle AddTriangle(int surface, SphereTriangle t) {
         // First triangle defines surface center and normal
         if(m_triangle_num == 0) {
-            Vector3 v0 = t.vertices[0].pos,
-                    v1 = t.vertices[1].pos,
-                    v2 = t.vertices[2].pos;
-            m_center = new Vector3(Utils.GetMiddle(v0, v1, v2));
-            m_normal = new Vector3(Utils.GetTriangleNormal(v0, v1, v2));
+            Vector3 v0 = m_store.GetPos(t.vertices[0], new Vector3()),
+                    v1 = m_store.GetPos(t.vertices[1], new Vector3()),
+                    v2 = m_store.GetPos(t.vertices[2], new Vector3());
+            m_center = Utils.GetMiddle(new Vector3(), v0, v1, v2);
+            m_normal = Utils.GetTriangleNormal(new Vector3(), v0, v1, v2);
         }
 
-        // Add triangle to list
-        m_triangle_num++;
-        m_surfaces[surface].triangles.add(t);
+        // Append triangle to array, surface ranges have to be rebuilt
+        if(m_triangle_num == m_triangles.length) {
+            m_triangles = Arrays.copyOf(m_triangles, 
+                Math.max(m_triangle_num * 2, SphereSegment.TRIANGLE_ARRAY_SIZE));
+        }
+        m_triangles[m_triangle_num++] = t;
+        m_is_sorted = false;
         return t;
     }
 
     // -------------------------------------------------------------------------
-    public SphereTriangle AddTriangle(SphereVertex v0,
-                                      SphereVertex v1,
-                                      SphereVertex v2,
-                                      int surface) {
+    public SphereTriangle AddTriangle(int v0, int v1, int v2, int surface) {
         return AddTriangle(surface, new SphereTriangle(this, v0, v1, v2, surface));
     }
 
     // -------------------------------------------------------------------------
-    public void RebuildSuface() {
-        int idx = 0;
-        for(SphereUtils.Surface s : m_surfaces) {
-            // Set region in index array
+    // Triangle array capacity for given number of triangles
+    public void ReserveTriangles(int triangle_num) {
+        if(triangle_num > m_triangles.length) {
+            m_triangles = Arrays.copyOf(m_triangles, triangle_num);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public SphereTriangle GetTriangle(int idx) {
+        return m_triangles[idx];
+    }
+
+    // -------------------------------------------------------------------------
+    // Segments read from cache or shared template own only mesh arrays, 
+    // m_triangle_num still counts triangles of index array
+    public boolean HasTriangles() {
+        return m_has_triangles;
+    }
+
+    // -------------------------------------------------------------------------
+    private void AssertTriangles(String action) {
+        if(!m_has_triangles) {
+            Utils.Assert(false, "Failed to %s, segment has no triangles :: segment=%d", 
+                action, id);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Groups triangles by surface type with counting sort, order of triangles 
+    // within surface is preserved
+    private void SortSurfaces() {
+        if(m_shared != null) {
+            SortSharedSurfaces();
+            return;
+        }
+        AssertTriangles("sort surfaces");
+
+        Arrays.fill(m_surface_begin, 0);
+        for(int i = 0; i < m_triangle_num; i++) {
+            m_surface_begin[m_triangles[i].type + 1]++;
+        }
+        for(int i = 0; i < m_surfaces.length; i++) {
+            m_surface_begin[i + 1] += m_surface_begin[i];
+        }
+
+        int[] fill = Arrays.copyOf(m_surface_begin, m_surfaces.length);
+        SphereTriangle[] sorted = new SphereTriangle[m_triangles.length];
+        for(int i = 0; i < m_triangle_num; i++) {
+            SphereTriangle t = m_triangles[i];
+            sorted[fill[t.type]++] = t;
+        }
+        m_triangles = sorted;
+        m_is_sorted = true;
+    }
+
+    // -------------------------------------------------------------------------
+    private void SortSharedSurfaces() {
+        Arrays.fill(m_surface_begin, 0);
+        for(int i = 0; i < m_triangle_num; i++) {
+            m_surface_begin[m_shared_types[i] + 1]++;
+        }
+        for(int i = 0; i < m_surfaces.length; i++) {
+            m_surface_begin[i + 1] += m_surface_begin[i];
+        }
+
+        int[] fill = Arrays.copyOf(m_surface_begin, m_surfaces.length);
+        int[] sorted = new int[m_triangle_num];
+        for(int i = 0; i < m_triangle_num; i++) {
+            int n = m_shared_order[i];
+            sorted[fill[m_shared_types[n]]++] = n;
+        }
+        m_shared_order = sorted;
+        m_is_sorted = true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Range of triangles drawn by single mesh part, colored segment has 
+    // single range
+    private int GetRangeNum() {
+        return (IsColored()) ? 1 : m_surfaces.length;
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetRangeBegin(int range) {
+        return (IsColored()) ? 0 : m_surface_begin[range];
+    }
+
+    // -------------------------------------------------------------------------
+    private int GetRangeEnd(int range) {
+        return (IsColored()) ? m_triangle_num : m_surface_begin[range + 1];
+    }
+
+    // -------------------------------------------------------------------------
+    // Single mesh part of colored segment covers all regions, model might not
+    // be built yet
+    private void UpdateMeshParts() {
+        if(!HasModel() || IsColored()) {
+            return;
+        }
+
+        for(int i = 0; i < m_surfaces.length; i++) {
 //            s.mesh_part.indexOffset = idx;
 //            s.mesh_part.numVertices = s.triangles.size() * 3;
-            s.mesh_part.offset = idx;
-            s.mesh_part.size = s.triangles.size() * 3;
-
-            // Fill region in index array
-            for(SphereTriangle t : s.triangles) {
-                m_index_array[idx + 0] = (short)t.vertex_inst[0];
-                m_index_array[idx + 1] = (short)t.vertex_inst[1];
-                m_index_array[idx + 2] = (short)t.vertex_inst[2];
-                idx += 3;
+            m_surfaces[i].mesh_part.offset = m_surface_begin[i] * 3;
+            m_surfaces[i].mesh_part.size = 
+                (m_surface_begin[i + 1] - m_surface_begin[i]) * 3;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void RebuildSuface() {
+        if(!m_is_sorted && !IsColored()) {
+            SortSurfaces();
+        }
+
+        // Set regions in index array
+        UpdateMeshParts();
+
+        // Fill index array, values above 32767 wrap to negative shorts but 
+        // are read back as unsigned by GPU
+        if(m_shared == null) {
+            AssertTriangles("rebuild surface");
+        }
+        for(int i = 0, idx = 0; i < m_triangle_num; i++, idx += 3) {
+            short i0, i1, i2;
+            if(m_shared != null) {
+                int offset = m_shared_order[i] * 3;
+                i0 = m_shared.index_array[offset + 0];
+                i1 = m_shared.index_array[offset + 1];
+                i2 = m_shared.index_array[offset + 2];
+            } else {
+                SphereTriangle t = m_triangles[i];
+                i0 = (short)t.vertex_inst[0];
+                i1 = (short)t.vertex_inst[1];
+                i2 = (short)t.vertex_inst[2];
+            }
+
+            // Only changed triangles are flushed
+            if(m_index_array[idx + 0] != i0 || m_index_array[idx + 1] != i1 ||
+               m_index_array[idx + 2] != i2) {
+                m_index_array[idx + 0] = i0;
+                m_index_array[idx + 1] = i1;
+                m_index_array[idx + 2] = i2;
+                SetIndexDirty(idx, idx + 3);
             }
         }
-        m_is_dirty_index = true;
     }
 
     // -------------------------------------------------------------------------
-    public void UpdateSurface(Pixmap map, Palette pal) {
-        for(SphereUtils.Surface surf : m_surfaces) {
-            ListIterator<SphereTriangle> it = surf.triangles.listIterator();
-            while(it.hasNext()) {
-                // Read triangle
-                SphereTriangle t = it.next();
+    public void UpdateSurface(int[] types) {
+        if(m_shared != null) {
+            UpdateSharedSurface(types);
+            return;
+        }
+        AssertTriangles("update surface");
 
-                // First vertex defines type of surface
-                SphereVertex v = t.vertices[0];
-                int new_type = pal.GetColorIdx(v.GetRgba(map));
-                if(new_type == -1) {
-                    Log.Err("Failed to update surface :: segment=%d vertex=%d rgba=0x%08X", 
-                        id, v.id, v.GetRgba(map));
-                    continue;
-                }
+        boolean is_changed = false;
+        for(int i = 0; i < m_triangle_num; i++) {
+            SphereTriangle t = m_triangles[i];
 
-                // Move triangle to correct surface
-                if(new_type != t.type) {
-                    // Remove triangle from current surface
-                    it.remove();
+            // First vertex defines type of surface
+            int v = t.vertices[0];
+            int new_type = types[v];
+            if(new_type == -1 || new_type == t.type) {
+                continue;
+            }
 
-                    // Add triangle to new surface
-                    m_surfaces[new_type].triangles.add(t);
-                    t.type = new_type;
+            // Colored triangle stays in place, only vertex color changes
+            t.type = new_type;
+            if(IsColored()) {
+                t.WriteColor(m_surface_colors[new_type]);
+            }
+            is_changed = true;
+        }
 
-                    // Segment's index array is dirty
-                    m_is_dirty_index = true;
-                }
+        // Move triangles to their surfaces in single pass
+        if(is_changed && !IsColored()) {
+            SortSurfaces();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Same as UpdateSurface() but triangles are read from shared template
+    private void UpdateSharedSurface(int[] types) {
+        short[] indices = m_shared.index_array;
+        int inst_num = m_shared.instance_num;
+        boolean is_changed = false;
+        for(int i = 0; i < m_triangle_num; i++) {
+            int n = m_shared_order[i];
+
+            // First vertex defines type of surface
+            int v = m_shared.local_vertices[(indices[n * 3] & 0xFFFF) / inst_num];
+            int new_type = types[v];
+            if(new_type == -1 || new_type == m_shared_types[n]) {
+                continue;
+            }
+
+            m_shared_types[n] = (byte)new_type;
+            if(IsColored()) {
+                WriteSharedColor(n, m_surface_colors[new_type]);
+            }
+            is_changed = true;
+        }
+
+        if(is_changed && !IsColored()) {
+            SortSurfaces();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private void WriteSharedColor(int n, float color) {
+        for(int i = 0; i < 3; i++) {
+            int offset = (m_shared.index_array[n * 3 + i] & 0xFFFF) * m_attrib_num + 
+                SphereVertex.ATTRIB_COLOR;
+            if(m_vertex_array[offset] != color) {
+                m_vertex_array[offset] = color;
+                SetVertexDirty(offset, offset + 1);
             }
         }
     }
 
+    // -------------------------------------------------------------------------
+    // Positions of shared sphere are scaled vertex directions, all instances 
+    // of vertex have same position
+    public void WriteHeights(float[] heights, float[] norm) {
+        int inst_size = m_shared.instance_num * m_attrib_num;
+        for(int local = 0; local < m_vertex_num; local++) {
+            int v = m_shared.local_vertices[local];
+            if(v == -1) {
+                continue;
+            }
+
+            int p = v * SphereVertex.POS_SIZE;
+            float h = heights[v],
+                  x = norm[p + 0] * h, y = norm[p + 1] * h, z = norm[p + 2] * h;
+            for(int offset = local * inst_size; 
+                    offset < (local + 1) * inst_size; 
+                    offset += m_attrib_num) {
+                m_vertex_array[offset + SphereVertex.ATTRIB_POS_X] = x;
+                m_vertex_array[offset + SphereVertex.ATTRIB_POS_Y] = y;
+                m_vertex_array[offset + SphereVertex.ATTRIB_POS_Z] = z;
+            }
+        }
+        SetVertexDirty(0, m_vertex_array.length);
+    }
+
     // -------------------------------------------------------------------------
     public int Refine(SphereUtils.VertexCache cache) {
-        // Refine all triangle of all surfaces
-        for(SphereUtils.Surface s : m_surfaces) {
-            int triangle_num = s.triangles.size();
+        // Refine all triangles, new triangles are appended after them
+        AssertTriangles("refine segment");
+        int triangle_num = m_triangle_num;
+        ReserveTriangles(triangle_num * 4);
+        for(int i = 0; i < triangle_num; i++) {
+            SphereTriangle t = m_triangles[i];
+            Utils.Assert(t.segment.equals(this), 
+                "Failed to refine segment, wrong triangle :: segment=%d triangle=%d",
+                id, t.segment.id);
+            t.Refine(cache);
+        }
+        return m_triangle_num;
+    }
+
+    // -------------------------------------------------------------------------
+    // Parallel refinement, stage 1: collect edges that will be split
+    public void CollectEdges() {
+        AssertTriangles("collect edges");
+        m_edges = new SphereUtils.EdgeList(m_triangle_num, m_vertex_num);
+        for(int i = 0; i < m_triangle_num; i++) {
+            m_edges.AddTriangle(m_triangles[i]);
+        }
+        m_edges.Finalize();
+
+        // Edges whose both vertices are shared with other segments might be 
+        // shared as well
+        for(int e = 0; e < m_edges.edge_num; e++) {
+            if(m_store.IsShared(m_edges.edge_vertices[e * 2 + 0]) && 
+               m_store.IsShared(m_edges.edge_vertices[e * 2 + 1])) {
+                m_edges.shared_num++;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Vertex instances in order they are drawn, should be called after 
+    // triangles are finalized
+    private int[] GetIndices() {
+        int[] indices = new int[m_triangle_num * 3];
+        int idx = 0;
+        if(m_shared != null) {
+            for(int n = 0; n < m_triangle_num; n++) {
+                int offset = m_shared_order[n] * 3;
+                indices[idx++] = m_shared.index_array[offset + 0] & 0xFFFF;
+                indices[idx++] = m_shared.index_array[offset + 1] & 0xFFFF;
+                indices[idx++] = m_shared.index_array[offset + 2] & 0xFFFF;
+            }
+            return indices;
+        }
+        AssertTriangles("get indices");
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            indices[idx++] = t.vertex_inst[0];
+            indices[idx++] = t.vertex_inst[1];
+            indices[idx++] = t.vertex_inst[2];
+        }
+        return indices;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetCacheMissNum() {
+        return SphereUtils.TriangleOrder.GetCacheMissNum(GetIndices(), m_triangle_num * 3,
+            m_vertex_array.length / m_attrib_num, SphereUtils.TriangleOrder.CACHE_SIZE);
+    }
+
+    // -------------------------------------------------------------------------
+    // Sorts triangles of each surface for vertex cache locality
+    public void OptimizeTriangleOrder() {
+        if(m_shared == null) {
+            AssertTriangles("optimize triangle order");
+        }
+        if(!m_is_sorted && !IsColored()) {
+            SortSurfaces();
+        }
+
+        int vertex_num = m_vertex_array.length / m_attrib_num;
+        for(int r = 0; r < GetRangeNum(); r++) {
+            int begin = GetRangeBegin(r), 
+                triangle_num = GetRangeEnd(r) - begin;
+            if(m_shared != null) {
+                int[] triangles = Arrays.copyOfRange(m_shared_order, begin, begin + triangle_num);
+                int[] indices = new int[triangle_num * 3];
+                for(int i = 0; i < triangle_num; i++) {
+                    for(int j = 0; j < 3; j++) {
+                        indices[i * 3 + j] = m_shared.index_array[triangles[i] * 3 + j] & 0xFFFF;
+                    }
+                }
+
+                int[] order = SphereUtils.TriangleOrder.Optimize(indices, triangle_num, vertex_num);
+                for(int i = 0; i < triangle_num; i++) {
+                    m_shared_order[begin + i] = triangles[order[i]];
+                }
+                continue;
+            }
+
+            SphereTriangle[] triangles = 
+                Arrays.copyOfRange(m_triangles, begin, begin + triangle_num);
+            int[] indices = new int[triangle_num * 3];
             for(int i = 0; i < triangle_num; i++) {
-                SphereTriangle t = s.triangles.get(i);
-                Utils.Assert(t.segment.equals(this), 
-                    "Failed to refine segment, wrong triangle :: segment=%d triangle=%d",
-                    id, t.segment.id);
-                t.Refine(cache);
+                System.arraycopy(triangles[i].vertex_inst, 0, indices, i * 3, 3);
+            }
+
+            int[] order = SphereUtils.TriangleOrder.Optimize(indices, triangle_num, vertex_num);
+            for(int i = 0; i < triangle_num; i++) {
+                m_triangles[begin + i] = triangles[order[i]];
             }
         }
+    }
+
+    // -------------------------------------------------------------------------
+    // Moves vertices in order of their first use by triangles, so that 
+    // vertex array is read mostly linearly. Returns old to new local id map, 
+    // vertex links are remapped by caller.
+    public int[] ReorderVertices() {
+        AssertTriangles("reorder vertices");
+        int inst_num = m_store.GetInstanceNum(),
+            vertex_size = m_store.GetVertexSize();
+
+        // Local vertex ids in order of first use
+        int[] remap = new int[m_vertex_num];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            for(int i = 0; i < 3; i++) {
+                int local = t.vertex_inst[i] / inst_num;
+                if(remap[local] == -1) {
+                    remap[local] = next++;
+                }
+            }
+        }
+        for(int local = 0; local < m_vertex_num; local++) {
+            if(remap[local] == -1) {
+                remap[local] = next++;
+            }
+        }
+
+        // Move vertex data and relink instances
+        float[] va = m_vertex_array.clone();
+        for(int local = 0; local < m_vertex_num; local++) {
+            System.arraycopy(va, local * vertex_size, 
+                m_vertex_array, remap[local] * vertex_size, vertex_size);
+        }
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            for(int i = 0; i < 3; i++) {
+                t.vertex_inst[i] = remap[t.vertex_inst[i] / inst_num] * inst_num + 
+                    t.vertex_inst[i] % inst_num;
+            }
+        }
+
+        // Deformation adjacency is keyed by local ids
+        m_local_vertices = null;
+        m_adjacent_begin = null;
+        m_adjacent = null;
+        SetVertexDirty(0, m_vertex_array.length);
+        return remap;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetTriangleNum() {
         return m_triangle_num;
     }
 
+    // -------------------------------------------------------------------------
+    // Should be called after triangles are finalized
+    public void BuildAdjacency() {
+        if(m_adjacent != null) {
+            return;
+        }
+        AssertTriangles("build adjacency");
+        int inst_num = m_store.GetInstanceNum();
+
+        // Count triangles of each local vertex
+        m_local_vertices = new int[m_vertex_num];
+        m_adjacent_begin = new int[m_vertex_num + 1];
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            for(int i = 0; i < 3; i++) {
+                int local = t.vertex_inst[i] / inst_num;
+                m_local_vertices[local] = t.vertices[i];
+                m_adjacent_begin[local + 1]++;
+            }
+        }
+        for(int i = 0; i < m_vertex_num; i++) {
+            m_adjacent_begin[i + 1] += m_adjacent_begin[i];
+        }
+
+        // Fill adjacent triangles
+        int[] fill = new int[m_vertex_num];
+        m_adjacent = new SphereTriangle[m_triangle_num * 3];
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            for(int i = 0; i < 3; i++) {
+                int local = t.vertex_inst[i] / inst_num;
+                m_adjacent[m_adjacent_begin[local] + fill[local]++] = t;
+            }
+        }
+
+        // Bounding cone around vertex directions
+        Vector3 norm = new Vector3();
+        m_bound_dir = new Vector3();
+        for(int v : m_local_vertices) {
+            m_bound_dir.add(m_store.GetNorm(v, norm));
+        }
+        m_bound_dir.nor();
+        float min_dot = 1.0f;
+        for(int v : m_local_vertices) {
+            min_dot = Math.min(min_dot, m_bound_dir.dot(m_store.GetNorm(v, norm)));
+        }
+        m_bound_angle = (float)Math.acos(MathUtils.clamp(min_dot, -1.0f, 1.0f));
+    }
+
+    // -------------------------------------------------------------------------
+    // Should be called after vertex and index arrays are filled, might run
+    // on loader thread so temporary vectors are local
+    public void UpdateBounds() {
+        if(m_sphere_center == null) {
+            m_sphere_center = new Vector3();
+            m_cone_apex = new Vector3();
+            m_cone_axis = new Vector3();
+        }
+
+        // Bounding box of used vertices, unused instances are left at origin
+        float[] min = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE},
+                max = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for(int i = 0; i < m_index_array.length; i++) {
+            int offset = (m_index_array[i] & 0xFFFF) * m_attrib_num;
+            for(int j = 0; j < 3; j++) {
+                min[j] = Math.min(min[j], m_vertex_array[offset + j]);
+                max[j] = Math.max(max[j], m_vertex_array[offset + j]);
+            }
+        }
+        m_sphere_center.set((min[0] + max[0]) / 2.0f, (min[1] + max[1]) / 2.0f, 
+            (min[2] + max[2]) / 2.0f);
+
+        // Bounding sphere and average triangle normal
+        Vector3 corner = new Vector3(), norm = new Vector3();
+        float dst2 = 0.0f;
+        m_cone_axis.setZero();
+        for(int i = 0; i < m_index_array.length; i += 3) {
+            m_cone_axis.add(GetTriangleNormal(i, norm));
+            dst2 = Math.max(dst2, m_sphere_center.dst2(GetCorner(i + 0, corner)));
+            dst2 = Math.max(dst2, m_sphere_center.dst2(GetCorner(i + 1, corner)));
+            dst2 = Math.max(dst2, m_sphere_center.dst2(GetCorner(i + 2, corner)));
+        }
+        m_sphere_radius = (float)Math.sqrt(dst2);
+        m_cone_axis.nor();
+
+        // Spread of triangle normals around axis
+        float min_dot = 1.0f;
+        for(int i = 0; i < m_index_array.length; i += 3) {
+            min_dot = Math.min(min_dot, m_cone_axis.dot(GetTriangleNormal(i, norm)));
+        }
+
+        // Wide cone never culls anything
+        if(min_dot <= SphereSegment.CONE_MIN_DOT) {
+            m_cone_apex.set(m_sphere_center);
+            m_cone_cutoff = 1.0f;
+            return;
+        }
+
+        // Apex is a point on axis which is behind planes of all triangles
+        float max_t = 0.0f;
+        for(int i = 0; i < m_index_array.length; i += 3) {
+            GetTriangleNormal(i, norm);
+            float t = GetCorner(i, corner).sub(m_sphere_center).scl(-1.0f).dot(norm) / 
+                m_cone_axis.dot(norm);
+            max_t = Math.max(max_t, t);
+        }
+        m_cone_apex.set(m_cone_axis).scl(-max_t).add(m_sphere_center);
+        m_cone_cutoff = (float)Math.sqrt(1.0f - min_dot * min_dot);
+    }
+
+    // -------------------------------------------------------------------------
+    private Vector3 GetTriangleNormal(int idx, Vector3 dest) {
+        return Utils.GetTriangleNormal(dest, m_vertex_array, 
+            (m_index_array[idx + 0] & 0xFFFF) * m_attrib_num,
+            (m_index_array[idx + 1] & 0xFFFF) * m_attrib_num,
+            (m_index_array[idx + 2] & 0xFFFF) * m_attrib_num);
+    }
+
+    // -------------------------------------------------------------------------
+    private Vector3 GetCorner(int idx, Vector3 dest) {
+        int o = (m_index_array[idx] & 0xFFFF) * m_attrib_num;
+        return dest.set(m_vertex_array[o + 0], m_vertex_array[o + 1], m_vertex_array[o + 2]);
+    }
+
+    // -------------------------------------------------------------------------
+    public boolean TestBoundCone(Vector3 dir, float angle) {
+        float max_angle = m_bound_angle + angle;
+        return max_angle >= MathUtils.PI ||
+            m_bound_dir.dot(dir) >= (float)Math.cos(max_angle);
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetLocalVertexNum() {
+        return m_vertex_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetLocalVertex(int local) {
+        return m_local_vertices[local];
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetAdjacentBegin(int local) {
+        return m_adjacent_begin[local];
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetAdjacentEnd(int local) {
+        return m_adjacent_begin[local + 1];
+    }
+
+    // -------------------------------------------------------------------------
+    public SphereTriangle GetAdjacent(int idx) {
+        return m_adjacent[idx];
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetSharedEdgeNum() {
+        return m_edges.shared_num;
+    }
+
+    // -------------------------------------------------------------------------
+    // Parallel refinement, stage 2: assign ids of middle vertices and link them
+    // with segment. Segments should be processed serially in same order as
+    // serial refinement does to get same vertex ids.
+    public void LinkEdges(SphereUtils.VertexCache shared_cache) {
+        for(int e = 0; e < m_edges.edge_num; e++) {
+            int v0 = m_edges.edge_vertices[e * 2 + 0],
+                v1 = m_edges.edge_vertices[e * 2 + 1],
+                v;
+
+            // Possibly shared edge is looked up in cache ...
+            if(m_store.IsShared(v0) && m_store.IsShared(v1)) {
+                int vertex_num = m_store.vertex_num;
+                v = shared_cache.GetVertex(v0, v1);
+                m_edges.edge_owned[e] = (vertex_num != m_store.vertex_num);
+
+            // ... while segment's own edge gets new vertex right away
+            } else {
+                v = m_store.Reserve();
+                m_edges.edge_owned[e] = true;
+            }
+            m_edges.edge_middle[e] = m_store.LinkSegment(v, this);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Parallel refinement, stage 3: create middle vertices and split triangles
+    public int RefineEdges() {
+        SphereUtils.EdgeList edges = m_edges;
+        m_edges = null;
+
+        // Initialize middle vertices owned by this segment
+        for(int e = 0; e < edges.edge_num; e++) {
+            if(edges.edge_owned[e]) {
+                m_store.InitMiddle(edges.edge_middle[e], 
+                    edges.edge_vertices[e * 2 + 0], edges.edge_vertices[e * 2 + 1]);
+            }
+        }
+
+        // Split triangles, each one is replaced by 4
+        ReserveTriangles(m_triangle_num * 4);
+        for(int i = 0; i < edges.triangle_num; i++) {
+            int offset = i * 3;
+            edges.triangles[i].Refine(
+                edges.edge_middle[edges.triangle_edges[offset + 0]],
+                edges.edge_middle[edges.triangle_edges[offset + 1]],
+                edges.edge_middle[edges.triangle_edges[offset + 2]]);
+        }
+        return m_triangle_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetCacheSize() {
+        return (3 + 3 + 4 + m_surfaces.length * 2) * 4 +
+            m_vertex_array.length * 4 + m_index_array.length * 2;
+    }
+
+    // -------------------------------------------------------------------------
+    public void WriteCache(ByteBuffer buff) {
+        // Culling attributes
+        buff.putFloat(m_center.x).putFloat(m_center.y).putFloat(m_center.z);
+        buff.putFloat(m_normal.x).putFloat(m_normal.y).putFloat(m_normal.z);
+
+        // Mesh arrays & surface ranges
+        buff.putInt(m_vertex_num);
+        buff.putInt(m_attrib_num);
+        buff.putInt(m_vertex_array.length);
+        buff.putInt(m_index_array.length);
+        for(int i = 0; i < m_surfaces.length; i++) {
+            buff.putInt(m_surface_begin[i] * 3);
+            buff.putInt((m_surface_begin[i + 1] - m_surface_begin[i]) * 3);
+        }
+        buff.asFloatBuffer().put(m_vertex_array);
+        buff.position(buff.position() + m_vertex_array.length * 4);
+        buff.asShortBuffer().put(m_index_array);
+        buff.position(buff.position() + m_index_array.length * 2);
+    }
+
+    // -------------------------------------------------------------------------
+    public void ReadCache(ByteBuffer buff) {
+        // Culling attributes
+        m_center = new Vector3(buff.getFloat(), buff.getFloat(), buff.getFloat());
+        m_normal = new Vector3(buff.getFloat(), buff.getFloat(), buff.getFloat());
+
+        // Mesh arrays & surface ranges
+        int vertex_num = buff.getInt(),
+            attrib_num = buff.getInt(),
+            vertex_array_size = buff.getInt(),
+            index_array_size = buff.getInt();
+        for(int i = 0; i < m_surfaces.length; i++) {
+            int offset = buff.getInt(), size = buff.getInt();
+            m_surface_begin[i] = offset / 3;
+            m_surface_begin[i + 1] = (offset + size) / 3;
+        }
+        buff.asFloatBuffer().get(CreateVertexArray(vertex_array_size, false));
+        buff.position(buff.position() + vertex_array_size * 4);
+        buff.asShortBuffer().get(CreateIndexArray(index_array_size, false));
+        buff.position(buff.position() + index_array_size * 2);
+        m_vertex_num = vertex_num;
+        m_attrib_num = attrib_num;
+        m_triangle_num = index_array_size / 3;
+        m_is_sorted = true;
+        m_has_triangles = false;
+
+        // Model without triangles is built later by render thread
+        UpdateBounds();
+    }
+
+    // -------------------------------------------------------------------------
+    // Template of finalized segment, triangles are kept in index array order
+    public SphereTopology.Segment CreateShared() {
+        AssertTriangles("create shared segment");
+        SphereTopology.Segment ts = new SphereTopology.Segment();
+        ts.center = new Vector3(m_center);
+        ts.normal = new Vector3(m_normal);
+        ts.vertex_num = m_vertex_num;
+        ts.attrib_num = m_attrib_num;
+        ts.instance_num = m_store.GetInstanceNum();
+        ts.vertex_array = m_vertex_array.clone();
+        ts.index_array = m_index_array.clone();
+        ts.surface_begin = m_surface_begin.clone();
+        ts.triangle_types = new byte[m_triangle_num];
+        ts.local_vertices = new int[m_vertex_num];
+        Arrays.fill(ts.local_vertices, -1);
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            ts.triangle_types[n] = (byte)t.type;
+            for(int i = 0; i < 3; i++) {
+                ts.local_vertices[t.vertex_inst[i] / ts.instance_num] = t.vertices[i];
+            }
+        }
+        return ts;
+    }
+
+    // -------------------------------------------------------------------------
+    // Segment of shared sphere owns only mesh arrays and surface types
+    public void ReadShared(SphereTopology.Segment ts) {
+        m_center = new Vector3(ts.center);
+        m_normal = new Vector3(ts.normal);
+        System.arraycopy(ts.vertex_array, 0, 
+            CreateVertexArray(ts.vertex_array.length, false), 0, ts.vertex_array.length);
+        System.arraycopy(ts.index_array, 0, 
+            CreateIndexArray(ts.index_array.length, false), 0, ts.index_array.length);
+        System.arraycopy(ts.surface_begin, 0, m_surface_begin, 0, m_surface_begin.length);
+        m_vertex_num = ts.vertex_num;
+        m_attrib_num = ts.attrib_num;
+        m_triangle_num = ts.index_array.length / 3;
+        m_is_sorted = true;
+        m_has_triangles = false;
+
+        m_shared = ts;
+        m_shared_types = ts.triangle_types.clone();
+        m_shared_order = new int[m_triangle_num];
+        for(int i = 0; i < m_triangle_num; i++) {
+            m_shared_order[i] = i;
+        }
+        UpdateBounds();
+    }
+
     // -------------------------------------------------------------------------
     public void CreateVertexArray() {
-        CreateVertexArray(m_vertex_num * SphereVertex.TOTAL_SIZE, false);
+        Utils.Assert(m_vertex_num * m_store.GetInstanceNum() <= SphereSegment.MAX_VERTEX_NUM,
+            "Failed to create vertex array, segment exceeds index range :: segment=%d vertex_num=%d",
+            id, m_vertex_num);
+        CreateVertexArray(m_vertex_num * m_store.GetVertexSize(), false);
+    }
+
+    // -------------------------------------------------------------------------
+    // Creates GPU mesh, should be called by render thread
+    public void BuildModel() {
+        // Packed positions are relative to segment center
+        VertexAttribute[] vertex_attrib = SphereVertex.GetVertexAttributes(IsColored());
+        if(Main.p.cfg.renderer_pack_vertices) {
+            SetVertexPack(new VertexPack(vertex_attrib)
+                .FitBounds(m_vertex_array, m_center, SphereSegment.PACK_PADDING));
+        }
+        BuildDynamicModel(vertex_attrib);
+    }
+
+    // -------------------------------------------------------------------------
+    public void AddSmoothNormals() {
+        AssertTriangles("add smooth normals");
+        Vector3 normal = new Vector3();
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            t.AddSmoothNormal(normal);
+        }
     }
 
     // -------------------------------------------------------------------------
@@ -203,16 +995,35 @@ public class SphereSegment
     // DynamicModel
     // *************************************************************************
     @Override public void PrepareModel() {
-        // Flush triangle normal to vertex array
-        for(SphereUtils.Surface s : m_surfaces) {
-            for(SphereTriangle t : s.triangles) {
-                t.Finalize();
-            }
+        // Triangles are finalized only once, model might be prepared before
+        // it's built. Vertex array of segment without triangles is final.
+        if(m_is_prepared || !m_has_triangles) {
+            return;
+        }
+        m_is_prepared = true;
+
+        // Flush triangle normal to vertex array, model is prepared on loader
+        // thread so temporary normal is local
+        Vector3 normal = new Vector3();
+        for(int n = 0; n < m_triangle_num; n++) {
+            SphereTriangle t = m_triangles[n];
+            t.Finalize(normal);
         }
     }
 
     // -------------------------------------------------------------------------
     @Override public void CreateModel(ModelBuilder mb, Mesh mesh) {
+        // Single meshpart for all surfaces, color comes from vertices
+        if(IsColored()) {
+            mb.part(new MeshPart(
+                        "sphere-segment-" + id,
+                        mesh, 0, 
+                        m_index_array.length,
+                        GL20.GL_TRIANGLES),
+                Sphere.VERTEX_COLOR_MATERIAL);
+            return;
+        }
+
         // Create meshpart for each type of surface
         for(int i = 0; i < m_surfaces.length; i++) {
             mb.part(new MeshPart(
@@ -226,9 +1037,15 @@ public class SphereSegment
 
     // -------------------------------------------------------------------------
     @Override public void FinalizeModel(ModelInstance inst) {
+        // Single meshpart always covers whole index array
+        if(IsColored()) {
+            return;
+        }
+
         for(int i = 0; i < m_surfaces.length; i++) {
             m_surfaces[i].mesh_part = inst.nodes.get(0).parts.get(i).meshPart;
         }
+        UpdateMeshParts();
     }
 
     // -------------------------------------------------------------------------
@@ -238,14 +1055,15 @@ public class SphereSegment
     // -------------------------------------------------------------------------
     @Override public void LogVertexArray() {
         Log.Debug("Vertex array :: segment=%d array_size=%d", id, m_vertex_array.length);
-        int offset = 0;
+        int offset = 0, 
+            inst_num = m_vertex_array.length / m_attrib_num / m_vertex_num;
         for(int idx = 0; idx < m_vertex_num; idx++) {
-            for(int inst = 0; inst < SphereVertex.INSTANCE_NUM; inst++) {
+            for(int inst = 0; inst < inst_num; inst++) {
                 Log.Debug(
                   "  > vertex_id=%d inst_id=%d attrib_offset=%d pos=%.2f:%.2f:%.2f norm=%.2f:%.2f:%.2f", idx, inst, offset, 
                   m_vertex_array[offset + 0], m_vertex_array[offset + 1], m_vertex_array[offset + 2],
                   m_vertex_array[offset + 3], m_vertex_array[offset + 4], m_vertex_array[offset + 5]);
-                offset += SphereVertex.ATTRIB_NUM;
+                offset += m_attrib_num;
             }
         }
     }
@@ -264,8 +1082,10 @@ public class SphereSegment
     // Interfaces.ISmartModel
     // *************************************************************************
     @Override public RenderableProvider TestModelVisibility(ICamera camera) {
-        // Segments is visible if it's normal is facing camera
-        return camera.TestBackfaceCulling(m_normal, m_center, 
-            SphereSegment.BACKFACE_CULLING_THRESH) ? m_model_inst : null;
+        // Segment is visible if it's inside frustum and some of it's triangles
+        // might face camera
+        return (camera.TestFrustumCulling(m_sphere_center, m_sphere_radius) && 
+            camera.TestConeCulling(m_cone_apex, m_cone_axis, m_cone_cutoff)) ? 
+                m_model_inst : null;
     }
 }
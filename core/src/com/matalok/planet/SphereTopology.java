@@ -0,0 +1,106 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.util.HashMap;
+
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Connectivity of finalized unit sphere. Refinement, vertex instances and 
+// triangle order depend only on refine level and vertex format, so topology 
+// is built once and shared by all spheres. Sphere created from topology keeps
+// only its own mesh arrays and surface types, shared arrays are read only.
+public class SphereTopology {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    private static HashMap<Integer, SphereTopology> cache = 
+        new HashMap<Integer, SphereTopology>();
+
+    // -------------------------------------------------------------------------
+    public static synchronized SphereTopology Get(int refine_lvl, boolean parallel, 
+      boolean smooth, boolean colored) {
+        int key = (refine_lvl << 2) | ((smooth) ? 1 : 0) | ((colored) ? 2 : 0);
+        SphereTopology topology = SphereTopology.cache.get(key);
+        if(topology == null) {
+            topology = new SphereTopology(refine_lvl, parallel, smooth, colored);
+            SphereTopology.cache.put(key, topology);
+        }
+        return topology;
+    }
+
+    // -------------------------------------------------------------------------
+    public static synchronized void Clear() {
+        SphereTopology.cache.clear();
+    }
+
+    // *************************************************************************
+    // Segment
+    // *************************************************************************
+    public static class Segment {
+        public Vector3 center, normal;
+        public int vertex_num, attrib_num, instance_num;
+        public float[] vertex_array;            // Unit sphere, initial surfaces
+        public short[] index_array;             // [triangle * 3] -> vertex instance
+        public int[] surface_begin;             // [surface] -> first triangle
+        public byte[] triangle_types;           // [triangle] -> surface
+        public int[] local_vertices;            // [local] -> vertex, -1 if unused
+    }
+
+    // *************************************************************************
+    // SphereTopology
+    // *************************************************************************
+    public int refine_lvl;
+    public boolean smooth, colored;
+    public int vertex_num;
+    public float[] norm, tex_coords;
+    public Segment[] segments;
+
+    // -------------------------------------------------------------------------
+    private SphereTopology(int refine_lvl, boolean parallel, boolean smooth, 
+      boolean colored) {
+        // Temporary sphere is refined and finalized as usual
+        long start = System.currentTimeMillis();
+        Sphere sphere = new Sphere();
+        sphere.Create(refine_lvl, parallel, smooth, colored);
+        sphere.Finalize(false);
+
+        SphereVertex.Store store = sphere.GetVertices();
+        this.refine_lvl = refine_lvl;
+        this.smooth = smooth;
+        this.colored = colored;
+        vertex_num = store.vertex_num;
+        norm = store.norm;
+        tex_coords = store.GetTexCoords();
+
+        SphereSegment[] src = sphere.GetSegments();
+        segments = new Segment[src.length];
+        int size = vertex_num * (SphereVertex.NORM_SIZE + 2) * 4;
+        for(int i = 0; i < src.length; i++) {
+            segments[i] = src[i].CreateShared();
+            size += segments[i].vertex_array.length * 4 + segments[i].index_array.length * 2 + 
+                segments[i].triangle_types.length + segments[i].local_vertices.length * 4;
+        }
+        Log.Info("Sphere topology built :: lvl=%d smooth=%b colored=%b vertices=%d size=%d duration=%d", 
+            refine_lvl, smooth, colored, vertex_num, size, System.currentTimeMillis() - start);
+    }
+}
@@ -20,108 +20,152 @@
 package com.matalok.planet;
 
 //-----------------------------------------------------------------------------
-import java.util.LinkedList;
 import com.badlogic.gdx.math.Vector3;
 
 // -----------------------------------------------------------------------------
 public class SphereTriangle {
-    // -------------------------------------------------------------------------
-    // Make it a linked-list because fast add/delete is needed
-    public static class List extends LinkedList<SphereTriangle> {
-        // ---------------------------------------------------------------------
-        private static final long serialVersionUID = 42424201L;
-
-        // *********************************************************************
-        // SphereTriangle.List
-        // *********************************************************************
-        public List() { super(); }
-    }
-
     // *************************************************************************
     // SphereTriangle
     // *************************************************************************
-    public SphereVertex[] vertices;
+    public int[] vertices;
     public SphereSegment segment;
     public int[] vertex_inst;
     public int type;
+    public int stamp;                   // Used by deformation to visit once
 
     // -------------------------------------------------------------------------
     public SphereTriangle(SphereSegment s,
-                          SphereVertex v0,
-                          SphereVertex v1,
-                          SphereVertex v2,
+                          int v0,
+                          int v1,
+                          int v2,
                           int t) {
         // Linked segment
         segment = s;
 
         // Vertices
-        vertices = new SphereVertex[] {v0, v1, v2};
+        vertices = new int[] {v0, v1, v2};
 
         // Each vertex should allocate unique instance from linked segment
-        vertex_inst = new int[] {v0.Alloc(s), v1.Alloc(s), v2.Alloc(s)};
+        SphereVertex.Store store = s.GetVertexStore();
+        vertex_inst = new int[] {
+            store.Alloc(v0, s), store.Alloc(v1, s), store.Alloc(v2, s)};
 
         // Surface type
         type = t;
     }
 
     // -------------------------------------------------------------------------
-    public void SetVertex(int idx, SphereVertex v) {
+    public void SetVertex(int idx, int v) {
+        SphereVertex.Store store = segment.GetVertexStore();
+
         // Free old vertex instance
-        vertices[idx].Free(segment, vertex_inst[idx]);
+        store.Free(vertices[idx], segment, vertex_inst[idx]);
 
         // Set new vertex
         vertices[idx] = v;
 
         // Allocate new instance
-        vertex_inst[idx] = v.Alloc(segment);
+        vertex_inst[idx] = store.Alloc(v, segment);
     }
 
     // -------------------------------------------------------------------------
-    public void Finalize() {
+    // Temporary normal is owned by caller, triangles are finalized on loader
+    // thread while render thread deforms other sphere
+    public void Finalize(Vector3 normal) {
+        SphereVertex.Store store = segment.GetVertexStore();
+
         // Get triangle normal
-        Vector3 normal = Utils.GetTriangleNormal(
-            vertices[0].pos, vertices[1].pos, vertices[2].pos);
+        GetNormal(normal);
 
         // Finalize all vertices
         for(int i = 0; i < 3; i++) {
-            // Update vertex normal
-            vertices[i].WriteNormal(segment, vertex_inst[i], normal);
+            // Update vertex normal, smooth normals are written by vertex store
+            if(!store.IsSmooth()) {
+                store.WriteNormal(vertices[i], segment, vertex_inst[i], normal);
+            }
 
             // Local vertex-id is not needed anymore, substitute it's value with 
             // vertex-instance offset in vertex array
-            vertex_inst[i] += 
-                vertices[i].GetInstanceId(segment, vertex_inst[i]) * SphereVertex.INSTANCE_NUM;
+            vertex_inst[i] += store.GetInstanceId(
+                vertices[i], segment, vertex_inst[i]) * store.GetInstanceNum();
+        }
+
+        // Surface color of single draw call mode
+        if(store.IsColored()) {
+            WriteColor(segment.GetSurfaceColor(type));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Writes packed surface color to vertex instances of finalized triangle. 
+    // Instances of smooth vertices are shared, last written color wins.
+    public void WriteColor(float color) {
+        float[] va = segment.GetVertexArray();
+        int attrib_num = segment.GetAttribNum();
+        for(int i = 0; i < 3; i++) {
+            int offset = vertex_inst[i] * attrib_num + SphereVertex.ATTRIB_COLOR;
+            if(va[offset] != color) {
+                va[offset] = color;
+                segment.SetVertexDirty(offset, offset + 1);
+            }
         }
     }
 
     // -------------------------------------------------------------------------
-    private SphereVertex GetMiddleVertex(SphereVertex v0, 
-                                         SphereVertex v1,
-                                         SphereUtils.VertexCache vertex_cache) {
-        // Get cache key
-        long key = SphereUtils.VertexCache.GetKey(v0.id, v1.id);
-
-        // Get middle vertex by key
-        SphereVertex v = (vertex_cache.HasVertex(key)) ?
-            vertex_cache.GetVertex(key) : // Get from cache ...
-            vertex_cache.PutVertex(key,   // ... or create and cache new vertex 
-                Utils.GetMiddle(v0.norm, v1.norm));
-        return v;
+    public Vector3 GetNormal(Vector3 dest) {
+        return Utils.GetTriangleNormal(dest, segment.GetVertexStore().pos, 
+            vertices[0] * SphereVertex.POS_SIZE, 
+            vertices[1] * SphereVertex.POS_SIZE, 
+            vertices[2] * SphereVertex.POS_SIZE);
+    }
+
+    // -------------------------------------------------------------------------
+    // Rewrites flat normal of finalized triangle after it's vertices moved
+    public void UpdateNormal(Vector3 normal) {
+        GetNormal(normal);
+        float[] va = segment.GetVertexArray();
+        int attrib_num = segment.GetAttribNum();
+        for(int i = 0; i < 3; i++) {
+            int offset = vertex_inst[i] * attrib_num;
+            va[offset + SphereVertex.ATTRIB_NORM_X] = normal.x;
+            va[offset + SphereVertex.ATTRIB_NORM_Y] = normal.y;
+            va[offset + SphereVertex.ATTRIB_NORM_Z] = normal.z;
+            segment.SetVertexDirty(offset, offset + attrib_num);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public void AddSmoothNormal(Vector3 normal) {
+        SphereVertex.Store store = segment.GetVertexStore();
+        GetNormal(normal);
+        store.AddNormal(vertices[0], normal);
+        store.AddNormal(vertices[1], normal);
+        store.AddNormal(vertices[2], normal);
     }
 
     // -------------------------------------------------------------------------
     public void Refine(SphereUtils.VertexCache cache) {
+        SphereVertex.Store store = segment.GetVertexStore();
+
         // Get vertices
-        SphereVertex 
+        int
             // Existing vertices
             v0 = vertices[0],
             v1 = vertices[1],
             v2 = vertices[2],
 
             // New middle vertices (should be linked with segment)
-            v01 = GetMiddleVertex(v0, v1, cache).LinkSegment(segment),
-            v12 = GetMiddleVertex(v1, v2, cache).LinkSegment(segment),
-            v20 = GetMiddleVertex(v2, v0, cache).LinkSegment(segment);
+            v01 = store.LinkSegment(cache.GetVertex(v0, v1), segment),
+            v12 = store.LinkSegment(cache.GetVertex(v1, v2), segment),
+            v20 = store.LinkSegment(cache.GetVertex(v2, v0), segment);
+        Refine(v01, v12, v20);
+    }
+
+    // -------------------------------------------------------------------------
+    public void Refine(int v01, int v12, int v20) {
+        // Existing vertices
+        int v1 = vertices[1],
+            v2 = vertices[2];
 
         // Modify current triangle
         SetVertex(1, v01);
@@ -20,27 +20,37 @@
 package com.matalok.planet;
 
 //-----------------------------------------------------------------------------
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.model.MeshPart;
-import com.badlogic.gdx.math.Vector3;
 
 // -----------------------------------------------------------------------------
 public class SphereUtils {
     // -------------------------------------------------------------------------
     public static interface ISphereManager {
-        public SphereVertex CreateVertex(Vector3 v);
+        public int CreateVertex(int v0, int v1);
     }
 
     // -------------------------------------------------------------------------
+    // Maps edge (pair of vertex ids) to id of it's middle vertex. Open-addressing
+    // table with linear probing over primitive arrays, so lookups do not box 
+    // keys and do not allocate.
     public static class VertexCache {
         // *********************************************************************
         // STATIC
         // *********************************************************************
+        private static final long EMPTY_KEY = 0L;
+        private static final float LOAD_FACTOR = 0.5f;
+
+        // ---------------------------------------------------------------------
         public static long GetKey(int idx0, int idx1) {
-            Utils.Assert(idx0 != idx1, 
-                "Failed to get vertex key, wrong index:: idx=%d", idx0);
+            if(idx0 == idx1) {
+                Utils.Assert(false, 
+                    "Failed to get vertex key, wrong index:: idx=%d", idx0);
+            }
 
             // Indices should be in ascending order
             if(idx0 > idx1) {
@@ -51,42 +61,377 @@ public class SphereUtils {
             return (long)idx0 << 32 | (long)idx1;
         }
 
+        // ---------------------------------------------------------------------
+        // Number of edges in closed triangle mesh with given number of vertices 
+        public static int GetEdgeNum(int vertex_num) {
+            return 3 * vertex_num - 6;
+        }
+
+        // ---------------------------------------------------------------------
+        public static int GetHash(long key) {
+            // MurmurHash3 finalizer
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            key *= 0xc4ceb9fe1a85ec53L;
+            key ^= key >>> 33;
+            return (int)key;
+        }
+
         // *********************************************************************
         // VertexCache
         // *********************************************************************
-        private HashMap<Long, SphereVertex> m_map;
+        private long[] m_keys;
+        private int[] m_values;
+        private int m_mask, m_size;
         private SphereUtils.ISphereManager m_manager;
 
         // ---------------------------------------------------------------------
-        public VertexCache(int size, SphereUtils.ISphereManager manager) {
-            m_map = new HashMap<Long, SphereVertex>(size);
+        public VertexCache(int edge_num, SphereUtils.ISphereManager manager) {
+            // Each cached edge gets one middle vertex
+            int capacity = Integer.highestOneBit(Math.max(
+                (int)(edge_num / VertexCache.LOAD_FACTOR), 2) - 1) << 1;
+
+            m_keys = new long[capacity];
+            m_values = new int[capacity];
+            m_mask = capacity - 1;
             m_manager = manager;
         }
 
         // ---------------------------------------------------------------------
-        public Boolean HasVertex(long key) {
-            return m_map.containsKey(key);
+        public int GetSize() {
+            return m_size;
+        }
+
+        // ---------------------------------------------------------------------
+        public int GetVertex(int v0, int v1) {
+            long key = VertexCache.GetKey(v0, v1);
+
+            // Probe until key or empty slot is found
+            int slot = VertexCache.GetHash(key) & m_mask;
+            for(;;) {
+                long k = m_keys[slot];
+                if(k == key) {
+                    return m_values[slot]; // Get from cache ...
+                }
+                if(k == VertexCache.EMPTY_KEY) {
+                    break;
+                }
+                slot = (slot + 1) & m_mask;
+            }
+
+            // ... or create and cache new vertex
+            if(m_size + 1 > m_keys.length * VertexCache.LOAD_FACTOR) {
+                Grow();
+                return GetVertex(v0, v1);
+            }
+            int v = m_manager.CreateVertex(v0, v1);
+            m_keys[slot] = key;
+            m_values[slot] = v;
+            m_size++;
+            return v;
+        }
+
+        // ---------------------------------------------------------------------
+        private void Grow() {
+            long[] keys = m_keys;
+            int[] values = m_values;
+            Log.Debug("Resizing vertex cache :: old_size=%d new_size=%d", 
+                keys.length, keys.length * 2);
+
+            m_keys = new long[keys.length * 2];
+            m_values = new int[keys.length * 2];
+            m_mask = m_keys.length - 1;
+            for(int i = 0; i < keys.length; i++) {
+                if(keys[i] == VertexCache.EMPTY_KEY) {
+                    continue;
+                }
+
+                int slot = VertexCache.GetHash(keys[i]) & m_mask;
+                while(m_keys[slot] != VertexCache.EMPTY_KEY) {
+                    slot = (slot + 1) & m_mask;
+                }
+                m_keys[slot] = keys[i];
+                m_values[slot] = values[i];
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Edges of segment triangles that are split during single refinement 
+    // iteration. Edges are kept in order of their first occurrence which 
+    // matches order in which serial refinement creates middle vertices.
+    public static class EdgeList 
+      implements SphereUtils.ISphereManager {
+        // ---------------------------------------------------------------------
+        public SphereTriangle[] triangles;
+        public int triangle_num;
+        public int[] triangle_edges;        // [triangle * 3] -> edge
+        public int edge_num, shared_num;
+        public int[] edge_vertices;         // [edge * 2] -> edge vertices
+        public int[] edge_middle;           // [edge] -> middle vertex
+        public boolean[] edge_owned;        // [edge] -> middle vertex created by segment
+
+        // ---------------------------------------------------------------------
+        private VertexCache m_cache;
+
+        // ---------------------------------------------------------------------
+        public EdgeList(int triangle_num, int vertex_num) {
+            int edge_num = VertexCache.GetEdgeNum(Math.max(vertex_num, 3));
+            triangles = new SphereTriangle[triangle_num];
+            triangle_edges = new int[triangle_num * 3];
+            edge_vertices = new int[edge_num * 2];
+            m_cache = new VertexCache(edge_num, this);
+        }
+
+        // ---------------------------------------------------------------------
+        public void AddTriangle(SphereTriangle t) {
+            int offset = triangle_num * 3;
+            triangles[triangle_num++] = t;
+            triangle_edges[offset + 0] = m_cache.GetVertex(t.vertices[0], t.vertices[1]);
+            triangle_edges[offset + 1] = m_cache.GetVertex(t.vertices[1], t.vertices[2]);
+            triangle_edges[offset + 2] = m_cache.GetVertex(t.vertices[2], t.vertices[0]);
         }
 
         // ---------------------------------------------------------------------
-        public SphereVertex GetVertex(long key) {
-            Utils.Assert(HasVertex(key), 
-                "Failed to get cached vertex, key does not exist :: key=%d", key);
-            return m_map.get(key);
+        public void Finalize() {
+            // Local edge cache is not needed once all triangles are added
+            m_cache = null;
+            edge_middle = new int[edge_num];
+            edge_owned = new boolean[edge_num];
+        }
+
+        // *********************************************************************
+        // SphereUtils.ISphereManager
+        // *********************************************************************
+        @Override public int CreateVertex(int v0, int v1) {
+            if(edge_num * 2 == edge_vertices.length) {
+                edge_vertices = Arrays.copyOf(
+                    edge_vertices, edge_vertices.length * 2);
+            }
+            edge_vertices[edge_num * 2 + 0] = v0;
+            edge_vertices[edge_num * 2 + 1] = v1;
+            return edge_num++;
         }
+    }
+
+    // -------------------------------------------------------------------------
+    // Runs single stage of parallel refinement for range of segments
+    public static class SegmentTask 
+      extends RecursiveAction {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        private static final long serialVersionUID = 42424203L;
 
         // ---------------------------------------------------------------------
-        public SphereVertex PutVertex(long key, Vector3 v) {
-            // Cache vertex ...
-            Utils.Assert(!HasVertex(key), 
-                "Failed to cache vertex, key already exists :: key=%d", key);
+        public static final int OP_COLLECT_EDGES  = 0;
+        public static final int OP_REFINE_EDGES   = 1;
 
-            // Manager creates new vertex ...
-            SphereVertex sv = m_manager.CreateVertex(v);
+        // *********************************************************************
+        // SegmentTask
+        // *********************************************************************
+        private SphereSegment[] m_segments;
+        private int m_from, m_to, m_op;
 
-            // ... and we cache it
-            m_map.put(key, sv);
-            return sv;
+        // ---------------------------------------------------------------------
+        public SegmentTask(SphereSegment[] segments, int from, int to, int op) {
+            m_segments = segments;
+            m_from = from;
+            m_to = to;
+            m_op = op;
+        }
+
+        // *********************************************************************
+        // RecursiveAction
+        // *********************************************************************
+        @Override protected void compute() {
+            // Split range until single segment is left
+            if(m_to - m_from > 1) {
+                int middle = (m_from + m_to) >>> 1;
+                RecursiveAction.invokeAll(
+                    new SegmentTask(m_segments, m_from, middle, m_op),
+                    new SegmentTask(m_segments, middle, m_to, m_op));
+                return;
+            }
+
+            SphereSegment s = m_segments[m_from];
+            switch(m_op) {
+                case SegmentTask.OP_COLLECT_EDGES:  s.CollectEdges();   break;
+                case SegmentTask.OP_REFINE_EDGES:   s.RefineEdges();    break;
+                default:
+                    Utils.Assert(false, 
+                        "Failed to run segment task, unknown operation :: op=%d", m_op);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    private static ForkJoinPool pool;
+    public static synchronized ForkJoinPool GetPool() {
+        if(pool == null) {
+            pool = new ForkJoinPool();
+            Log.Info("Creating sphere worker pool :: threads=%d", pool.getParallelism());
+        }
+        return pool;
+    }
+
+    // -------------------------------------------------------------------------
+    // Reorders triangles for post-transform vertex cache. Greedy algorithm
+    // that picks triangle whose vertices score highest by their position in
+    // simulated LRU cache and by number of triangles still using them.
+    // https://tomforsyth1000.github.io/papers/fast_vert_cache_opt.html
+    public static class TriangleOrder {
+        // *********************************************************************
+        // STATIC
+        // *********************************************************************
+        public static final int CACHE_SIZE = 32;
+
+        // ---------------------------------------------------------------------
+        private static final float CACHE_DECAY_POWER    = 1.5f;
+        private static final float LAST_TRIANGLE_SCORE  = 0.75f;
+        private static final float VALENCE_BOOST_SCALE  = 2.0f;
+        private static final float VALENCE_BOOST_POWER  = 0.5f;
+        private static final int MAX_VALENCE            = 64;
+
+        // ---------------------------------------------------------------------
+        private static float[] cache_score, valence_score;
+        static {
+            cache_score = new float[TriangleOrder.CACHE_SIZE];
+            for(int i = 0; i < TriangleOrder.CACHE_SIZE; i++) {
+                cache_score[i] = (i < 3) ? TriangleOrder.LAST_TRIANGLE_SCORE : 
+                    (float)Math.pow(1.0f - (float)(i - 3) / (TriangleOrder.CACHE_SIZE - 3), 
+                        TriangleOrder.CACHE_DECAY_POWER);
+            }
+            valence_score = new float[TriangleOrder.MAX_VALENCE];
+            for(int i = 1; i < TriangleOrder.MAX_VALENCE; i++) {
+                valence_score[i] = TriangleOrder.VALENCE_BOOST_SCALE * 
+                    (float)Math.pow(i, -TriangleOrder.VALENCE_BOOST_POWER);
+            }
+        }
+
+        // ---------------------------------------------------------------------
+        private static float GetScore(int cache_pos, int valence) {
+            if(valence == 0) {
+                return -1.0f;
+            }
+            float score = (cache_pos < 0) ? 0.0f : cache_score[cache_pos];
+            return score + valence_score[Math.min(valence, TriangleOrder.MAX_VALENCE - 1)];
+        }
+
+        // ---------------------------------------------------------------------
+        // Number of vertices transformed when indices are drawn through FIFO 
+        // cache of given size
+        public static int GetCacheMissNum(int[] indices, int index_num, int vertex_num, 
+          int cache_size) {
+            int[] stamps = new int[vertex_num];
+            int miss_num = 0;
+            for(int i = 0; i < index_num; i++) {
+                int v = indices[i];
+                if(stamps[v] == 0 || miss_num - stamps[v] >= cache_size) {
+                    stamps[v] = ++miss_num;
+                }
+            }
+            return miss_num;
+        }
+
+        // ---------------------------------------------------------------------
+        // Returns new order of triangles, indices are not modified
+        public static int[] Optimize(int[] indices, int triangle_num, int vertex_num) {
+            // Triangles of each vertex
+            int[] valence = new int[vertex_num], 
+                  adj_begin = new int[vertex_num + 1];
+            for(int i = 0; i < triangle_num * 3; i++) {
+                adj_begin[indices[i] + 1]++;
+            }
+            for(int v = 0; v < vertex_num; v++) {
+                valence[v] = adj_begin[v + 1];
+                adj_begin[v + 1] += adj_begin[v];
+            }
+            int[] adj = new int[triangle_num * 3], fill = new int[vertex_num];
+            for(int i = 0; i < triangle_num * 3; i++) {
+                int v = indices[i];
+                adj[adj_begin[v] + fill[v]++] = i / 3;
+            }
+
+            // Initial scores
+            int[] cache_pos = new int[vertex_num];
+            float[] vertex_score = new float[vertex_num];
+            for(int v = 0; v < vertex_num; v++) {
+                cache_pos[v] = -1;
+                vertex_score[v] = TriangleOrder.GetScore(-1, valence[v]);
+            }
+            boolean[] emitted = new boolean[triangle_num];
+
+            // Emit triangles
+            int[] order = new int[triangle_num];
+            int[] cache = new int[TriangleOrder.CACHE_SIZE + 3], 
+                  new_cache = new int[TriangleOrder.CACHE_SIZE + 3];
+            int cache_num = 0, cursor = 0, best = -1;
+            for(int n = 0; n < triangle_num; n++) {
+                // Nothing in cache is usable, continue from first free triangle
+                if(best == -1) {
+                    while(emitted[cursor]) {
+                        cursor++;
+                    }
+                    best = cursor;
+                }
+                order[n] = best;
+                emitted[best] = true;
+
+                // Remove triangle from it's vertices, emitted vertices go 
+                // first to cache
+                int new_num = 0;
+                for(int i = 0; i < 3; i++) {
+                    int v = indices[best * 3 + i];
+                    int end = adj_begin[v] + valence[v];
+                    for(int a = adj_begin[v]; a < end; a++) {
+                        if(adj[a] == best) {
+                            adj[a] = adj[end - 1];
+                            break;
+                        }
+                    }
+                    valence[v]--;
+                    new_cache[new_num++] = v;
+                }
+                for(int i = 0; i < cache_num; i++) {
+                    int v = cache[i];
+                    if(v != indices[best * 3 + 0] && v != indices[best * 3 + 1] && 
+                       v != indices[best * 3 + 2]) {
+                        new_cache[new_num++] = v;
+                    }
+                }
+
+                // Update scores of vertices in cache, overflow is evicted
+                for(int i = 0; i < new_num; i++) {
+                    int v = new_cache[i];
+                    cache_pos[v] = (i < TriangleOrder.CACHE_SIZE) ? i : -1;
+                    vertex_score[v] = TriangleOrder.GetScore(cache_pos[v], valence[v]);
+                }
+
+                // Rescore triangles of cached vertices and pick best one
+                best = -1;
+                float best_score = -1.0f;
+                for(int i = 0; i < new_num; i++) {
+                    int v = new_cache[i];
+                    for(int a = adj_begin[v]; a < adj_begin[v] + valence[v]; a++) {
+                        int t = adj[a];
+                        float score = vertex_score[indices[t * 3 + 0]] + 
+                            vertex_score[indices[t * 3 + 1]] + vertex_score[indices[t * 3 + 2]];
+                        if(score > best_score) {
+                            best_score = score;
+                            best = t;
+                        }
+                    }
+                }
+
+                // Swap caches
+                int[] tmp = cache;
+                cache = new_cache;
+                new_cache = tmp;
+                cache_num = Math.min(new_num, TriangleOrder.CACHE_SIZE);
+            }
+            return order;
         }
     }
 
@@ -95,12 +440,10 @@ public class SphereUtils {
         // ---------------------------------------------------------------------
         public Material material;
         public MeshPart mesh_part;
-        public SphereTriangle.List triangles;
 
         // ---------------------------------------------------------------------
         public Surface(Material m) {
             material = m;
-            triangles = new SphereTriangle.List();
         }
     }
 }
@@ -20,32 +20,14 @@
 package com.matalok.planet;
 
 // -----------------------------------------------------------------------------
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
 
-import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.VertexAttribute;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector3;
 
 // -----------------------------------------------------------------------------
 public class SphereVertex {
-    // -------------------------------------------------------------------------
-    // Make it an array list because fast random access is needed
-    public static class List extends ArrayList<SphereVertex> {
-        // *********************************************************************
-        // STATIC
-        // *********************************************************************
-        private static final long serialVersionUID = 42424202L;
-
-        // *********************************************************************
-        // SphereVertex.List
-        // *********************************************************************
-        public List() { super(); }
-        public List(int size) { super(size); }
-    }
-
     // *************************************************************************
     // STATIC
     // *************************************************************************
@@ -53,6 +35,13 @@ public class SphereVertex {
     // Vertex might be shared by up to 6 adjacent triangles each using unique instance
     public static final int INSTANCE_NUM  = 6;
 
+    // Smooth vertex has single instance shared by all adjacent triangles
+    public static final int SMOOTH_INSTANCE_NUM = 1;
+
+    // T-junctions of adaptive sphere are closed by triangles that add up to
+    // 2 more triangles around vertex, instance mask is a byte
+    public static final int ADAPTIVE_INSTANCE_NUM = 8;
+
     // Vertex is described by 6 float attributes
     public static final int ATTRIB_POS_X  = 0;
     public static final int ATTRIB_POS_Y  = 1;
@@ -62,248 +51,478 @@ public class SphereVertex {
     public static final int ATTRIB_NORM_Z = 5;
     public static final int ATTRIB_NUM    = 6;
 
-     // Vertex total size (size of all instances) is 36 floats
+    // Optional 7th attribute holds packed surface color
+    public static final int ATTRIB_COLOR  = 6;
+    public static final int COLOR_ATTRIB_NUM = 7;
+
+     // Vertex total size (size of all instances) is 36 floats for flat 
+     // shading, size of vertex in store depends on shading and colors and
+     // is returned by Store.GetVertexSize()
     public static final int TOTAL_SIZE = INSTANCE_NUM * ATTRIB_NUM;
 
+    // Packed store layout
+    public static final int POS_SIZE      = 3;  // x, y, z
+    public static final int NORM_SIZE     = 3;  // x, y, z
+    public static final int GEO_SIZE      = 2;  // lon, lat (radians)
+    public static final int NO_LINK       = -1;
+
     // -------------------------------------------------------------------------
-    private static int inst_num = 0;
+    private static final float ARRAY_GROWTH_FACTOR = 1.6f;
     private static VertexAttribute[] vertex_attrib = new VertexAttribute[] {
         VertexAttribute.Position(),
         VertexAttribute.Normal()
     };
+    private static VertexAttribute[] color_vertex_attrib = new VertexAttribute[] {
+        VertexAttribute.Position(),
+        VertexAttribute.Normal(),
+        VertexAttribute.ColorPacked()
+    };
 
     // -------------------------------------------------------------------------
     public static VertexAttribute[] GetVertexAttributes() {
         return vertex_attrib;
     }
 
+    // -------------------------------------------------------------------------
+    public static VertexAttribute[] GetVertexAttributes(boolean colored) {
+        return (colored) ? color_vertex_attrib : vertex_attrib;
+    }
+
+    // -------------------------------------------------------------------------
+    public static int GetAttribNum(boolean colored) {
+        return (colored) ? SphereVertex.COLOR_ATTRIB_NUM : SphereVertex.ATTRIB_NUM;
+    }
+
+    // -------------------------------------------------------------------------
+    // Number of vertices in icosphere after given number of refinements
+    public static int GetVertexNum(int refine_lvl) {
+        return 10 * (1 << (2 * refine_lvl)) + 2;
+    }
+
+    // -------------------------------------------------------------------------
+    // Number of vertices in single icosphere segment after given number of
+    // refinements (each segment holds own copy of border vertices)
+    public static int GetSegmentVertexNum(int refine_lvl) {
+        int side = (1 << refine_lvl) + 1;
+        return side * (side + 1) / 2;
+    }
+
     // *************************************************************************
-    // SphereVertex.SegmentEntry
+    // SphereVertex.Store
     // *************************************************************************
-    private static class SegmentEntry {
+    // Vertices are kept in flat primitive arrays indexed by vertex id. Vertex
+    // might be linked with several segments, each link owns a local vertex id
+    // inside segment and a bitmask of used instances. Links of a vertex are
+    // chained via 'm_link_next'.
+    public static class Store {
         // ---------------------------------------------------------------------
-        public SphereSegment segment;
-        public LinkedList<Integer> free_inst;
-        public int instance_id;
-        public int attribute_offset;
+        public int vertex_num;
+        public float[] pos, norm, geo, height;
 
         // ---------------------------------------------------------------------
-        public SegmentEntry(SphereSegment s) {
-            // Initially all instances are free
-            free_inst = new LinkedList<Integer>();
-            for(int i = 0; i < SphereVertex.INSTANCE_NUM; i++) {
-                free_inst.add(i);
-            }
+        private SphereSegment[] m_segments;
+        private int m_link_num;
+        private int[] m_link_head;          // [vertex] -> first link
+        private int[] m_link_next;          // [link] -> next link of same vertex
+        private int[] m_link_segment;       // [link] -> segment index
+        private int[] m_link_instance;      // [link] -> vertex id inside segment
+        private byte[] m_link_used;         // [link] -> bitmask of used instances
+        private int m_instance_mask;        // All instances used
+        private int m_instance_num;
+        private int m_attrib_num;
+        private float[] m_normal_sum;       // [vertex * NORM_SIZE] -> smooth normal
+        private float[] m_tex_coords;       // [vertex * 2] -> texture coordinates
 
-            // Linked segment
-            segment = s;
+        // ---------------------------------------------------------------------
+        public Store(int vertex_num, int link_num, SphereSegment[] segments, 
+          boolean smooth, boolean colored) {
+            this(vertex_num, link_num, segments, (smooth) ? 
+                SphereVertex.SMOOTH_INSTANCE_NUM : SphereVertex.INSTANCE_NUM, colored);
+        }
 
-            // Id of selected instance
-            instance_id = s.AllocVertex();
+        // ---------------------------------------------------------------------
+        public Store(int vertex_num, int link_num, SphereSegment[] segments, 
+          int instance_num, boolean colored) {
+            m_segments = segments;
+            m_instance_num = instance_num;
+            m_attrib_num = SphereVertex.GetAttribNum(colored);
+
+            // Vertices
+            pos = new float[vertex_num * SphereVertex.POS_SIZE];
+            norm = new float[vertex_num * SphereVertex.NORM_SIZE];
+            geo = new float[vertex_num * SphereVertex.GEO_SIZE];
+            height = new float[vertex_num];
+            m_link_head = new int[vertex_num];
+
+            // Links
+            m_link_next = new int[link_num];
+            m_link_segment = new int[link_num];
+            m_link_instance = new int[link_num];
+            m_link_used = new byte[link_num];
+            m_instance_mask = (1 << m_instance_num) - 1;
+        }
 
-            // Offset where first instance starts in segment's vertex array
-            attribute_offset = instance_id * SphereVertex.TOTAL_SIZE;
+        // ---------------------------------------------------------------------
+        public boolean IsSmooth() {
+            return m_instance_num == SphereVertex.SMOOTH_INSTANCE_NUM;
         }
 
         // ---------------------------------------------------------------------
-        public int Alloc() {
-            Utils.Assert(free_inst.size() > 0, 
-                "Failed to allocate vertex instance, vertex limit reached");
-            return free_inst.pop();
+        public int GetInstanceNum() {
+            return m_instance_num;
         }
 
         // ---------------------------------------------------------------------
-        public void Free(int inst) {
-            Utils.Assert(inst >= 0 && inst < SphereVertex.INSTANCE_NUM, 
-                "Failed to free vertex instance, wrong instance :: inst=%d", inst);
-            for(Integer i : free_inst) {
-                Utils.Assert(i != inst, 
-                    "Failed to free vertex instance, instance already in free list :: inst=%d", inst);
+        public boolean IsColored() {
+            return m_attrib_num == SphereVertex.COLOR_ATTRIB_NUM;
+        }
+
+        // ---------------------------------------------------------------------
+        // Number of floats taken by single vertex instance
+        public int GetAttribNum() {
+            return m_attrib_num;
+        }
+
+        // ---------------------------------------------------------------------
+        // Number of floats taken by all instances of a vertex in segment's 
+        // vertex array
+        public int GetVertexSize() {
+            return m_instance_num * m_attrib_num;
+        }
+
+        // ---------------------------------------------------------------------
+        private void GrowVertices() {
+            int size = (int)(height.length * SphereVertex.ARRAY_GROWTH_FACTOR) + 1;
+            Log.Debug("Resizing sphere vertex store :: old_size=%d new_size=%d",
+                height.length, size);
+
+            pos = Arrays.copyOf(pos, size * SphereVertex.POS_SIZE);
+            norm = Arrays.copyOf(norm, size * SphereVertex.NORM_SIZE);
+            geo = Arrays.copyOf(geo, size * SphereVertex.GEO_SIZE);
+            height = Arrays.copyOf(height, size);
+            m_link_head = Arrays.copyOf(m_link_head, size);
+        }
+
+        // ---------------------------------------------------------------------
+        private void GrowLinks() {
+            int size = (int)(m_link_next.length * SphereVertex.ARRAY_GROWTH_FACTOR) + 1;
+            Log.Debug("Resizing sphere vertex links :: old_size=%d new_size=%d",
+                m_link_next.length, size);
+
+            m_link_next = Arrays.copyOf(m_link_next, size);
+            m_link_segment = Arrays.copyOf(m_link_segment, size);
+            m_link_instance = Arrays.copyOf(m_link_instance, size);
+            m_link_used = Arrays.copyOf(m_link_used, size);
+        }
+
+        // ---------------------------------------------------------------------
+        public int Reserve() {
+            if(vertex_num == height.length) {
+                GrowVertices();
             }
-            free_inst.add(inst);
+            int id = vertex_num++;
+
+            // Vertex is not linked with any segment
+            m_link_head[id] = SphereVertex.NO_LINK;
+            return id;
         }
 
         // ---------------------------------------------------------------------
-        public void Finalize() {
-            // List of free vertex instances will not be needed anymore
-            free_inst.clear();
-            free_inst = null;
+        public int Add(float x, float y, float z) {
+            return Init(Reserve(), x, y, z);
         }
-    }
 
-    // *************************************************************************
-    // SphereVertex
-    // *************************************************************************
-    public int id;
-    public Vector3 pos, norm;
-    public Vector3 geo_rad, geo_deg, geo_unit;
-    public float height;
-    public boolean is_normal;
+        // ---------------------------------------------------------------------
+        public int Init(int id, float x, float y, float z) {
+            // Distance from center
+            float h = (float)Math.sqrt(x * x + y * y + z * z);
+            height[id] = h;
+
+            // Normal vertex and position are initially equal
+            int offset = id * SphereVertex.POS_SIZE;
+            norm[offset + 0] = pos[offset + 0] = x / h;
+            norm[offset + 1] = pos[offset + 1] = y / h;
+            norm[offset + 2] = pos[offset + 2] = z / h;
+
+            // Geographical coordinates in radiants with normalized longitude
+            offset = id * SphereVertex.GEO_SIZE;
+            geo[offset + 0] = UtilsAngle.Normalize(MathUtils.atan2(z, x));
+            geo[offset + 1] = MathUtils.atan2(y, (float)Math.sqrt(x * x + z * z));
+            return id;
+        }
 
-   // -------------------------------------------------------------------------
-    private LinkedList<SphereVertex.SegmentEntry> m_segments;
+        // ---------------------------------------------------------------------
+        public int AddMiddle(int v0, int v1) {
+            return InitMiddle(Reserve(), v0, v1);
+        }
 
-    // -------------------------------------------------------------------------
-    public SphereVertex(Vector3 v) {
-        this(v.x, v.y, v.z);
-    }
+        // ---------------------------------------------------------------------
+        public int InitMiddle(int id, int v0, int v1) {
+            int o0 = v0 * SphereVertex.NORM_SIZE,
+                o1 = v1 * SphereVertex.NORM_SIZE;
+            return Init(id,
+                (norm[o0 + 0] + norm[o1 + 0]) / 2.0f,
+                (norm[o0 + 1] + norm[o1 + 1]) / 2.0f,
+                (norm[o0 + 2] + norm[o1 + 2]) / 2.0f);
+        }
 
-    // -------------------------------------------------------------------------
-    public SphereVertex(float x, float y, float z) {
-        // Id
-        id = SphereVertex.inst_num++;
+        // ---------------------------------------------------------------------
+        public Vector3 GetPos(int v, Vector3 dest) {
+            int offset = v * SphereVertex.POS_SIZE;
+            return dest.set(pos[offset + 0], pos[offset + 1], pos[offset + 2]);
+        }
 
-        // Distance from center
-        height = (float)Math.sqrt(x * x + y * y + z * z);
-        is_normal = true;
+        // ---------------------------------------------------------------------
+        public Vector3 GetNorm(int v, Vector3 dest) {
+            int offset = v * SphereVertex.NORM_SIZE;
+            return dest.set(norm[offset + 0], norm[offset + 1], norm[offset + 2]);
+        }
 
-        // Normal vertex and position are initially equal
-        norm = new Vector3(x / height, y / height, z / height);
-        pos = new Vector3(norm);
+        // ---------------------------------------------------------------------
+        public float GetLon(int v) {
+            return geo[v * SphereVertex.GEO_SIZE + 0];
+        }
 
-        // Geographical coordinates in radiants
-        geo_rad = UtilsGeo.CartesianToGeo(new Vector3(), x, y, z);
+        // ---------------------------------------------------------------------
+        public float GetLat(int v) {
+            return geo[v * SphereVertex.GEO_SIZE + 1];
+        }
 
-        // Normalize longitude
-        geo_rad.x = UtilsAngle.Normalize(UtilsGeo.GetLon(geo_rad));
+        // ---------------------------------------------------------------------
+        private int GetLink(int v, int segment_idx) {
+            for(int l = m_link_head[v]; l != SphereVertex.NO_LINK; l = m_link_next[l]) {
+                if(m_link_segment[l] == segment_idx) {
+                    return l;
+                }
+            }
+            return SphereVertex.NO_LINK;
+        }
 
-        // Make unit-size geographical coordinates
-        geo_unit = new Vector3(geo_rad);
-        geo_unit.x /= MathUtils.PI2;                // Longitude
-        geo_unit.y /= (MathUtils.PI / 2);           // Latitude
+        // ---------------------------------------------------------------------
+        // Fills segment indices and local vertex ids of all vertex links, 
+        // returns number of links
+        public int GetLinks(int v, int[] segments, int[] locals) {
+            int num = 0;
+            for(int l = m_link_head[v]; l != SphereVertex.NO_LINK; l = m_link_next[l]) {
+                segments[num] = m_link_segment[l];
+                locals[num++] = m_link_instance[l];
+            }
+            return num;
+        }
 
-        // Geographical coordinates in degrees
-        geo_deg = new Vector3(geo_rad).scl(MathUtils.radiansToDegrees);
+        // ---------------------------------------------------------------------
+        public boolean IsShared(int v) {
+            int l = m_link_head[v];
+            return l != SphereVertex.NO_LINK && m_link_next[l] != SphereVertex.NO_LINK;
+        }
 
-        // Array of linked segments
-        m_segments = new LinkedList<SphereVertex.SegmentEntry>();
-    }
+        // ---------------------------------------------------------------------
+        public int LinkSegment(int v, SphereSegment s) {
+            if(GetLink(v, s.idx) != SphereVertex.NO_LINK) {
+                return v; // Segment is already linked
+            }
 
-    // -------------------------------------------------------------------------
-    public SphereVertex LinkSegment(SphereSegment s) {
-        ListIterator<SegmentEntry> it = m_segments.listIterator();
-        while(it.hasNext()) {
-            if(it.next().segment.equals(s)) {
-                return this; // Segment is already linked
+            // Allocate new link
+            if(m_link_num == m_link_next.length) {
+                GrowLinks();
             }
+            int l = m_link_num++;
+
+            // Id of selected instance
+            m_link_segment[l] = s.idx;
+            m_link_instance[l] = s.AllocVertex();
+
+            // Initially all instances are free
+            m_link_used[l] = 0;
+
+            // Append to vertex links
+            m_link_next[l] = m_link_head[v];
+            m_link_head[v] = l;
+            return v;
         }
 
-        // Link
-        m_segments.add(new SphereVertex.SegmentEntry(s));
-        return this;
-    }
+        // ---------------------------------------------------------------------
+        public int Alloc(int v, SphereSegment s) {
+            if(IsSmooth()) {
+                return 0; // Single instance is shared
+            }
 
-    // -------------------------------------------------------------------------
-    public void Finalize() {
-        for(SphereVertex.SegmentEntry se : m_segments) {
-            if(se != null) {
-                se.Finalize();
+            // Asserts are guarded, arguments would be boxed for every
+            // triangle corner
+            int l = GetLink(v, s.idx);
+            if(l == SphereVertex.NO_LINK) {
+                Utils.Assert(false,
+                    "Failed to allocate vertex instance, unknown segment :: vertex=%d segment=%d",
+                    v, s.id);
             }
+
+            // Lowest free instance
+            int free = ~m_link_used[l] & m_instance_mask;
+            if(free == 0) {
+                Utils.Assert(false,
+                    "Failed to allocate vertex instance, vertex limit reached");
+            }
+            int inst = Integer.numberOfTrailingZeros(free);
+            m_link_used[l] |= 1 << inst;
+            return inst;
         }
-    }
 
-    // -------------------------------------------------------------------------
-    private SphereVertex.SegmentEntry GetSegmentEntry(SphereSegment s) {
-        for(SphereVertex.SegmentEntry se : m_segments) {
-            if(se.segment.equals(s)) {
-                return se;
+        // ---------------------------------------------------------------------
+        public void Free(int v, SphereSegment s, int inst) {
+            if(IsSmooth()) {
+                return; // Single instance is shared
+            }
+
+            int l = GetLink(v, s.idx);
+            if(l == SphereVertex.NO_LINK) {
+                Utils.Assert(false,
+                    "Failed to free vertex instance, unknown segment :: inst=%d vertex=%d segment=%d",
+                    inst, v, s.id);
+            }
+            if(inst < 0 || inst >= m_instance_num) {
+                Utils.Assert(false,
+                    "Failed to free vertex instance, wrong instance :: inst=%d", inst);
+            }
+            if((m_link_used[l] & (1 << inst)) == 0) {
+                Utils.Assert(false,
+                    "Failed to free vertex instance, instance is not used :: inst=%d", inst);
             }
+            m_link_used[l] &= ~(1 << inst);
         }
-        return null;
-    }
 
-    // -------------------------------------------------------------------------
-    public int Alloc(SphereSegment s) {
-        SphereVertex.SegmentEntry se = GetSegmentEntry(s);
-        Utils.Assert(se != null, 
-            "Failed to allocate vertex instance, unknown segment :: vertex=%d segment=%d", 
-            id, s.id);
-        return se.Alloc();
-    }
+        // ---------------------------------------------------------------------
+        public void Finalize() {
+            // Masks of used vertex instances will not be needed anymore
+            m_link_used = null;
+        }
 
-    // -------------------------------------------------------------------------
-    public void Free(SphereSegment s, int inst) {
-        SphereVertex.SegmentEntry se = GetSegmentEntry(s);
-        Utils.Assert(se != null, 
-            "Failed to free vertex instance, unknown segment :: inst=%d vertex=%d segment=%d", 
-            inst, id, s.id);
-        se.Free(inst);
-    }
+        // ---------------------------------------------------------------------
+        public void Scale(int v, float value) {
+            height[v] = value;
+            int offset = v * SphereVertex.POS_SIZE;
+            pos[offset + 0] = norm[offset + 0] * value;
+            pos[offset + 1] = norm[offset + 1] * value;
+            pos[offset + 2] = norm[offset + 2] * value;
+        }
 
-    // -------------------------------------------------------------------------
-    public SphereVertex Scale(float value) {
-        height = value;
-        is_normal = false;
-        pos.set(norm).scl(value);
-        return this;
-    }
+        // ---------------------------------------------------------------------
+        public void Reset(int v) {
+            Scale(v, 1.0f);
+        }
 
-    // -------------------------------------------------------------------------
-    public SphereVertex Reset() {
-        Scale(1.0f);
-        is_normal = true;
-        return this;
-    }
+        // ---------------------------------------------------------------------
+        public void WritePosition(int v) {
+            int p = v * SphereVertex.POS_SIZE;
+            float x = pos[p + 0], y = pos[p + 1], z = pos[p + 2];
+
+            // All vertex instances in all segments have same position
+            for(int l = m_link_head[v]; l != SphereVertex.NO_LINK; l = m_link_next[l]) {
+                SphereSegment s = m_segments[m_link_segment[l]];
+                float[] va = s.GetVertexArray();
+                int begin = m_link_instance[l] * GetVertexSize();
+                for(int offset = begin;
+                        offset < begin + GetVertexSize();
+                        offset += m_attrib_num) {
+                    va[offset + SphereVertex.ATTRIB_POS_X] = x;
+                    va[offset + SphereVertex.ATTRIB_POS_Y] = y;
+                    va[offset + SphereVertex.ATTRIB_POS_Z] = z;
+                }
+
+                // Vertex instances become dirty
+                s.SetVertexDirty(begin, begin + GetVertexSize());
+            }
+        }
 
-    // -------------------------------------------------------------------------
-    public void WritePosition() {
-        // All vertex instances in all segments have same position
-        for(SphereVertex.SegmentEntry se : m_segments) {
-            float[] va = se.segment.GetVertexArray();
-            for(int offset = se.attribute_offset; 
-                    offset < se.attribute_offset + SphereVertex.TOTAL_SIZE; 
-                    offset += SphereVertex.ATTRIB_NUM) {
-                va[offset + SphereVertex.ATTRIB_POS_X] = pos.x;
-                va[offset + SphereVertex.ATTRIB_POS_Y] = pos.y;
-                va[offset + SphereVertex.ATTRIB_POS_Z] = pos.z;
+        // ---------------------------------------------------------------------
+        public void WriteNormal(int v, SphereSegment s, int inst, Vector3 normal) {
+            // Get offset of vertex instance in segment's vertex array
+            int l = GetLink(v, s.idx);
+            if(l == SphereVertex.NO_LINK) {
+                Utils.Assert(false,
+                    "Failed to write vertex normal, unknown segment :: vertex=%d segment=%d inst=%d",
+                    v, s.id, inst);
             }
+            int offset = m_link_instance[l] * GetVertexSize() +
+                inst * m_attrib_num;
+
+            // Write normal
+            float[] va = s.GetVertexArray();
+            va[offset + SphereVertex.ATTRIB_NORM_X] = normal.x;
+            va[offset + SphereVertex.ATTRIB_NORM_Y] = normal.y;
+            va[offset + SphereVertex.ATTRIB_NORM_Z] = normal.z;
 
-            // Vertex array becomes dirty
-            se.segment.m_is_dirty_vertex = true;
+            // Vertex instance becomes dirty
+            s.SetVertexDirty(offset, offset + m_attrib_num);
         }
-    }
 
-    // -------------------------------------------------------------------------
-    public void WriteNormal(SphereSegment s, int inst, Vector3 normal) {
-        // Get offset of vertex instance in segmetn's vertex array
-        SphereVertex.SegmentEntry se = GetSegmentEntry(s);
-        Utils.Assert(se != null, 
-            "Failed to write vertex normal, unknown segment :: vertex=%d segment=%d inst=%d", 
-            id, s.id, inst);
-        int offset = se.attribute_offset + inst * SphereVertex.ATTRIB_NUM;
-
-        // Write normal
-        float[] va = s.GetVertexArray();
-        va[offset + SphereVertex.ATTRIB_NORM_X] = normal.x;
-        va[offset + SphereVertex.ATTRIB_NORM_Y] = normal.y;
-        va[offset + SphereVertex.ATTRIB_NORM_Z] = normal.z;
-
-        // Vertex array becomes dirty
-        s.m_is_dirty_vertex = true;
-    }
+        // ---------------------------------------------------------------------
+        public void AddNormal(int v, Vector3 normal) {
+            if(m_normal_sum == null) {
+                m_normal_sum = new float[vertex_num * SphereVertex.NORM_SIZE];
+            }
 
-    // -------------------------------------------------------------------------
-    public int GetInstanceId(SphereSegment s, int inst) {
-        SphereVertex.SegmentEntry se = GetSegmentEntry(s);
-        Utils.Assert(se != null, 
-            "Failed to get instance id, unknown segment :: vertex=%d segment=%d inst=%d", 
-            id, s.id, inst);
-        return se.instance_id;
-    }
+            int offset = v * SphereVertex.NORM_SIZE;
+            m_normal_sum[offset + 0] += normal.x;
+            m_normal_sum[offset + 1] += normal.y;
+            m_normal_sum[offset + 2] += normal.z;
+        }
 
-    // -------------------------------------------------------------------------
-    public int GetRgba(Pixmap map) {
-        // Map geographical coordinates to texture coordinates
-        float x = 1.0f - UtilsGeo.GetLon(geo_unit);
-        float y = 0.5f - UtilsGeo.GetLat(geo_unit) / 2.0f;
-
-        // Map pixel
-        int pos_x = (int)(x * map.getWidth());
-        int pos_y = (int)(y * map.getHeight());
-
-        // Return pixel color
-        if(pos_x >= map.getWidth()) pos_x = map.getWidth() - 1;
-        if(pos_y >= map.getHeight()) pos_y = map.getHeight() - 1;
-        return map.getPixel(pos_x, pos_y);
+        // ---------------------------------------------------------------------
+        // Writes average normal of adjacent triangles to all segments
+        public void WriteSmoothNormals() {
+            if(m_normal_sum == null) {
+                return;
+            }
+
+            Vector3 normal = new Vector3();
+            for(int v = 0; v < vertex_num; v++) {
+                int offset = v * SphereVertex.NORM_SIZE;
+                normal.set(m_normal_sum[offset + 0], 
+                    m_normal_sum[offset + 1], m_normal_sum[offset + 2]).nor();
+                for(int l = m_link_head[v]; l != SphereVertex.NO_LINK; l = m_link_next[l]) {
+                    WriteNormal(v, m_segments[m_link_segment[l]], 0, normal);
+                }
+            }
+
+            // Sums are not needed anymore
+            m_normal_sum = null;
+        }
+
+        // ---------------------------------------------------------------------
+        // Moves vertices to new local ids, remaps are indexed by segment and
+        // are null for segments that were not reordered
+        public void RemapInstanceIds(int[][] remaps) {
+            for(int l = 0; l < m_link_num; l++) {
+                int[] remap = remaps[m_link_segment[l]];
+                if(remap != null) {
+                    m_link_instance[l] = remap[m_link_instance[l]];
+                }
+            }
+        }
+
+        // ---------------------------------------------------------------------
+        public int GetInstanceId(int v, SphereSegment s, int inst) {
+            int l = GetLink(v, s.idx);
+            if(l == SphereVertex.NO_LINK) {
+                Utils.Assert(false,
+                    "Failed to get instance id, unknown segment :: vertex=%d segment=%d inst=%d",
+                    v, s.id, inst);
+            }
+            return m_link_instance[l];
+        }
+
+        // ---------------------------------------------------------------------
+        // Texture coordinates of all vertices as [u, v] pairs, geographical
+        // coordinates do not change so they are mapped only once
+        public float[] GetTexCoords() {
+            if(m_tex_coords == null || m_tex_coords.length != vertex_num * 2) {
+                m_tex_coords = new float[vertex_num * 2];
+                for(int v = 0; v < vertex_num; v++) {
+                    m_tex_coords[v * 2 + 0] = 1.0f - GetLon(v) / MathUtils.PI2;
+                    m_tex_coords[v * 2 + 1] = 0.5f - GetLat(v) / MathUtils.PI;
+                }
+            }
+            return m_tex_coords;
+        }
     }
 }
@@ -40,12 +40,26 @@ public class Tube
     // Tube
     // *************************************************************************
     private HashMap<PathSegment, TubeSegment> m_segments_active, m_segments_old;
+    private LinkedList<TubeSegment> m_segments_expired;
 
     // -------------------------------------------------------------------------
     public Tube() {
         super("tube");
         m_segments_active = new HashMap<PathSegment, TubeSegment>();
         m_segments_old = new HashMap<PathSegment, TubeSegment>();
+        m_segments_expired = new LinkedList<TubeSegment>();
+
+        // Segment geometry is built on worker thread, GPU models are built 
+        // and released by render thread
+        SetPrepareAccess(true, new Interfaces.ICommonObject[] {
+            Main.p.engine.ship_ctrl, Main.p.engine.path}, null);
+    }
+
+    // -------------------------------------------------------------------------
+    private void DisposeSegment(TubeSegment seg) {
+        if(seg.m_model_inst != null) {
+            seg.dispose();
+        }
     }
 
     // *************************************************************************
@@ -82,17 +96,18 @@ public class Tube
                 } else {
                     tube_seg = new TubeSegment();
                     tube_seg.BuildGeometry(s);
-                    tube_seg.BuildDynamicModel(Tube.VERTEX_ATTRIB);
+                    if(Main.p.cfg.renderer_pack_vertices) {
+                        tube_seg.SetVertexPack(new VertexPack(Tube.VERTEX_ATTRIB)
+                            .FitBounds(tube_seg.GetVertexArray(), null, 0.0f));
+                    }
                 }
 
                 // Fill active map
                 m_segments_active.put(s, tube_seg);
             }
 
-            // Dispose non-active segments and cleanup old segment map 
-            for(TubeSegment seg : m_segments_old.values()) {
-                seg.dispose();
-            }
+            // Non-active segments are disposed by render, cleanup old segment map 
+            m_segments_expired.addAll(m_segments_old.values());
             m_segments_old.clear();
         }
         return true;
@@ -101,8 +116,18 @@ public class Tube
     // -------------------------------------------------------------------------
     @Override public boolean OnRender(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_PRE) {
+            // Release expired segments
+            for(TubeSegment seg : m_segments_expired) {
+                DisposeSegment(seg);
+            }
+            m_segments_expired.clear();
+
+            // Build models of new segments
             List<RenderableProvider> renderables = Renderer.GetArgsRenderables(args);
             for(TubeSegment seg : m_segments_active.values()) {
+                if(seg.m_model_inst == null) {
+                    seg.BuildDynamicModel(Tube.VERTEX_ATTRIB);
+                }
                 renderables.add(seg.m_model_inst);
             }
         }
@@ -113,8 +138,12 @@ public class Tube
     @Override public boolean OnDispose(int stage, Object[] args) {
         if(stage == CommonObject.STAGE_POST) {
             for(TubeSegment seg : m_segments_active.values()) {
-                seg.dispose();
+                DisposeSegment(seg);
+            }
+            for(TubeSegment seg : m_segments_expired) {
+                DisposeSegment(seg);
             }
+            m_segments_expired.clear();
         }
         return true;
     }
@@ -92,11 +92,12 @@ public class TubeSegment
         // Fill vertex array
         int tube_idx = 0, path_idx = 0;
         Vector3 step_pos = new Vector3();
+        Quaternion tmp0 = new Quaternion(), tmp1 = new Quaternion();
 
         for(int i = 0; i < step_num; i++) {
             Quaternion step_rot = path_segment.steps[i].rot;
             for(int j = 0; j < sector_angles.length; j++) {
-                step_pos.set(sector_template[j]).mul(step_rot);
+                UtilsAngle.Rotate(step_pos.set(sector_template[j]), step_rot, tmp0, tmp1);
                 tube_va[tube_idx++] = step_pos.x + path_va[path_idx + 0];
                 tube_va[tube_idx++] = step_pos.y + path_va[path_idx + 1];
                 tube_va[tube_idx++] = step_pos.z + path_va[path_idx + 2];
@@ -118,12 +118,30 @@ public class Utils {
     }
 
     // -------------------------------------------------------------------------
+    // Helpers that return shared static vector are for render thread only, 
+    // other threads pass their own destination
     private static Vector3 normal = new Vector3();
-    private static Vector3 normal_tmp = new Vector3();
     public static Vector3 GetTriangleNormal(Vector3 v0, Vector3 v1, Vector3 v2) {
-        normal.set(v1.x - v0.x, v1.y - v0.y, v1.z - v0.z);
-        normal_tmp.set(v2.x - v0.x, v2.y - v0.y, v2.z - v0.z);
-        return normal.crs(normal_tmp).nor();
+        return Utils.GetTriangleNormal(normal, v0, v1, v2);
+    }
+
+    // -------------------------------------------------------------------------
+    public static Vector3 GetTriangleNormal(Vector3 dest, Vector3 v0, Vector3 v1, 
+      Vector3 v2) {
+        float ax = v1.x - v0.x, ay = v1.y - v0.y, az = v1.z - v0.z,
+              bx = v2.x - v0.x, by = v2.y - v0.y, bz = v2.z - v0.z;
+        return dest.set(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx).nor();
+    }
+
+    // -------------------------------------------------------------------------
+    // Corners are read from flat array of positions at given offsets
+    public static Vector3 GetTriangleNormal(Vector3 dest, float[] pos, int o0, 
+      int o1, int o2) {
+        float ax = pos[o1 + 0] - pos[o0 + 0], ay = pos[o1 + 1] - pos[o0 + 1], 
+              az = pos[o1 + 2] - pos[o0 + 2],
+              bx = pos[o2 + 0] - pos[o0 + 0], by = pos[o2 + 1] - pos[o0 + 1], 
+              bz = pos[o2 + 2] - pos[o0 + 2];
+        return dest.set(ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx).nor();
     }
 
     // -------------------------------------------------------------------------
@@ -137,7 +155,13 @@ public class Utils {
 
     // -------------------------------------------------------------------------
     public static Vector3 GetMiddle(Vector3 v0, Vector3 v1, Vector3 v2) {
-        return middle.set(
+        return Utils.GetMiddle(middle, v0, v1, v2);
+    }
+
+    // -------------------------------------------------------------------------
+    public static Vector3 GetMiddle(Vector3 dest, Vector3 v0, Vector3 v1, 
+      Vector3 v2) {
+        return dest.set(
             (v0.x + v1.x + v2.x) / 3.0f, 
             (v0.y + v1.y + v2.y) / 3.0f, 
             (v0.z + v1.z + v2.z) / 3.0f);
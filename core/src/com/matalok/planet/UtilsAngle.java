@@ -69,6 +69,15 @@ public class UtilsAngle {
         return q.setEulerAnglesRad(y, p, r);
     }
 
+    // -------------------------------------------------------------------------
+    // Same as Vector3.mul(Quaternion) but with temporaries of caller instead of
+    // static ones, can be used by worker threads
+    public static Vector3 Rotate(Vector3 v, Quaternion q, Quaternion tmp0, Quaternion tmp1) {
+        tmp0.set(q).conjugate();
+        tmp0.mulLeft(tmp1.set(v.x, v.y, v.z, 0.0f)).mulLeft(q);
+        return v.set(tmp0.x, tmp0.y, tmp0.z);
+    }
+
     // -------------------------------------------------------------------------
     public static float GetRotYaw(Vector3 v) { return v.y; }
     public static float GetRotPitch(Vector3 v) { return v.x; }
@@ -0,0 +1,256 @@
+/*
+ * Planet
+ * Copyright (C) 2018 Alex Fomins
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+
+// -----------------------------------------------------------------------------
+package com.matalok.planet;
+
+// -----------------------------------------------------------------------------
+import java.nio.ByteOrder;
+
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+
+// -----------------------------------------------------------------------------
+// Compact GPU vertex format. CPU keeps float vertex array and packs it before
+// upload:
+//  *** position - 4 normalized shorts relative to mesh center (8 bytes)
+//  *** normal   - 4 normalized bytes (4 bytes)
+//  *** color    - packed color is copied as is (4 bytes)
+// Packed values are stored in float array as raw bits, model instance
+// transform restores original position.
+public class VertexPack {
+    // *************************************************************************
+    // STATIC
+    // *************************************************************************
+    public static final float SHORT_MAX = 32767.0f;
+    public static final float BYTE_MAX  = 127.0f;
+
+    // -------------------------------------------------------------------------
+    private static final boolean is_little_endian =
+        (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+    // -------------------------------------------------------------------------
+    public static VertexAttribute Position() {
+        return new VertexAttribute(Usage.Position, 4, GL20.GL_SHORT, true,
+            ShaderProgram.POSITION_ATTRIBUTE);
+    }
+
+    // -------------------------------------------------------------------------
+    public static VertexAttribute Normal() {
+        return new VertexAttribute(Usage.Normal, 4, GL20.GL_BYTE, true,
+            ShaderProgram.NORMAL_ATTRIBUTE);
+    }
+
+    // -------------------------------------------------------------------------
+    // First value goes first in memory
+    public static float PackShorts(int s0, int s1) {
+        int bits = (VertexPack.is_little_endian) ?
+            (s0 & 0xFFFF) | (s1 << 16) : (s1 & 0xFFFF) | (s0 << 16);
+        return Float.intBitsToFloat(bits);
+    }
+
+    // -------------------------------------------------------------------------
+    public static int UnpackShort(float value, int idx) {
+        int bits = Float.floatToRawIntBits(value);
+        int shift = ((idx == 0) == VertexPack.is_little_endian) ? 0 : 16;
+        return (short)(bits >> shift);
+    }
+
+    // -------------------------------------------------------------------------
+    public static float PackBytes(int b0, int b1, int b2, int b3) {
+        int bits = (VertexPack.is_little_endian) ?
+            (b0 & 0xFF) | ((b1 & 0xFF) << 8) | ((b2 & 0xFF) << 16) | (b3 << 24) :
+            (b3 & 0xFF) | ((b2 & 0xFF) << 8) | ((b1 & 0xFF) << 16) | (b0 << 24);
+        return Float.intBitsToFloat(bits);
+    }
+
+    // -------------------------------------------------------------------------
+    public static int UnpackByte(float value, int idx) {
+        int bits = Float.floatToRawIntBits(value);
+        int shift = ((VertexPack.is_little_endian) ? idx : 3 - idx) * 8;
+        return (byte)(bits >> shift);
+    }
+
+    // -------------------------------------------------------------------------
+    private static int Quantize(float value, float max) {
+        int q = Math.round(value * max);
+        return (q > max) ? (int)max : (q < -max) ? -(int)max : q;
+    }
+
+    // *************************************************************************
+    // VertexPack
+    // *************************************************************************
+    public VertexAttribute[] attributes;
+    public int attrib_num;              // Floats per packed vertex
+    public Vector3 center;
+    public float extent;
+
+    // -------------------------------------------------------------------------
+    private int m_src_attrib_num;
+    private int m_src_pos_offset;
+    private int m_src_norm_offset;
+    private int m_src_color_offset;
+
+    // -------------------------------------------------------------------------
+    public VertexPack(VertexAttribute[] src_attrib) {
+        // Find position and normal in source float layout
+        m_src_pos_offset = m_src_norm_offset = m_src_color_offset = -1;
+        m_src_attrib_num = 0;
+        for(VertexAttribute a : src_attrib) {
+            if(a.usage == Usage.Position) {
+                m_src_pos_offset = m_src_attrib_num;
+            } else if(a.usage == Usage.Normal) {
+                m_src_norm_offset = m_src_attrib_num;
+            } else if(a.usage == Usage.ColorPacked) {
+                m_src_color_offset = m_src_attrib_num;
+            } else {
+                Utils.Assert(false, "Failed to create vertex pack, unsupported attribute :: alias=%s",
+                    a.alias);
+            }
+            m_src_attrib_num += a.getSizeInBytes() / 4;
+        }
+        Utils.Assert(m_src_pos_offset != -1, "Failed to create vertex pack, no position");
+
+        // Packed layout
+        Utils.Assert(m_src_color_offset == -1 || m_src_norm_offset != -1,
+            "Failed to create vertex pack, color without normal");
+        if(m_src_norm_offset == -1) {
+            attributes = new VertexAttribute[] { VertexPack.Position() };
+            attrib_num = 2;
+        } else if(m_src_color_offset == -1) {
+            attributes = new VertexAttribute[] { VertexPack.Position(), VertexPack.Normal() };
+            attrib_num = 3;
+        } else {
+            attributes = new VertexAttribute[] { VertexPack.Position(), VertexPack.Normal(),
+                VertexAttribute.ColorPacked() };
+            attrib_num = 4;
+        }
+        center = new Vector3();
+        extent = 1.0f;
+    }
+
+    // -------------------------------------------------------------------------
+    public VertexPack SetBounds(Vector3 c, float e) {
+        center.set(c);
+        extent = (e > 0.0f) ? e : 1.0f;
+        return this;
+    }
+
+    // -------------------------------------------------------------------------
+    // Bounds are fitted around vertices, padding leaves space for positions
+    // that might change after mesh is built
+    public VertexPack FitBounds(float[] va, Vector3 c, float padding) {
+        if(c == null) {
+            // Center of bounding box
+            float[] min = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE},
+                    max = new float[] {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for(int i = m_src_pos_offset; i < va.length; i += m_src_attrib_num) {
+                for(int j = 0; j < 3; j++) {
+                    min[j] = Math.min(min[j], va[i + j]);
+                    max[j] = Math.max(max[j], va[i + j]);
+                }
+            }
+            center.set((min[0] + max[0]) / 2.0f, (min[1] + max[1]) / 2.0f,
+                (min[2] + max[2]) / 2.0f);
+        } else {
+            center.set(c);
+        }
+
+        // Largest distance from center
+        float dst2 = 0.0f;
+        for(int i = m_src_pos_offset; i < va.length; i += m_src_attrib_num) {
+            dst2 = Math.max(dst2, center.dst2(va[i + 0], va[i + 1], va[i + 2]));
+        }
+        return SetBounds(center, (float)Math.sqrt(dst2) + padding);
+    }
+
+    // -------------------------------------------------------------------------
+    // Model transform which maps packed position back to original space
+    public Matrix4 GetTransform(Matrix4 dest) {
+        return dest.setToTranslationAndScaling(center.x, center.y, center.z,
+            extent, extent, extent);
+    }
+
+    // -------------------------------------------------------------------------
+    public int GetPackedSize(int src_size) {
+        return src_size / m_src_attrib_num * attrib_num;
+    }
+
+    // -------------------------------------------------------------------------
+    public float[] Pack(float[] src, float[] dest) {
+        int vertex_num = src.length / m_src_attrib_num;
+        if(dest == null) {
+            dest = new float[vertex_num * attrib_num];
+        }
+        Pack(src, dest, 0, vertex_num);
+        return dest;
+    }
+
+    // -------------------------------------------------------------------------
+    public void Pack(float[] src, float[] dest, int first, int vertex_num) {
+        float scale = 1.0f / extent;
+        int s = first * m_src_attrib_num, d = first * attrib_num;
+        for(int i = 0; i < vertex_num; i++) {
+            int p = s + m_src_pos_offset;
+            dest[d + 0] = VertexPack.PackShorts(
+                VertexPack.Quantize((src[p + 0] - center.x) * scale, VertexPack.SHORT_MAX),
+                VertexPack.Quantize((src[p + 1] - center.y) * scale, VertexPack.SHORT_MAX));
+            dest[d + 1] = VertexPack.PackShorts(
+                VertexPack.Quantize((src[p + 2] - center.z) * scale, VertexPack.SHORT_MAX),
+                0);
+            if(m_src_norm_offset != -1) {
+                int n = s + m_src_norm_offset;
+                dest[d + 2] = VertexPack.PackBytes(
+                    VertexPack.Quantize(src[n + 0], VertexPack.BYTE_MAX),
+                    VertexPack.Quantize(src[n + 1], VertexPack.BYTE_MAX),
+                    VertexPack.Quantize(src[n + 2], VertexPack.BYTE_MAX), 0);
+            }
+            if(m_src_color_offset != -1) {
+                dest[d + 3] = src[s + m_src_color_offset];
+            }
+            s += m_src_attrib_num;
+            d += attrib_num;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    public Vector3 UnpackPos(float[] packed, int vertex, Vector3 dest) {
+        int d = vertex * attrib_num;
+        float scale = extent / VertexPack.SHORT_MAX;
+        return dest.set(
+            VertexPack.UnpackShort(packed[d + 0], 0) * scale + center.x,
+            VertexPack.UnpackShort(packed[d + 0], 1) * scale + center.y,
+            VertexPack.UnpackShort(packed[d + 1], 0) * scale + center.z);
+    }
+
+    // -------------------------------------------------------------------------
+    public Vector3 UnpackNorm(float[] packed, int vertex, Vector3 dest) {
+        if(m_src_norm_offset == -1) {
+            return dest.setZero();
+        }
+        int d = vertex * attrib_num + 2;
+        return dest.set(
+            VertexPack.UnpackByte(packed[d], 0) / VertexPack.BYTE_MAX,
+            VertexPack.UnpackByte(packed[d], 1) / VertexPack.BYTE_MAX,
+            VertexPack.UnpackByte(packed[d], 2) / VertexPack.BYTE_MAX);
+    }
+}
@@ -22,12 +22,24 @@ package com.matalok.planet.desktop;
 // -----------------------------------------------------------------------------
 import com.badlogic.gdx.backends.lwjgl.LwjglApplication;
 import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.matalok.planet.Config;
+import com.matalok.planet.HeightTiles;
 import com.matalok.planet.Main;
 
 // -----------------------------------------------------------------------------
 public class DesktopLauncher {
     // -------------------------------------------------------------------------
     public static void main (String[] arg) {
+        // Offline height map conversion :: --height-tiles <src.png> <dest.tiles>
+        if(arg.length == 3 && arg[0].equals("--height-tiles")) {
+            GdxNativesLoader.load();
+            HeightTiles.Convert(new FileHandle(arg[1]), new FileHandle(arg[2]), 
+                new Config().sphere_height_tile_size);
+            return;
+        }
+
         LwjglApplicationConfiguration config = new LwjglApplicationConfiguration();
         config.title = "planet v0.1.0 | afomins@gmail.com";
 //        config.width = 800;